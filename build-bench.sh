@@ -0,0 +1,58 @@
+#!/bin/bash
+
+name="FC Bot benchmarks"
+jarname="fcbot-bench"
+manifest=Manifest-bench.txt
+target=16
+classPath="lib/jmh-core-1.35.jar:lib/jopt-simple-5.0.4.jar:lib/commons-math3-3.2.jar"
+processorPath="lib/jmh-generator-annprocess-1.35.jar:$classPath"
+extraOpts=
+
+scriptdir=$(dirname "$0")
+
+pushd "$scriptdir" > /dev/null
+
+echo "building $name"
+
+# generate
+
+java src-gen/fcdiscord/gen/CodecGenerator.java schema/api.schema src/fcdiscord/ApiCodec.java
+
+if [ $? -ne 0 ]; then
+	echo "codec generation failed"
+	exit 1
+fi
+
+# build
+
+rm -f "$jarname.jar"
+
+if [ -e "tmp/bench" ]; then
+	rm -R "tmp/bench"/*
+fi
+
+javac -d tmp/bench --release $target -classpath $classPath -processorpath $processorPath $extraOpts $(find src -type f -name '*.java') $(find src-bench -type f -name '*.java')
+
+if [ $? -ne 0 ]; then
+	echo "build failed"
+	exit 1
+fi
+
+# jar <- src, src-bench, generated jmh harness
+
+pushd tmp/bench > /dev/null
+
+jar cfm "../../$jarname.jar" "../../$manifest" *
+
+if [ $? -ne 0 ]; then
+	echo "jar creation failed"
+	exit 1
+fi
+
+popd > /dev/null
+
+# done
+
+echo "build successful, run with: java -jar $jarname.jar -prof gc"
+popd > /dev/null
+exit 0
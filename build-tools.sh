@@ -0,0 +1,67 @@
+#!/bin/bash
+
+name="FC Bot tools"
+jarname="fcbot-tools"
+manifest=Manifest-tools.txt
+target=16
+classPath="lib/javacord-3.4.0-shaded.jar:lib/tomlj-1.0.0.jar"
+sourcePath=
+extraOpts=
+
+scriptdir=$(dirname "$0")
+
+pushd "$scriptdir" > /dev/null
+
+echo "building $name"
+
+# prepare paths
+
+if [ ! -z "$classPath" ]; then
+	classPathArg="-classpath $classPath"
+fi
+if [ ! -z "$sourcePath" ]; then
+	sourcePath="-sourcepath $sourcePath"
+fi
+
+# generate
+
+java src-gen/fcdiscord/gen/CodecGenerator.java schema/api.schema src/fcdiscord/ApiCodec.java
+
+if [ $? -ne 0 ]; then
+	echo "codec generation failed"
+	exit 1
+fi
+
+# build
+
+rm -f "$jarname.jar"
+
+if [ -e "tmp/tools" ]; then
+	rm -R "tmp/tools"/*
+fi
+
+javac -d tmp/tools --release $target $classPathArg $sourcePath $extraOpts $(find src src-server src-client src-tools -type f -name '*.java')
+
+if [ $? -ne 0 ]; then
+	echo "build failed"
+	exit 1
+fi
+
+# jar <- src, src-server, src-client, src-tools
+
+pushd tmp/tools > /dev/null
+
+jar cfm "../../$jarname.jar" "../../$manifest" *
+
+if [ $? -ne 0 ]; then
+	echo "jar creation failed"
+	exit 1
+fi
+
+popd > /dev/null
+
+# done
+
+echo "build successful, run e.g. with: java -cp $jarname.jar fcdiscord.tools.LoadTest clients=50 rate=2000"
+popd > /dev/null
+exit 0
@@ -23,6 +23,15 @@ if [ ! -z "$sourcePath" ]; then
 	sourcePath="-sourcepath $sourcePath"
 fi
 
+# generate
+
+java src-gen/fcdiscord/gen/CodecGenerator.java schema/api.schema src/fcdiscord/ApiCodec.java
+
+if [ $? -ne 0 ]; then
+	echo "codec generation failed"
+	exit 1
+fi
+
 # build
 
 rm -f "$jarname.jar"
@@ -31,7 +40,7 @@ if [ -e "tmp/build" ]; then
 	rm -R "tmp/build"/*
 fi
 
-javac -d tmp/build --release $target $classPathArg $sourcePath $extraOpts $(find src -type f -name '*.java') $(find src-server -type f -name '*.java')
+javac -d tmp/build --release $target $classPathArg $sourcePath $extraOpts $(find src -type f -name '*.java') $(find src-server -type f -name '*.java') $(find src-client -type f -name '*.java')
 
 if [ $? -ne 0 ]; then
 	echo "build failed"
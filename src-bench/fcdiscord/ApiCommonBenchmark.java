@@ -0,0 +1,237 @@
+package fcdiscord;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// run with: java -jar fcbot-bench.jar -prof gc
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ApiCommonBenchmark {
+	@Param({ "short", "long", "unicode" })
+	public String content;
+
+	@Param({ "3", "250" })
+	public int roles;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		message = switch (content) {
+		case "short" -> "anyone got spare iron? need it for a hopper";
+		case "long" -> repeat("The quick brown fox jumps over the lazy dog. ", 2000);
+		case "unicode" -> repeat("Grüße aus Köln, 日本語のチャット 🎉 ", 2000);
+		default -> throw new IllegalArgumentException(content);
+		};
+
+		roleIds = new ArrayList<>(roles);
+
+		for (int i = 0; i < roles; i++) {
+			roleIds.add(ThreadLocalRandom.current().nextLong(1L << 60));
+		}
+
+		encodedString = ApiCommon.writeString(message, ByteBuffer.allocate(0)).flip();
+		encodedLongs = ApiCommon.writeLongs(roleIds, ByteBuffer.allocate(0)).flip();
+
+		ByteBuffer frame = encodeOnMessage().flip();
+		frame.putInt(0, frame.remaining());
+		frames = ByteBuffer.allocate(frame.remaining() * FRAMES_PER_READ);
+
+		for (int i = 0; i < FRAMES_PER_READ; i++) {
+			frames.put(frame.duplicate());
+		}
+
+		frames.flip();
+		readBuffer = ByteBuffer.allocate(frames.remaining());
+
+		api = new BenchApi();
+		context = api.new ChannelContext();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		api.close();
+	}
+
+	@Benchmark
+	public ByteBuffer commandBuffer() {
+		return ApiCommon.commandBuffer(ApiCodec.COMMAND_S2C_ON_MESSAGE, 24);
+	}
+
+	@Benchmark
+	public ByteBuffer writeString() {
+		return ApiCommon.writeString(message, ByteBuffer.allocate(100));
+	}
+
+	@Benchmark
+	public String readString() {
+		return ApiCommon.readString(encodedString.duplicate());
+	}
+
+	@Benchmark
+	public ByteBuffer writeLongs() {
+		return ApiCommon.writeLongs(roleIds, ByteBuffer.allocate(100));
+	}
+
+	@Benchmark
+	public List<Long> readLongs() {
+		return ApiCommon.readLongs(encodedLongs.duplicate());
+	}
+
+	@Benchmark
+	public ByteBuffer reserveGrowth() { // full onMessage encoding as done by ApiServer, growing from the initial buffer
+		return encodeOnMessage();
+	}
+
+	@Benchmark
+	public ByteBuffer codecEncodeOnMessage() { // exact-size encoding as generated from the schema
+		return ApiCodec.encodeOnMessage(1234567890123456789L, 987654321098765432L, 112233445566778899L, "Player Name", false, roleIds, 0xff3366, message);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES_PER_READ)
+	public long processBuffer() {
+		readBuffer.clear();
+		readBuffer.put(frames.duplicate());
+		api.processBuffer(context, readBuffer, false);
+
+		return api.sink;
+	}
+
+	private ByteBuffer encodeOnMessage() {
+		ByteBuffer buffer = ApiCommon.commandBuffer(ApiCodec.COMMAND_S2C_ON_MESSAGE, 24);
+		buffer.putLong(1234567890123456789L);
+		buffer.putLong(987654321098765432L);
+		buffer.putLong(112233445566778899L);
+		buffer = ApiCommon.writeString("Player Name", buffer);
+		buffer = ApiCommon.reserve(6, buffer);
+		buffer.put((byte) 0);
+		buffer = ApiCommon.writeLongs(roleIds, buffer);
+		buffer.put((byte) 1);
+		buffer.putInt(0xff3366);
+		buffer = ApiCommon.writeString(message, buffer);
+
+		return buffer;
+	}
+
+	private static String repeat(String str, int maxLength) {
+		StringBuilder ret = new StringBuilder();
+
+		while (ret.length() + str.length() <= maxLength) {
+			ret.append(str);
+		}
+
+		return ret.toString();
+	}
+
+	private static final class BenchApi extends ApiCommon implements ApiCodec.S2CHandler<ApiCommon.ChannelContext> {
+		BenchApi() {
+			super("bench");
+		}
+
+		@Override
+		protected boolean processCommand(ChannelContext context, String cmd, ByteBuffer buffer, boolean eof) { // decodes like ApiClient
+			return ApiCodec.dispatchS2C(context, cmd, buffer, this);
+		}
+
+		@Override
+		public boolean handleOnMessage(ChannelContext context, long id, long channelId, long authorId, String authorName, boolean fromBot, List<Long> roleIds, Integer roleColor, String content) {
+			sink += id ^ channelId ^ authorId ^ authorName.length() ^ (fromBot ? 1 : 0) ^ roleIds.size() ^ (roleColor != null ? roleColor : 0) ^ content.length();
+
+			return true;
+		}
+
+		@Override
+		public boolean handleOnMessageRef(ChannelContext context, long id, long channelId, int authorRef, String content) {
+			return true;
+		}
+
+		@Override
+		public boolean handleOnMessageAttachments(ChannelContext context, long id, long channelId, int authorRef, String content, List<ApiCodec.Attachment> attachments) {
+			return true;
+		}
+
+		@Override
+		public boolean handleDefineAuthor(ChannelContext context, int ref, long authorId, String name, boolean fromBot, List<Long> roleIds, Integer roleColor) {
+			return true;
+		}
+
+		@Override
+		public boolean handleEvictAuthor(ChannelContext context, int ref) {
+			return true;
+		}
+
+		@Override
+		public boolean handleUploadResult(ChannelContext context, int uploadId, long messageId, String error) {
+			return true;
+		}
+
+		@Override
+		public boolean handleAttachmentChunk(ChannelContext context, int requestId, ByteBuffer data) {
+			return true;
+		}
+
+		@Override
+		public boolean handleAttachmentEnd(ChannelContext context, int requestId, long size, String error) {
+			return true;
+		}
+
+		@Override
+		public boolean handleHistoryMessage(ChannelContext context, int requestId, ByteBuffer message) {
+			return true;
+		}
+
+		@Override
+		public boolean handleHistoryEnd(ChannelContext context, int requestId, int count, String error) {
+			return true;
+		}
+
+		@Override
+		public boolean handleRelayOrigin(ChannelContext context, long messageId, boolean own) {
+			return true;
+		}
+
+		@Override
+		public boolean handleUnknown(ChannelContext context, String cmd) {
+			return false;
+		}
+
+		@Override
+		public void close() {
+			apiStats.close();
+		}
+
+		long sink;
+	}
+
+	private static final int FRAMES_PER_READ = 64;
+
+	private String message;
+	private List<Long> roleIds;
+	private ByteBuffer encodedString;
+	private ByteBuffer encodedLongs;
+	private ByteBuffer frames;
+	private ByteBuffer readBuffer;
+	private BenchApi api;
+	private ApiCommon.ChannelContext context;
+}
@@ -4,22 +4,40 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.URL;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.LockSupport;
 import java.util.function.LongConsumer;
 
+import fcdiscord.ApiCodec;
+import fcdiscord.ApiCodec.Attachment;
+import fcdiscord.ApiCodec.Reaction;
 import fcdiscord.ApiCommon;
 import fcdiscord.Config;
+import fcdiscord.RingChannel;
+import fcdiscord.TrafficRecorder;
 
 public final class ApiClient extends ApiCommon {
 	public static ApiClient create(Path configFile, LongConsumer channelIdConsumer) throws UnconfiguredException, IOException {
@@ -31,22 +49,36 @@ public final class ApiClient extends ApiCommon {
 
 		if (channelIdConsumer != null) channelIdConsumer.accept(config.getChannelId());
 
-		return new ApiClient(config.getClientApiAddress(), config.getApiPassword());
+		ApiClient ret = new ApiClient(config.getClientApiAddress(), config.getApiShmDir(), config.getApiPassword());
+		if (config.getApiCaptureFile() != null) ret.setRecorder(TrafficRecorder.open(config.getApiCaptureFile(), false));
+
+		return ret;
 	}
 
 	@SuppressWarnings("serial")
 	public static final class UnconfiguredException extends Exception { }
 
 	public static ApiClient create(String host, int port, String pw) {
-		return new ApiClient(new InetSocketAddress(host, port), pw);
+		return new ApiClient(new InetSocketAddress(host, port), null, pw);
 	}
 
 	public static ApiClient create(InetSocketAddress address, String pw) {
-		return new ApiClient(address, pw);
+		return new ApiClient(address, null, pw);
+	}
+
+	public static ApiClient create(Path socketPath, String pw) {
+		return new ApiClient(UnixDomainSocketAddress.of(socketPath), null, pw);
 	}
 
-	private ApiClient(InetSocketAddress address, String pw) {
+	public static ApiClient create(SocketAddress address, Path shmDir, String pw) {
+		return new ApiClient(address, shmDir, pw);
+	}
+
+	private ApiClient(SocketAddress address, Path shmDir, String pw) {
+		super("client");
+
 		this.address = address;
+		this.shmDir = shmDir;
 		this.pw = pw;
 
 		this.context = new ChannelContext();
@@ -54,119 +86,306 @@ public final class ApiClient extends ApiCommon {
 		reconnect(context, true);
 	}
 
+	public boolean isConnected() {
+		return context.isOpen();
+	}
+
 	public void sendMessage(long channelId, String message) {
-		ByteBuffer buffer = commandBuffer(COMMAND_C2S_SEND_MESSAGE, 8);
-		buffer.putLong(channelId);
-		buffer = writeString(message, buffer);
-		context.frameAndWrite(buffer);
+		context.frameAndWrite(ApiCodec.encodeSendMessage(channelId, message));
 	}
 
 	public void sendWebhookMessage(long channelId, String message, String user, URL avatarUrl) {
-		ByteBuffer buffer = commandBuffer(COMMAND_C2S_SEND_WEBHOOK_MESSAGE, 8);
-		buffer.putLong(channelId);
-		buffer = writeString(message, buffer);
-		buffer = writeString(user, buffer);
-		buffer = writeString(avatarUrl.toString(), buffer);
-		context.frameAndWrite(buffer);
+		synchronized (webhookIdentities) { // keeps the identity definition ahead of its use
+			WebhookIdentity identity = new WebhookIdentity(user, avatarUrl.toString());
+			Integer ref = webhookIdentities.get(identity);
+
+			if (ref == null) {
+				ref = nextWebhookIdentityRef++;
+
+				if (!context.frameAndWrite(ApiCodec.encodeDefineWebhookIdentity(ref, identity.user, identity.avatarUrl))) return;
+
+				webhookIdentities.put(identity, ref);
+
+				if (evictedWebhookIdentityRef != null) {
+					context.frameAndWrite(ApiCodec.encodeEvictWebhookIdentity(evictedWebhookIdentityRef));
+					evictedWebhookIdentityRef = null;
+				}
+			}
+
+			context.frameAndWrite(ApiCodec.encodeSendWebhookMessageRef(channelId, ref, message));
+		}
 	}
 
+	// channelId may be 0 for messages received recently
 	public void addReaction(long channelId, long messageId, String reaction) {
-		ByteBuffer buffer = commandBuffer(COMMAND_C2S_ADD_REACTION, 16);
-		buffer.putLong(channelId);
-		buffer.putLong(messageId);
-		buffer = writeString(reaction, buffer);
-		context.frameAndWrite(buffer);
+		context.frameAndWrite(ApiCodec.encodeAddReaction(channelId, messageId, reaction));
 	}
 
-	public void registerMessageHandler(MessageHandler handler, long... channels) {
-		Set<Long> newChannels = new HashSet<>();
+	// adds several reactions with one command, each still costs the server one Discord request
+	public void addReactions(Collection<Reaction> reactions) {
+		List<Reaction> list = List.copyOf(reactions);
+
+		for (int i = 0; i < list.size(); i += MAX_REACTION_BATCH) {
+			context.frameAndWrite(ApiCodec.encodeAddReactions(list.subList(i, Math.min(i + MAX_REACTION_BATCH, list.size()))));
+		}
+	}
 
+	/*
+	 * Controls whether messages other clients sent through the api are delivered to this client's message handlers.
+	 * Messages sent by this client are never echoed back.
+	 */
+	public void setReceiveRelayedMessages(boolean receive) {
 		synchronized (messageHandlers) {
-			for (long channel : channels) {
-				if (messageHandlers.computeIfAbsent(channel, ignore -> Collections.newSetFromMap(new IdentityHashMap<>())).add(handler)) {
-					newChannels.add(channel);
+			receiveRelayed = receive;
+
+			context.frameAndWrite(ApiCodec.encodeSetRelayEcho(receive));
+		}
+	}
+
+	/*
+	 * For relays forwarding the messages to clients of their own: while a handler is set, all messages sent through
+	 * the api are delivered, including this client's, each preceded by a call to the handler telling its origin.
+	 * Requires a v6 server.
+	 */
+	public void setRelayOriginHandler(RelayOriginHandler handler) {
+		synchronized (messageHandlers) {
+			boolean enable = handler != null;
+			boolean changed = enable != (relayOriginHandler != null);
+			relayOriginHandler = handler;
+
+			if (changed) context.frameAndWrite(ApiCodec.encodeSetRelayMode(enable));
+		}
+	}
+
+	public CompletableFuture<Long> uploadFile(long channelId, Path file, String message) throws IOException {
+		try (FileChannel channel = FileChannel.open(file)) {
+			return uploadFile(channelId, channel, channel.size(), file.getFileName().toString(), message);
+		}
+	}
+
+	/*
+	 * Streams the channel's content as a message attachment in chunks, interleaved with other commands. Blocks until
+	 * all data has been queued for sending, the returned future completes with the message id once the server posted
+	 * it. size may be -1 if not known upfront.
+	 */
+	public CompletableFuture<Long> uploadFile(long channelId, ReadableByteChannel channel, long size, String fileName, String message) {
+		int uploadId = nextUploadId.incrementAndGet();
+		CompletableFuture<Long> ret = new CompletableFuture<>();
+		pendingUploads.put(uploadId, ret);
+
+		if (!context.frameAndWrite(ApiCodec.encodeUploadBegin(uploadId, channelId, size, fileName, message))) {
+			failUpload(uploadId, "not connected");
+			return ret;
+		}
+
+		ByteBuffer chunk = ByteBuffer.allocate(UPLOAD_CHUNK_SIZE);
+		boolean eof = false;
+
+		try {
+			while (!eof && !ret.isDone()) {
+				while (chunk.hasRemaining()) {
+					if (channel.read(chunk) < 0) {
+						eof = true;
+						break;
+					}
+				}
+
+				if (chunk.position() > 0) {
+					if (!context.awaitPendingWriteBytes(UPLOAD_MAX_PENDING)) { // flow control, keeps room for other commands
+						failUpload(uploadId, "connection lost");
+						return ret;
+					}
+
+					if (ret.isDone()) break; // failed by the server while waiting
+
+					if (!context.frameAndWrite(ApiCodec.encodeUploadChunk(uploadId, chunk.flip()))) {
+						failUpload(uploadId, "connection lost");
+						return ret;
+					}
+
+					chunk.clear();
 				}
 			}
+		} catch (IOException e) {
+			context.frameAndWrite(ApiCodec.encodeUploadEnd(uploadId, true));
 
-			if (newChannels.isEmpty()) return;
+			pendingUploads.remove(uploadId);
+			ret.completeExceptionally(e);
+
+			return ret;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			context.frameAndWrite(ApiCodec.encodeUploadEnd(uploadId, true));
+			failUpload(uploadId, "interrupted");
+
+			return ret;
+		}
+
+		if (!ret.isDone()) { // not failed by the server already
+			if (!context.frameAndWrite(ApiCodec.encodeUploadEnd(uploadId, false))) failUpload(uploadId, "connection lost");
+		}
+
+		return ret;
+	}
+
+	private void failUpload(int uploadId, String error) {
+		CompletableFuture<Long> future = pendingUploads.remove(uploadId);
+		if (future != null) future.completeExceptionally(new IOException(error));
+	}
 
-			ByteBuffer buffer = commandBuffer(COMMAND_C2S_SUBSCRIBE_CHANNEL, 2 + newChannels.size() * 8);
-			buffer.putShort((short) newChannels.size());
+	// downloads a received message's attachment through the server's cache into file, replacing it
+	public CompletableFuture<Path> fetchAttachment(long attachmentId, Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
 
-			for (long id : newChannels) {
-				buffer.putLong(id);
+		return fetchAttachment(attachmentId, channel).handle((size, exc) -> {
+			try {
+				channel.close();
+				if (exc != null) Files.deleteIfExists(file);
+			} catch (IOException e) {
+				if (exc == null) throw new CompletionException(e);
 			}
 
-			context.frameAndWrite(buffer);
+			if (exc != null) throw exc instanceof CompletionException ce ? ce : new CompletionException(exc);
+
+			return file;
+		});
+	}
+
+	/*
+	 * Downloads a received message's attachment through the server's cache, the data is written to target on the read
+	 * thread as it arrives. The returned future completes with the size once all data has been written.
+	 */
+	public CompletableFuture<Long> fetchAttachment(long attachmentId, WritableByteChannel target) {
+		int requestId = nextFetchId.incrementAndGet();
+		AttachmentFetch fetch = new AttachmentFetch(target);
+		pendingFetches.put(requestId, fetch);
+
+		if (!context.frameAndWrite(ApiCodec.encodeFetchAttachment(requestId, attachmentId), Priority.HIGH)) {
+			pendingFetches.remove(requestId);
+			fetch.future.completeExceptionally(new IOException("not connected"));
+		}
+
+		return fetch.future;
+	}
+
+	/*
+	 * Reads up to limit (at most 100) messages of a channel older than beforeId from the server's journal, 0 for the
+	 * newest. The handler receives them on the read thread in chronological order, the returned future completes with
+	 * their count afterwards. Older messages can be paged through with the id of the first message received.
+	 */
+	public CompletableFuture<Integer> fetchHistory(long channelId, long beforeId, int limit, MessageHandler handler) {
+		return requestHistory(channelId, beforeId, limit, handler);
+	}
+
+	public CompletableFuture<Integer> fetchHistory(long channelId, long beforeId, int limit, MessageViewHandler handler) {
+		return requestHistory(channelId, beforeId, limit, handler);
+	}
+
+	private CompletableFuture<Integer> requestHistory(long channelId, long beforeId, int limit, Object handler) {
+		int requestId = nextFetchId.incrementAndGet();
+		HistoryFetch fetch = new HistoryFetch(handler);
+		pendingHistoryFetches.put(requestId, fetch);
+
+		if (!context.frameAndWrite(ApiCodec.encodeFetchHistory(requestId, channelId, beforeId, limit), Priority.HIGH)) {
+			pendingHistoryFetches.remove(requestId);
+			fetch.future.completeExceptionally(new IOException("not connected"));
+		}
+
+		return fetch.future;
+	}
+
+	public void registerMessageHandler(MessageHandler handler, long... channels) {
+		registerHandler(handler, channels);
+	}
+
+	// receives messages as a reusable view instead of decoding every field, see MessageView
+	public void registerMessageHandler(MessageViewHandler handler, long... channels) {
+		registerHandler(handler, channels);
+	}
+
+	private void registerHandler(Object handler, long[] channels) {
+		Set<Long> newChannels = new HashSet<>();
+
+		synchronized (messageHandlers) {
+			boolean changed = false;
+
+			for (long channel : channels) {
+				Set<Object> handlers = messageHandlers.computeIfAbsent(channel, ignore -> Collections.newSetFromMap(new IdentityHashMap<>()));
+				if (handlers.isEmpty()) newChannels.add(channel);
+				changed |= handlers.add(handler);
+			}
+
+			if (changed) updateHandlerIndex();
+			if (newChannels.isEmpty()) return;
+
+			context.frameAndWrite(ApiCodec.encodeSubscribeChannel(newChannels), Priority.HIGH); // may overtake queued sends and uploads
 		}
 	}
 
 	public void unregisterMessageHandler(MessageHandler handler) {
+		unregisterHandler(handler);
+	}
+
+	public void unregisterMessageHandler(MessageViewHandler handler) {
+		unregisterHandler(handler);
+	}
+
+	private void unregisterHandler(Object handler) {
 		Set<Long> abandonedChannels = new HashSet<>();
 
 		synchronized (messageHandlers) {
-			for (Iterator<Map.Entry<Long, Set<MessageHandler>>> it = messageHandlers.entrySet().iterator(); it.hasNext(); ) {
-				Map.Entry<Long, Set<MessageHandler>> entry = it.next();
-				Set<MessageHandler> handlers = entry.getValue();
+			boolean changed = false;
+
+			for (Iterator<Map.Entry<Long, Set<Object>>> it = messageHandlers.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry<Long, Set<Object>> entry = it.next();
+				Set<Object> handlers = entry.getValue();
 
-				if (handlers.remove(handler) && handlers.isEmpty()) {
-					abandonedChannels.add(entry.getKey());
-					it.remove();
+				if (handlers.remove(handler)) {
+					changed = true;
+
+					if (handlers.isEmpty()) {
+						abandonedChannels.add(entry.getKey());
+						it.remove();
+					}
 				}
 			}
 
+			if (changed) updateHandlerIndex();
 			if (abandonedChannels.isEmpty()) return;
 
-			ByteBuffer buffer = commandBuffer(COMMAND_C2S_UNSUBSCRIBE_CHANNEL, 2 + abandonedChannels.size() * 8);
-			buffer.putShort((short) abandonedChannels.size());
+			context.frameAndWrite(ApiCodec.encodeUnsubscribeChannel(abandonedChannels), Priority.HIGH);
+		}
+	}
 
-			for (long id : abandonedChannels) {
-				buffer.putLong(id);
-			}
+	private void updateHandlerIndex() { // caller must hold messageHandlers
+		LongMap<Object[]> index = new LongMap<>(messageHandlers.size());
 
-			context.frameAndWrite(buffer);
+		for (Map.Entry<Long, Set<Object>> entry : messageHandlers.entrySet()) {
+			index.put(entry.getKey(), entry.getValue().toArray());
 		}
+
+		handlerIndex = index;
 	}
 
 	private void reconnect(ChannelContext context, boolean initial) {
 		if (!initial && !context.clear()) return;
 
-		SocketChannel channel = null;
+		ByteChannel channel = null;
 
 		try {
-			channel = SocketChannel.open(address);
+			if (shmDir != null) channel = connectSharedMemory();
+			if (channel == null) channel = SocketChannel.open(address);
 
-			ByteBuffer buffer = ByteBuffer.allocate(100);
-			buffer.putInt(0);
-			buffer = writeString(COMMAND_C2S_LOGIN, buffer);
-			buffer.putInt(API_VERSION);
-			buffer = writeString(pw, buffer);
-			buffer.putInt(0, buffer.position());
+			writeFully(channel, frame(ApiCodec.encodeLogin(API_VERSION, pw)));
 
 			synchronized (messageHandlers) {
-				if (!messageHandlers.isEmpty()) {
-					int startPos = buffer.position();
-					buffer = reserve(4, buffer);
-					buffer.putInt(0);
-					buffer = writeString(COMMAND_C2S_SUBSCRIBE_CHANNEL, buffer);
-					buffer = reserve(2 + messageHandlers.size() * 8, buffer);
-					buffer.putShort((short) messageHandlers.size());
-
-					for (long id : messageHandlers.keySet()) {
-						buffer.putLong(id);
-					}
-
-					buffer.putInt(startPos, buffer.position() - startPos);
-				}
-			}
-
-			buffer.flip();
-
-			while (buffer.hasRemaining()) {
-				channel.write(buffer);
+				if (!messageHandlers.isEmpty()) writeFully(channel, frame(ApiCodec.encodeSubscribeChannel(messageHandlers.keySet())));
+				if (receiveRelayed) writeFully(channel, frame(ApiCodec.encodeSetRelayEcho(true)));
+				if (relayOriginHandler != null) writeFully(channel, frame(ApiCodec.encodeSetRelayMode(true)));
 			}
 		} catch (Throwable t) {
 			System.err.printf("[DCAPI] Connect failed: %s%n", t.toString());
+			apiStats.onConnectFailed();
 
 			try {
 				if (channel != null) channel.close();
@@ -178,48 +397,271 @@ public final class ApiClient extends ApiCommon {
 			return;
 		}
 
-		context.init(channel);
+		authors.clear(); // the dictionaries are scoped to the connection, the previous read thread is gone already
+
+		synchronized (webhookIdentities) {
+			webhookIdentities.clear();
+			evictedWebhookIdentityRef = null;
+			context.init(channel);
+		}
+
+		apiStats.onAccepted();
 		System.out.println("[DCAPI] connected");
 	}
 
+	private static void writeFully(ByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private RingChannel connectSharedMemory() {
+		String name = "fcd-%d-%x".formatted(ProcessHandle.current().pid(), System.nanoTime());
+		Path c2sFile = shmDir.resolve(name+"-c2s");
+		Path s2cFile = shmDir.resolve(name+"-s2c");
+		RingChannel ring = null;
+
+		try {
+			SocketChannel bootstrapChannel = SocketChannel.open(address);
+			ring = RingChannel.create(s2cFile, c2sFile, bootstrapChannel); // stays open as the doorbell
+
+			writeFully(bootstrapChannel, frame(ApiCodec.encodeShmConnect(API_VERSION, c2sFile.getFileName().toString(), s2cFile.getFileName().toString())));
+
+			if (!ring.awaitAttached(SHM_ATTACH_TIMEOUT_MS)) throw new IOException("timed out waiting for the server to map "+name);
+
+			return ring;
+		} catch (Throwable t) {
+			System.err.printf("[DCAPI] Shared memory connect failed, falling back to socket: %s%n", t.toString());
+			if (ring != null) ring.close();
+
+			return null;
+		} finally {
+			try { // the mappings stay valid without the files
+				Files.deleteIfExists(c2sFile);
+				Files.deleteIfExists(s2cFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
 	@Override
 	protected boolean processCommand(ChannelContext context, String cmd, ByteBuffer buffer, boolean eof) {
-		switch (cmd) {
-		case COMMAND_S2C_ON_MESSAGE -> {
-			long id = buffer.getLong();
-			long channelId = buffer.getLong();
-			long authorId = buffer.getLong();
-			String authorName = readString(buffer);
-			boolean fromBot = buffer.get() != 0;
-			List<Long> roles = readLongs(buffer);
-			boolean hasRoleColor = buffer.get() != 0;
-			Integer roleColor = hasRoleColor ? buffer.getInt() : null;
-			String content = readString(buffer);
+		if (cmd.equals(ApiCodec.COMMAND_S2C_ON_MESSAGE_REF) || cmd.equals(ApiCodec.COMMAND_S2C_ON_MESSAGE)) {
+			dispatchMessage(cmd, buffer);
 
-			synchronized (messageHandlers) {
-				for (MessageHandler handler : messageHandlers.getOrDefault(channelId, Collections.emptySet())) {
-					handler.onMessage(id, channelId, authorId, authorName, fromBot, roles, roleColor, content);
+			return true;
+		}
+
+		return ApiCodec.dispatchS2C(context, cmd, buffer, commandHandler);
+	}
+
+	/*
+	 * Messages are decoded into the reusable view instead of through ApiCodec, so that handlers only interested in some
+	 * of the fields don't cause any allocations. MessageHandlers get the fields materialized on first use.
+	 */
+	private void dispatchMessage(String cmd, ByteBuffer buffer) {
+		Object[] handlers = handlerIndex.get(buffer.getLong(buffer.position() + 8));
+		if (handlers == null) return;
+
+		if (cmd.equals(ApiCodec.COMMAND_S2C_ON_MESSAGE)) {
+			messageView.resetInline(buffer);
+		} else {
+			Author author = getAuthor(buffer.getInt(buffer.position() + 16));
+			if (author == null) return;
+
+			messageView.resetRef(buffer, author.id, author.name, author.fromBot, author.roles, author.roleColor);
+		}
+
+		deliverMessage(handlers);
+	}
+
+	private Author getAuthor(int authorRef) {
+		Author ret = authors.get(authorRef);
+		if (ret == null) System.err.printf("[DCAPI] unknown author %d%n", authorRef);
+
+		return ret;
+	}
+
+	private void deliverMessage(Object[] handlers) {
+		try {
+			String authorName = null;
+			List<Long> roles = null;
+			String content = null;
+
+			for (Object handler : handlers) {
+				if (handler instanceof MessageViewHandler viewHandler) {
+					viewHandler.onMessage(messageView);
+				} else {
+					if (content == null) {
+						authorName = messageView.getAuthorNameString();
+						roles = messageView.getRoleList();
+						content = messageView.getContent().toString();
+					}
+
+					((MessageHandler) handler).onMessage(messageView.getId(), messageView.getChannelId(), messageView.getAuthorId(), authorName, messageView.isFromBot(),
+							roles, messageView.getRoleColorBoxed(), content, messageView.getAttachments());
 				}
 			}
+		} finally {
+			messageView.release();
 		}
-		default -> {
-			System.err.printf("[DCAPI] Unknown command: %s%n", cmd);
-			return false;
+	}
+
+	private final class CommandHandler implements ApiCodec.S2CHandler<ChannelContext> {
+		@Override
+		public boolean handleOnMessage(ChannelContext context, long id, long channelId, long authorId, String authorName, boolean fromBot, List<Long> roleIds, Integer roleColor, String content) {
+			throw new IllegalStateException("handled by dispatchMessage");
+		}
+
+		@Override
+		public boolean handleOnMessageRef(ChannelContext context, long id, long channelId, int authorRef, String content) {
+			throw new IllegalStateException("handled by dispatchMessage");
+		}
+
+		@Override
+		public boolean handleOnMessageAttachments(ChannelContext context, long id, long channelId, int authorRef, String content, List<Attachment> attachments) {
+			Object[] handlers = handlerIndex.get(channelId);
+			if (handlers == null) return true;
+
+			Author author = getAuthor(authorRef);
+			if (author == null) return true;
+
+			messageView.resetDecoded(id, channelId, author.id, author.name, author.fromBot, author.roles, author.roleColor, content, attachments);
+			deliverMessage(handlers);
+
+			return true;
+		}
+
+		@Override
+		public boolean handleDefineAuthor(ChannelContext context, int ref, long authorId, String name, boolean fromBot, List<Long> roleIds, Integer roleColor) { // also updates existing authors
+			authors.put(ref, new Author(authorId, name, fromBot, Collections.unmodifiableList(roleIds), roleColor));
+
+			return true;
+		}
+
+		@Override
+		public boolean handleEvictAuthor(ChannelContext context, int ref) {
+			authors.remove(ref);
+
+			return true;
+		}
+
+		@Override
+		public boolean handleUploadResult(ChannelContext context, int uploadId, long messageId, String error) {
+			if (error.isEmpty()) {
+				CompletableFuture<Long> future = pendingUploads.remove(uploadId);
+				if (future != null) future.complete(messageId);
+			} else {
+				failUpload(uploadId, error);
+			}
+
+			return true;
 		}
+
+		@Override
+		public boolean handleAttachmentChunk(ChannelContext context, int requestId, ByteBuffer data) {
+			AttachmentFetch fetch = pendingFetches.get(requestId);
+			if (fetch == null) return true; // already failed
+
+			try {
+				fetch.size += data.remaining();
+
+				while (data.hasRemaining()) {
+					fetch.target.write(data);
+				}
+			} catch (IOException e) {
+				pendingFetches.remove(requestId);
+				fetch.future.completeExceptionally(e);
+			}
+
+			return true;
 		}
 
-		return true;
+		@Override
+		public boolean handleAttachmentEnd(ChannelContext context, int requestId, long size, String error) {
+			AttachmentFetch fetch = pendingFetches.remove(requestId);
+			if (fetch == null) return true;
+
+			if (!error.isEmpty()) {
+				fetch.future.completeExceptionally(new IOException(error));
+			} else if (size != fetch.size) {
+				fetch.future.completeExceptionally(new IOException("size mismatch"));
+			} else {
+				fetch.future.complete(size);
+			}
+
+			return true;
+		}
+
+		@Override
+		public boolean handleHistoryMessage(ChannelContext context, int requestId, ByteBuffer message) {
+			HistoryFetch fetch = pendingHistoryFetches.get(requestId);
+			if (fetch == null) return true;
+
+			messageView.resetInline(message); // same layout as onMessage
+			fetch.count++;
+			deliverMessage(fetch.handlers);
+
+			return true;
+		}
+
+		@Override
+		public boolean handleHistoryEnd(ChannelContext context, int requestId, int count, String error) {
+			HistoryFetch fetch = pendingHistoryFetches.remove(requestId);
+			if (fetch == null) return true;
+
+			if (!error.isEmpty()) {
+				fetch.future.completeExceptionally(new IOException(error));
+			} else if (count != fetch.count) {
+				fetch.future.completeExceptionally(new IOException("count mismatch"));
+			} else {
+				fetch.future.complete(count);
+			}
+
+			return true;
+		}
+
+		@Override
+		public boolean handleRelayOrigin(ChannelContext context, long messageId, boolean own) {
+			RelayOriginHandler handler = relayOriginHandler;
+			if (handler != null) handler.onRelayOrigin(messageId, own);
+
+			return true;
+		}
+
+		@Override
+		public boolean handleUnknown(ChannelContext context, String cmd) {
+			System.err.printf("[DCAPI] Unknown command: %s%n", cmd);
+
+			return false;
+		}
 	}
 
 	@Override
 	protected void close(ChannelContext context) {
 		System.out.println("[DCAPI] disconnected");
 		super.close(context);
-		scheduleReconnect(false);
+
+		for (Integer uploadId : pendingUploads.keySet()) { // the server discards partial uploads with the connection
+			failUpload(uploadId, "disconnected");
+		}
+
+		for (Integer requestId : pendingFetches.keySet()) {
+			AttachmentFetch fetch = pendingFetches.remove(requestId);
+			if (fetch != null) fetch.future.completeExceptionally(new IOException("disconnected"));
+		}
+
+		for (Integer requestId : pendingHistoryFetches.keySet()) {
+			HistoryFetch fetch = pendingHistoryFetches.remove(requestId);
+			if (fetch != null) fetch.future.completeExceptionally(new IOException("disconnected"));
+		}
+
+		if (!closed) scheduleReconnect(false);
 	}
 
 	private synchronized void scheduleReconnect(boolean initial) {
-		if (reconnectThread != null) return;
+		if (reconnectThread != null || closed) return;
 
 		final long reconnectTime = System.nanoTime() + RECONNECT_DELAY_SEC * 1_000_000_000L;
 		reconnectThread = new Thread("[DCAPI] client reconnect delay") {
@@ -249,6 +691,7 @@ public final class ApiClient extends ApiCommon {
 	@Override
 	public void close() {
 		synchronized (this) {
+			closed = true;
 			Thread thread = reconnectThread;
 
 			if (thread != null) {
@@ -258,17 +701,86 @@ public final class ApiClient extends ApiCommon {
 		}
 
 		context.closeChannel();
+		apiStats.close();
+		closeRecorder();
+	}
+
+	private record Author(long id, String name, boolean fromBot, List<Long> roles, Integer roleColor) { }
+	private record WebhookIdentity(String user, String avatarUrl) { }
+
+	private static final class AttachmentFetch {
+		AttachmentFetch(WritableByteChannel target) {
+			this.target = target;
+		}
+
+		final WritableByteChannel target;
+		final CompletableFuture<Long> future = new CompletableFuture<>();
+		long size; // only accessed by the read thread
+	}
+
+	private static final class HistoryFetch {
+		HistoryFetch(Object handler) {
+			this.handlers = new Object[] { handler };
+		}
+
+		final Object[] handlers; // in the form deliverMessage expects
+		final CompletableFuture<Integer> future = new CompletableFuture<>();
+		int count; // only accessed by the read thread
 	}
 
 	public interface MessageHandler {
 		void onMessage(long id, long channelId, long authorId, String authorName, boolean fromBot, List<Long> roles, Integer roleColor, String content);
+
+		default void onMessage(long id, long channelId, long authorId, String authorName, boolean fromBot, List<Long> roles, Integer roleColor, String content,
+				List<Attachment> attachments) {
+			onMessage(id, channelId, authorId, authorName, fromBot, roles, roleColor, content);
+		}
+	}
+
+	public interface MessageViewHandler {
+		void onMessage(MessageView message); // the view is only valid during the call
+	}
+
+	public interface RelayOriginHandler {
+		void onRelayOrigin(long messageId, boolean own); // called on the read thread right before the message is delivered
 	}
 
 	private static final int RECONNECT_DELAY_SEC = 10;
+	private static final int SHM_ATTACH_TIMEOUT_MS = 5000;
+	private static final int UPLOAD_CHUNK_SIZE = 64 * 1024;
+	private static final int UPLOAD_MAX_PENDING = 256 * 1024;
+	private static final int MAX_REACTION_BATCH = 1000; // per addReactions frame
+	private static final int MAX_WEBHOOK_IDENTITIES = 256; // must not exceed the server's limit
 
 	private final SocketAddress address;
+	private final Path shmDir;
 	private final String pw;
-	private final Map<Long, Set<MessageHandler>> messageHandlers = new HashMap<>();
+	private final Map<Long, Set<Object>> messageHandlers = new HashMap<>(); // channel -> MessageHandler and MessageViewHandler instances
+	private volatile LongMap<Object[]> handlerIndex = new LongMap<>(); // immutable snapshot of messageHandlers for the read thread
 	private final ChannelContext context;
+	private final CommandHandler commandHandler = new CommandHandler();
+	private final Map<Integer, CompletableFuture<Long>> pendingUploads = new ConcurrentHashMap<>();
+	private final AtomicInteger nextUploadId = new AtomicInteger();
+	private final Map<Integer, AttachmentFetch> pendingFetches = new ConcurrentHashMap<>();
+	private final AtomicInteger nextFetchId = new AtomicInteger(); // shared by attachment and history fetches
+	private final Map<Integer, HistoryFetch> pendingHistoryFetches = new ConcurrentHashMap<>();
+	private boolean receiveRelayed; // guarded by messageHandlers
+	private volatile RelayOriginHandler relayOriginHandler; // written while holding messageHandlers
+	private final LongMap<Author> authors = new LongMap<>(); // author ref -> author, only accessed by the read thread
+	private final MessageView messageView = new MessageView(); // only accessed by the read thread
+	@SuppressWarnings("serial")
+	private final Map<WebhookIdentity, Integer> webhookIdentities = new LinkedHashMap<>(16, 0.75f, true) { // identity -> ref, lru
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<WebhookIdentity, Integer> eldest) {
+			if (size() <= MAX_WEBHOOK_IDENTITIES) return false;
+
+			evictedWebhookIdentityRef = eldest.getValue();
+
+			return true;
+		}
+	};
+	private int nextWebhookIdentityRef;
+	private Integer evictedWebhookIdentityRef;
 	private Thread reconnectThread;
+	private volatile boolean closed;
 }
@@ -0,0 +1,113 @@
+package fcdiscord.client;
+
+import java.util.Arrays;
+
+/*
+ * Minimal open addressing map with primitive long keys, lookups don't box or allocate.
+ */
+final class LongMap<V> {
+	LongMap() {
+		this(16);
+	}
+
+	@SuppressWarnings("unchecked")
+	LongMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(expectedSize * 2 - 1, 15)) << 1;
+
+		keys = new long[capacity];
+		values = (V[]) new Object[capacity];
+	}
+
+	V get(long key) {
+		int mask = keys.length - 1;
+
+		for (int idx = hash(key) & mask; ; idx = (idx + 1) & mask) {
+			V value = values[idx];
+			if (value == null) return null;
+			if (keys[idx] == key) return value;
+		}
+	}
+
+	V put(long key, V value) {
+		if (value == null) throw new NullPointerException();
+
+		int mask = keys.length - 1;
+		int idx = hash(key) & mask;
+
+		for (; values[idx] != null; idx = (idx + 1) & mask) {
+			if (keys[idx] == key) {
+				V ret = values[idx];
+				values[idx] = value;
+
+				return ret;
+			}
+		}
+
+		keys[idx] = key;
+		values[idx] = value;
+		if (++size * 2 > keys.length) rehash();
+
+		return null;
+	}
+
+	V remove(long key) {
+		int mask = keys.length - 1;
+		int idx = hash(key) & mask;
+
+		for (; ; idx = (idx + 1) & mask) {
+			if (values[idx] == null) return null;
+			if (keys[idx] == key) break;
+		}
+
+		V ret = values[idx];
+		size--;
+
+		// shift following entries of the probe sequence back into the gap
+		for (int next = (idx + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+			int home = hash(keys[next]) & mask;
+
+			if (((next - home) & mask) >= ((next - idx) & mask)) {
+				keys[idx] = keys[next];
+				values[idx] = values[next];
+				idx = next;
+			}
+		}
+
+		values[idx] = null;
+
+		return ret;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void rehash() {
+		long[] oldKeys = keys;
+		V[] oldValues = values;
+
+		keys = new long[oldKeys.length * 2];
+		values = (V[]) new Object[oldKeys.length * 2];
+		size = 0;
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) put(oldKeys[i], oldValues[i]);
+		}
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9e3779b97f4a7c15L;
+
+		return (int) (h ^ h >>> 32);
+	}
+
+	private long[] keys;
+	private V[] values;
+	private int size;
+}
@@ -0,0 +1,338 @@
+package fcdiscord.client;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import fcdiscord.ApiCodec.Attachment;
+
+/*
+ * Reusable view of a received message, decoded lazily from the frame buffer without allocating.
+ *
+ * A view and the char sequences it returns are only valid during the MessageViewHandler call, copy anything needed
+ * later, e.g. with toString(). The layouts read here are onMessage and onMessageRef from schema/api.schema.
+ */
+public final class MessageView {
+	MessageView() { }
+
+	// onMessage: long id, long channelId, long authorId, string authorName, bool fromBot, longs roleIds, optInt roleColor, string content
+	void resetInline(ByteBuffer buffer) {
+		int pos = buffer.position();
+
+		id = buffer.getLong(pos);
+		channelId = buffer.getLong(pos + 8);
+		authorId = buffer.getLong(pos + 16);
+		pos += 24;
+
+		int len = buffer.getShort(pos) & 0xffff;
+		authorNameText.reset(buffer, pos + 2, len);
+		authorName = authorNameText;
+		pos += 2 + len;
+
+		fromBot = buffer.get(pos++) != 0;
+
+		roleCount = buffer.getShort(pos) & 0xffff;
+		rolesOffset = pos + 2;
+		roleList = null;
+		pos += 2 + roleCount * Long.BYTES;
+
+		hasRoleColor = buffer.get(pos++) != 0;
+
+		if (hasRoleColor) {
+			roleColor = buffer.getInt(pos);
+			pos += 4;
+		}
+
+		len = buffer.getShort(pos) & 0xffff;
+		if (pos + 2 + len > buffer.limit()) throw new IndexOutOfBoundsException("truncated message");
+		contentText.reset(buffer, pos + 2, len);
+		content = contentText;
+		attachments = Collections.emptyList();
+
+		this.buffer = buffer;
+	}
+
+	// onMessageRef: long id, long channelId, int authorRef, string content, with the author resolved by the caller
+	void resetRef(ByteBuffer buffer, long authorId, String authorName, boolean fromBot, List<Long> roles, Integer roleColor) {
+		int pos = buffer.position();
+
+		id = buffer.getLong(pos);
+		channelId = buffer.getLong(pos + 8);
+		pos += 20;
+
+		setAuthor(authorId, authorName, fromBot, roles, roleColor);
+
+		int len = buffer.getShort(pos) & 0xffff;
+		if (pos + 2 + len > buffer.limit()) throw new IndexOutOfBoundsException("truncated message");
+		contentText.reset(buffer, pos + 2, len);
+		content = contentText;
+		attachments = Collections.emptyList();
+
+		this.buffer = buffer;
+	}
+
+	// onMessageAttachments, decoded by ApiCodec since such messages are rare
+	void resetDecoded(long id, long channelId, long authorId, String authorName, boolean fromBot, List<Long> roles, Integer roleColor, String content,
+			List<Attachment> attachments) {
+		this.id = id;
+		this.channelId = channelId;
+		setAuthor(authorId, authorName, fromBot, roles, roleColor);
+		this.content = content;
+		this.attachments = Collections.unmodifiableList(attachments);
+	}
+
+	private void setAuthor(long authorId, String authorName, boolean fromBot, List<Long> roles, Integer roleColor) {
+		this.authorId = authorId;
+		this.authorName = authorName;
+		this.fromBot = fromBot;
+		roleCount = roles.size();
+		roleList = roles;
+		hasRoleColor = roleColor != null;
+		if (hasRoleColor) this.roleColor = roleColor;
+	}
+
+	void release() {
+		authorNameText.reset(null, 0, 0);
+		contentText.reset(null, 0, 0);
+		authorName = null;
+		roleList = null;
+		content = null;
+		attachments = null;
+		buffer = null;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public long getChannelId() {
+		return channelId;
+	}
+
+	public long getAuthorId() {
+		return authorId;
+	}
+
+	public CharSequence getAuthorName() {
+		return authorName;
+	}
+
+	public boolean isFromBot() {
+		return fromBot;
+	}
+
+	public int getRoleCount() {
+		return roleCount;
+	}
+
+	public long getRoleId(int index) {
+		if (index < 0 || index >= roleCount) throw new IndexOutOfBoundsException(index);
+
+		return roleList != null ? roleList.get(index) : buffer.getLong(rolesOffset + index * Long.BYTES);
+	}
+
+	public boolean hasRole(long roleId) {
+		for (int i = 0; i < roleCount; i++) {
+			if (getRoleId(i) == roleId) return true;
+		}
+
+		return false;
+	}
+
+	public boolean hasRoleColor() {
+		return hasRoleColor;
+	}
+
+	public int getRoleColor() {
+		if (!hasRoleColor) throw new IllegalStateException("no role color");
+
+		return roleColor;
+	}
+
+	public CharSequence getContent() {
+		return content;
+	}
+
+	public boolean contentStartsWith(CharSequence prefix) {
+		int len = prefix.length();
+		if (len > content.length()) return false;
+
+		for (int i = 0; i < len; i++) {
+			if (content.charAt(i) != prefix.charAt(i)) return false;
+		}
+
+		return true;
+	}
+
+	public List<Attachment> getAttachments() { // use ApiClient.fetchAttachment to obtain the data
+		return attachments;
+	}
+
+	// materializes the values in the form MessageHandler receives them
+	String getAuthorNameString() {
+		return authorName.toString();
+	}
+
+	List<Long> getRoleList() {
+		if (roleList != null) return roleList;
+
+		Long[] ret = new Long[roleCount];
+
+		for (int i = 0; i < roleCount; i++) {
+			ret[i] = getRoleId(i);
+		}
+
+		return List.of(ret);
+	}
+
+	Integer getRoleColorBoxed() {
+		return hasRoleColor ? roleColor : null;
+	}
+
+	/*
+	 * UTF-8 string in the frame buffer exposed as a CharSequence. Pure ASCII, the common case, is read directly from the
+	 * buffer, anything else is decoded once into a char array that is kept for later messages.
+	 */
+	private static final class Utf8Text implements CharSequence {
+		void reset(ByteBuffer buffer, int offset, int len) {
+			this.buffer = buffer;
+			this.offset = offset;
+			this.byteLength = len;
+			this.length = -1;
+		}
+
+		@Override
+		public int length() {
+			if (length < 0) decode();
+
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (length < 0) decode();
+			if (index < 0 || index >= length) throw new IndexOutOfBoundsException(index);
+
+			return ascii ? (char) buffer.get(offset + index) : chars[index];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return toString().substring(start, end);
+		}
+
+		@Override
+		public String toString() {
+			if (buffer == null) return "";
+
+			if (buffer.hasArray()) {
+				return new String(buffer.array(), buffer.arrayOffset() + offset, byteLength, StandardCharsets.UTF_8);
+			} else {
+				byte[] data = new byte[byteLength];
+				buffer.get(offset, data);
+
+				return new String(data, StandardCharsets.UTF_8);
+			}
+		}
+
+		private void decode() {
+			int end = offset + byteLength;
+			int pos = offset;
+
+			while (pos < end && buffer.get(pos) >= 0) {
+				pos++;
+			}
+
+			if (pos == end) {
+				ascii = true;
+				length = byteLength;
+				return;
+			}
+
+			ascii = false;
+			if (chars.length < byteLength) chars = new char[Math.max(byteLength, chars.length * 2)]; // utf-8 never needs more chars than bytes
+
+			int count = 0;
+
+			for (pos = offset; pos < end; pos++) { // copy the ascii prefix
+				byte b = buffer.get(pos);
+				if (b < 0) break;
+				chars[count++] = (char) b;
+			}
+
+			while (pos < end) {
+				int b = buffer.get(pos++);
+
+				if (b >= 0) {
+					chars[count++] = (char) b;
+					continue;
+				}
+
+				int extra, cp;
+
+				if ((b & 0xe0) == 0xc0) {
+					extra = 1;
+					cp = b & 0x1f;
+				} else if ((b & 0xf0) == 0xe0) {
+					extra = 2;
+					cp = b & 0x0f;
+				} else if ((b & 0xf8) == 0xf0) {
+					extra = 3;
+					cp = b & 0x07;
+				} else {
+					chars[count++] = REPLACEMENT;
+					continue;
+				}
+
+				int i = 0;
+
+				for (; i < extra && pos < end; i++, pos++) {
+					int c = buffer.get(pos);
+					if ((c & 0xc0) != 0x80) break;
+					cp = cp << 6 | c & 0x3f;
+				}
+
+				if (i < extra
+						|| cp < MIN_CODE_POINTS[extra]
+						|| cp > Character.MAX_CODE_POINT
+						|| cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE) {
+					chars[count++] = REPLACEMENT;
+				} else if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+					chars[count++] = Character.highSurrogate(cp);
+					chars[count++] = Character.lowSurrogate(cp);
+				} else {
+					chars[count++] = (char) cp;
+				}
+			}
+
+			length = count;
+		}
+
+		private static final char REPLACEMENT = '\ufffd';
+		private static final int[] MIN_CODE_POINTS = { 0, 0x80, 0x800, 0x10000 }; // rejects overlong encodings
+
+		private ByteBuffer buffer;
+		private int offset;
+		private int byteLength;
+		private int length = -1; // in chars, -1 if not determined yet
+		private boolean ascii;
+		private char[] chars = new char[64];
+	}
+
+	private final Utf8Text authorNameText = new Utf8Text();
+	private final Utf8Text contentText = new Utf8Text();
+	private CharSequence content;
+	private List<Attachment> attachments;
+	private ByteBuffer buffer;
+	private long id;
+	private long channelId;
+	private long authorId;
+	private CharSequence authorName;
+	private boolean fromBot;
+	private int roleCount;
+	private int rolesOffset;
+	private List<Long> roleList; // set for interned authors, otherwise the roles are read from the buffer
+	private boolean hasRoleColor;
+	private int roleColor;
+}
@@ -0,0 +1,604 @@
+package fcdiscord.gen;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Generates the api command codec from the schema, see schema/api.schema for the format.
+ *
+ * usage: java src-gen/fcdiscord/gen/CodecGenerator.java <schema file> <output java file>
+ *
+ * The output is only rewritten if it changed.
+ */
+public final class CodecGenerator {
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("usage: <schema file> <output java file>");
+			System.exit(1);
+		}
+
+		Path schemaFile = Paths.get(args[0]);
+		Path outputFile = Paths.get(args[1]);
+
+		Schema schema = parse(schemaFile);
+		List<Command> commands = schema.commands;
+		String output = generate(schema, schemaFile);
+
+		if (!Files.exists(outputFile) || !Files.readString(outputFile, StandardCharsets.UTF_8).equals(output)) {
+			Files.writeString(outputFile, output, StandardCharsets.UTF_8);
+			System.out.printf("generated %s from %s (%d commands)%n", outputFile, schemaFile, commands.size());
+		}
+	}
+
+	private static Schema parse(Path file) throws IOException {
+		List<Command> ret = new ArrayList<>();
+		Map<String, Struct> structs = new LinkedHashMap<>();
+		Set<String> names = new HashSet<>();
+		Set<String> commandNames = new HashSet<>();
+		int lineNumber = 0;
+
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			lineNumber++;
+			line = line.strip();
+			if (line.isEmpty() || line.startsWith("#")) continue;
+
+			Matcher matcher = STRUCT_PATTERN.matcher(line);
+
+			if (matcher.matches()) {
+				String name = matcher.group(1);
+				if (!names.add(name)) throw new IOException("duplicate name "+name+" in line "+lineNumber);
+
+				List<Field> fields = parseFields(matcher.group(2), structs, lineNumber);
+
+				for (Field field : fields) {
+					if (!field.type.structMember) throw new IOException("type "+field.type.name+" can't be used in a struct in line "+lineNumber);
+				}
+
+				structs.put(name, new Struct(name, fields));
+				continue;
+			}
+
+			matcher = COMMAND_PATTERN.matcher(line);
+			if (!matcher.matches()) throw new IOException("invalid command declaration in line "+lineNumber);
+
+			Direction direction = Direction.valueOf(matcher.group(1).toUpperCase(Locale.ENGLISH));
+			String name = matcher.group(2);
+			String command = matcher.group(3);
+
+			if (!names.add(name)) throw new IOException("duplicate name "+name+" in line "+lineNumber);
+			if (!commandNames.add(command)) throw new IOException("duplicate command "+command+" in line "+lineNumber);
+
+			ret.add(new Command(direction, name, command, parseFields(matcher.group(4), structs, lineNumber)));
+		}
+
+		return new Schema(new ArrayList<>(structs.values()), ret);
+	}
+
+	private static List<Field> parseFields(String declarations, Map<String, Struct> structs, int lineNumber) throws IOException {
+		List<Field> ret = new ArrayList<>();
+		Set<String> fieldNames = new HashSet<>();
+
+		for (String rawField : declarations.split(";")) {
+			rawField = rawField.strip();
+			if (rawField.isEmpty()) continue;
+
+			String[] parts = rawField.split("\\s+");
+			if (parts.length != 2) throw new IOException("invalid field declaration \""+rawField+"\" in line "+lineNumber);
+
+			Type type;
+			Struct struct = null;
+
+			if (parts[0].endsWith("[]")) {
+				type = Type.STRUCTS;
+				struct = structs.get(parts[0].substring(0, parts[0].length() - 2));
+				if (struct == null) throw new IOException("unknown struct "+parts[0]+" in line "+lineNumber);
+			} else {
+				type = Type.forName(parts[0]);
+				if (type == null || type == Type.STRUCTS) throw new IOException("unknown type "+parts[0]+" in line "+lineNumber);
+			}
+
+			if (!fieldNames.add(parts[1])) throw new IOException("duplicate field "+parts[1]+" in line "+lineNumber);
+			if (!ret.isEmpty() && ret.get(ret.size() - 1).type == Type.REST) throw new IOException("rest has to be the last field in line "+lineNumber);
+
+			ret.add(new Field(type, parts[1], struct));
+		}
+
+		return ret;
+	}
+
+	private static String generate(Schema schema, Path schemaFile) {
+		List<Command> commands = schema.commands;
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("// generated by src-gen/fcdiscord/gen/CodecGenerator.java from ").append(schemaFile.toString().replace('\\', '/')).append(", don't edit\n\n");
+		sb.append("package fcdiscord;\n\n");
+		sb.append("import java.nio.BufferUnderflowException;\n");
+		sb.append("import java.nio.ByteBuffer;\n");
+		sb.append("import java.nio.charset.StandardCharsets;\n");
+		sb.append("import java.util.ArrayList;\n");
+		sb.append("import java.util.Collection;\n");
+		sb.append("import java.util.List;\n\n");
+
+		sb.append("/*\n");
+		sb.append(" * Encoders and decoders for all api commands. The encoders return the unflipped frame as expected by\n");
+		sb.append(" * ApiCommon.frame and ChannelContext.frameAndWrite, the dispatch methods decode a frame's fields and pass them to\n");
+		sb.append(" * the matching handler method.\n");
+		sb.append(" */\n");
+		sb.append("public final class ApiCodec {\n");
+
+		// command constants
+
+		for (Command command : commands) {
+			sb.append("\tpublic static final String ").append(command.constantName()).append(" = \"").append(command.command).append("\";\n");
+		}
+
+		// structs
+
+		if (!schema.structs.isEmpty()) sb.append('\n');
+
+		for (Struct struct : schema.structs) {
+			sb.append("\tpublic record ").append(struct.name).append('(');
+
+			for (int i = 0; i < struct.fields.size(); i++) {
+				Field field = struct.fields.get(i);
+				if (i > 0) sb.append(", ");
+				sb.append(field.javaType()).append(' ').append(field.name);
+			}
+
+			sb.append(") { }\n");
+		}
+
+		// handler interfaces
+
+		for (Direction direction : Direction.values()) {
+			sb.append("\n\tpublic interface ").append(direction.handlerName).append("<C> {\n");
+
+			for (Command command : commands) {
+				if (command.direction != direction) continue;
+
+				sb.append("\t\tboolean handle").append(command.name).append("(C context");
+
+				for (Field field : command.fields) {
+					sb.append(", ").append(field.javaType()).append(' ').append(field.name);
+				}
+
+				sb.append(");").append(command.hasRest() ? " // data is only valid during the call\n" : "\n");
+			}
+
+			sb.append("\t\tboolean handleUnknown(C context, String cmd);\n");
+			sb.append("\t}\n");
+		}
+
+		// dispatch methods
+
+		for (Direction direction : Direction.values()) {
+			sb.append("\n\tpublic static <C> boolean dispatch").append(direction.name()).append("(C context, String cmd, ByteBuffer buffer, ").append(direction.handlerName).append("<C> handler) {\n");
+			sb.append("\t\tswitch (cmd) {\n");
+
+			for (Command command : commands) {
+				if (command.direction != direction) continue;
+
+				sb.append("\t\tcase ").append(command.constantName()).append(" -> {\n");
+
+				for (Field field : command.fields) {
+					sb.append("\t\t\t").append(field.javaType()).append(' ').append(field.name).append(" = ").append(field.decoder()).append(";\n");
+				}
+
+				sb.append("\n\t\t\treturn handler.handle").append(command.name).append("(context");
+
+				for (Field field : command.fields) {
+					sb.append(", ").append(field.name);
+				}
+
+				sb.append(");\n");
+				sb.append("\t\t}\n");
+			}
+
+			sb.append("\t\tdefault -> {\n");
+			sb.append("\t\t\treturn handler.handleUnknown(context, cmd);\n");
+			sb.append("\t\t}\n");
+			sb.append("\t\t}\n");
+			sb.append("\t}\n");
+		}
+
+		// command name decoding
+
+		sb.append("""
+
+					// reads a command name, known commands return their constant instead of allocating a new string
+					public static String readCommand(ByteBuffer buffer) {
+						int pos = buffer.position();
+						int len = 2 + (buffer.getShort(pos) & 0xffff);
+
+						if (len <= buffer.remaining()) {
+							for (int i = 0; i < COMMANDS.length; i++) {
+								if (matches(buffer, pos, COMMANDS_BYTES[i], len)) {
+									buffer.position(pos + len);
+
+									return COMMANDS[i];
+								}
+							}
+						}
+
+						return getString(buffer);
+					}
+
+					private static boolean matches(ByteBuffer buffer, int pos, byte[] data, int len) {
+						if (data.length != len) return false;
+
+						for (int i = 2; i < len; i++) {
+							if (buffer.get(pos + i) != data[i]) return false;
+						}
+
+						return true;
+					}
+				""");
+
+		// encoders
+
+		for (Command command : commands) {
+			sb.append("\n\tpublic static ByteBuffer encode").append(command.name).append('(');
+
+			for (int i = 0; i < command.fields.size(); i++) {
+				Field field = command.fields.get(i);
+				if (i > 0) sb.append(", ");
+				sb.append(field.encoderJavaType()).append(' ').append(field.name);
+			}
+
+			sb.append(") {\n");
+
+			int fixedSize = 4;
+			List<String> variableSizes = new ArrayList<>();
+
+			for (Field field : command.fields) {
+				switch (field.type) {
+				case STRING -> {
+					sb.append("\t\tbyte[] ").append(field.name).append("Bytes = encodeString(").append(field.name).append(");\n");
+					fixedSize += 2;
+					variableSizes.add(field.name+"Bytes.length");
+				}
+				case LONGS -> {
+					sb.append("\t\tif (").append(field.name).append(".size() > 0xffff) throw new IllegalArgumentException(\"oversized collection\");\n");
+					fixedSize += 2;
+					variableSizes.add(field.name+".size() * Long.BYTES");
+				}
+				case OPT_INT -> {
+					fixedSize += 1;
+					variableSizes.add("("+field.name+" != null ? Integer.BYTES : 0)");
+				}
+				case STRUCTS -> {
+					sb.append("\t\tif (").append(field.name).append(".size() > 0xffff) throw new IllegalArgumentException(\"oversized collection\");\n");
+					variableSizes.add("sizeOf"+field.struct.name+"List("+field.name+")"); // includes the count
+				}
+				case REST -> variableSizes.add(field.name+".remaining()");
+				default -> fixedSize += field.type.size;
+				}
+			}
+
+			sb.append("\t\tByteBuffer ret = ByteBuffer.allocate(").append(command.bytesName()).append(".length + ").append(fixedSize);
+
+			for (String size : variableSizes) {
+				sb.append(" + ").append(size);
+			}
+
+			sb.append(");\n");
+			sb.append("\t\tret.putInt(0);\n");
+			sb.append("\t\tret.put(").append(command.bytesName()).append(");\n");
+
+			for (Field field : command.fields) {
+				sb.append("\t\t").append(field.encoder("ret")).append(";\n");
+			}
+
+			sb.append("\n\t\treturn ret;\n");
+			sb.append("\t}\n");
+		}
+
+		// helpers
+
+		sb.append("""
+
+					private static byte[] encodeString(String str) {
+						byte[] ret = str.getBytes(StandardCharsets.UTF_8);
+						if (ret.length > 0xffff) throw new IllegalArgumentException("oversized string");
+
+						return ret;
+					}
+
+					private static void putString(ByteBuffer buffer, byte[] data) {
+						buffer.putShort((short) data.length);
+						buffer.put(data);
+					}
+
+					private static void putLongs(ByteBuffer buffer, Collection<Long> values) {
+						buffer.putShort((short) values.size());
+
+						for (long value : values) {
+							buffer.putLong(value);
+						}
+					}
+
+					private static void putOptInt(ByteBuffer buffer, Integer value) {
+						buffer.put((byte) (value != null ? 1 : 0));
+						if (value != null) buffer.putInt(value);
+					}
+
+					private static void putRest(ByteBuffer buffer, ByteBuffer data) { // leaves data's position unchanged
+						int len = data.remaining();
+						buffer.put(buffer.position(), data, data.position(), len);
+						buffer.position(buffer.position() + len);
+					}
+
+					private static String getString(ByteBuffer buffer) {
+						int len = buffer.getShort() & 0xffff;
+						if (len > buffer.remaining()) throw new BufferUnderflowException();
+
+						String ret;
+
+						if (buffer.hasArray()) { // decode in place
+							ret = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), len, StandardCharsets.UTF_8);
+						} else {
+							byte[] data = new byte[len];
+							buffer.get(buffer.position(), data);
+							ret = new String(data, StandardCharsets.UTF_8);
+						}
+
+						buffer.position(buffer.position() + len);
+
+						return ret;
+					}
+
+					private static List<Long> getLongs(ByteBuffer buffer) {
+						int count = buffer.getShort() & 0xffff;
+						if (count * Long.BYTES > buffer.remaining()) throw new BufferUnderflowException();
+
+						List<Long> ret = new ArrayList<>(count);
+
+						for (int i = 0; i < count; i++) {
+							ret.add(buffer.getLong());
+						}
+
+						return ret;
+					}
+
+					private static Integer getOptInt(ByteBuffer buffer) {
+						return buffer.get() != 0 ? buffer.getInt() : null;
+					}
+
+					private static byte[] commandBytes(String command) {
+						byte[] data = command.getBytes(StandardCharsets.UTF_8);
+						ByteBuffer ret = ByteBuffer.allocate(2 + data.length);
+						putString(ret, data);
+
+						return ret.array();
+					}
+
+				""");
+
+		for (Struct struct : schema.structs) {
+			generateStructHelpers(struct, sb);
+		}
+
+		if (!schema.structs.isEmpty()) {
+			sb.append("""
+						private static int utf8Length(String str) { // matches the length of str.getBytes(UTF_8)
+							int len = str.length();
+							int ret = 0;
+
+							for (int i = 0; i < len; i++) {
+								char c = str.charAt(i);
+
+								if (c < 0x80) {
+									ret++;
+								} else if (c < 0x800) {
+									ret += 2;
+								} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+									ret += 4;
+									i++;
+								} else if (Character.isSurrogate(c)) { // unpaired, encoded as '?'
+									ret++;
+								} else {
+									ret += 3;
+								}
+							}
+
+							return ret;
+						}
+
+					""");
+		}
+
+		for (Command command : commands) {
+			sb.append("\tprivate static final byte[] ").append(command.bytesName()).append(" = commandBytes(").append(command.constantName()).append(");\n");
+		}
+
+		sb.append("\n\tprivate static final String[] COMMANDS = {\n");
+
+		for (Command command : commands) {
+			sb.append("\t\t\t").append(command.constantName()).append(",\n");
+		}
+
+		sb.append("\t};\n");
+		sb.append("\tprivate static final byte[][] COMMANDS_BYTES = {\n");
+
+		for (Command command : commands) {
+			sb.append("\t\t\t").append(command.bytesName()).append(",\n");
+		}
+
+		sb.append("\t};\n");
+
+		sb.append("}\n");
+
+		return sb.toString();
+	}
+
+	private static void generateStructHelpers(Struct struct, StringBuilder sb) {
+		String type = struct.name;
+
+		// size
+
+		int fixedSize = 0;
+		List<String> variableSizes = new ArrayList<>();
+
+		for (Field field : struct.fields) {
+			switch (field.type) {
+			case STRING -> {
+				fixedSize += 2;
+				variableSizes.add("utf8Length(value."+field.name+"())");
+			}
+			case OPT_INT -> {
+				fixedSize += 1;
+				variableSizes.add("(value."+field.name+"() != null ? Integer.BYTES : 0)");
+			}
+			default -> fixedSize += field.type.size;
+			}
+		}
+
+		sb.append("\tprivate static int sizeOf").append(type).append("List(Collection<").append(type).append("> values) {\n");
+		sb.append("\t\tint ret = 2 + values.size() * ").append(fixedSize).append(";\n");
+
+		if (!variableSizes.isEmpty()) {
+			sb.append("\n\t\tfor (").append(type).append(" value : values) {\n");
+			sb.append("\t\t\tret += ").append(String.join(" + ", variableSizes)).append(";\n");
+			sb.append("\t\t}\n");
+		}
+
+		sb.append("\n\t\treturn ret;\n");
+		sb.append("\t}\n\n");
+
+		// encoder
+
+		sb.append("\tprivate static void put").append(type).append("List(ByteBuffer buffer, Collection<").append(type).append("> values) {\n");
+		sb.append("\t\tbuffer.putShort((short) values.size());\n\n");
+		sb.append("\t\tfor (").append(type).append(" value : values) {\n");
+
+		for (Field field : struct.fields) {
+			sb.append("\t\t\t").append(field.type.encoder.replace("ret", "buffer").replace("$Bytes", "encodeString(value."+field.name+"())").replace("$", "value."+field.name+"()")).append(";\n");
+		}
+
+		sb.append("\t\t}\n");
+		sb.append("\t}\n\n");
+
+		// decoder
+
+		sb.append("\tprivate static List<").append(type).append("> get").append(type).append("List(ByteBuffer buffer) {\n");
+		sb.append("\t\tint count = buffer.getShort() & 0xffff;\n");
+		sb.append("\t\tList<").append(type).append("> ret = new ArrayList<>(count);\n\n");
+		sb.append("\t\tfor (int i = 0; i < count; i++) {\n");
+
+		for (Field field : struct.fields) {
+			sb.append("\t\t\t").append(field.javaType()).append(' ').append(field.name).append(" = ").append(field.decoder()).append(";\n");
+		}
+
+		sb.append("\t\t\tret.add(new ").append(type).append('(');
+
+		for (int i = 0; i < struct.fields.size(); i++) {
+			if (i > 0) sb.append(", ");
+			sb.append(struct.fields.get(i).name);
+		}
+
+		sb.append("));\n");
+		sb.append("\t\t}\n\n");
+		sb.append("\t\treturn ret;\n");
+		sb.append("\t}\n\n");
+	}
+
+	private enum Direction {
+		C2S("C2SHandler"),
+		S2C("S2CHandler");
+
+		Direction(String handlerName) {
+			this.handlerName = handlerName;
+		}
+
+		final String handlerName;
+	}
+
+	private enum Type {
+		BOOL("bool", "boolean", "boolean", 1, true, "buffer.get() != 0", "ret.put((byte) ($ ? 1 : 0))"),
+		INT("int", "int", "int", 4, true, "buffer.getInt()", "ret.putInt($)"),
+		LONG("long", "long", "long", 8, true, "buffer.getLong()", "ret.putLong($)"),
+		STRING("string", "String", "String", -1, true, "getString(buffer)", "putString(ret, $Bytes)"),
+		LONGS("longs", "List<Long>", "Collection<Long>", -1, false, "getLongs(buffer)", "putLongs(ret, $)"),
+		OPT_INT("optInt", "Integer", "Integer", -1, true, "getOptInt(buffer)", "putOptInt(ret, $)"),
+		REST("rest", "ByteBuffer", "ByteBuffer", -1, false, "buffer", "putRest(ret, $)"),
+		STRUCTS("<struct>[]", "List<%s>", "Collection<%s>", -1, false, "get%sList(buffer)", "put%sList(ret, $)"); // %s is replaced with the struct name
+
+		Type(String name, String javaType, String encoderJavaType, int size, boolean structMember, String decoder, String encoder) {
+			this.name = name;
+			this.javaType = javaType;
+			this.encoderJavaType = encoderJavaType;
+			this.size = size;
+			this.structMember = structMember;
+			this.decoder = decoder;
+			this.encoder = encoder;
+		}
+
+		static Type forName(String name) {
+			for (Type type : values()) {
+				if (type.name.equals(name)) return type;
+			}
+
+			return null;
+		}
+
+		final String name;
+		final String javaType;
+		final String encoderJavaType;
+		final int size; // fixed encoded size, -1 if variable
+		final boolean structMember; // usable as struct field
+		final String decoder;
+		final String encoder; // $ is replaced with the field name
+	}
+
+	private record Schema(List<Struct> structs, List<Command> commands) { }
+	private record Struct(String name, List<Field> fields) { }
+
+	private record Field(Type type, String name, Struct struct) { // struct is only set for STRUCTS
+		String javaType() {
+			return struct != null ? type.javaType.formatted(struct.name) : type.javaType;
+		}
+
+		String encoderJavaType() {
+			return struct != null ? type.encoderJavaType.formatted(struct.name) : type.encoderJavaType;
+		}
+
+		String decoder() {
+			return struct != null ? type.decoder.formatted(struct.name) : type.decoder;
+		}
+
+		String encoder(String buffer) {
+			String ret = struct != null ? type.encoder.formatted(struct.name) : type.encoder;
+
+			return ret.replace("ret", buffer).replace("$", name);
+		}
+	}
+
+	private record Command(Direction direction, String name, String command, List<Field> fields) {
+		String constantName() {
+			return "COMMAND_"+direction.name()+"_"+name.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase(Locale.ENGLISH);
+		}
+
+		String bytesName() {
+			return constantName()+"_BYTES";
+		}
+
+		boolean hasRest() {
+			return !fields.isEmpty() && fields.get(fields.size() - 1).type == Type.REST;
+		}
+	}
+
+	private static final Pattern STRUCT_PATTERN = Pattern.compile("struct\\s+(\\w+)\\s*\\{(.*)\\}");
+	private static final Pattern COMMAND_PATTERN = Pattern.compile("(c2s|s2c)\\s+(\\w+)\\s+\"([^\"]+)\"\\s*\\{(.*)\\}");
+}
@@ -1,55 +1,130 @@
 package fcdiscord.server;
 
 import java.awt.Color;
-import java.net.InetSocketAddress;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
 import java.net.URL;
+import java.net.URLConnection;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
+import fcdiscord.ApiCodec;
 import fcdiscord.ApiCommon;
-import org.javacord.api.entity.channel.ServerTextChannel;
+import fcdiscord.RingChannel;
+import org.javacord.api.DiscordApi;
+import org.javacord.api.entity.message.MessageAttachment;
 import org.javacord.api.entity.message.MessageAuthor;
-import org.javacord.api.entity.message.MessageBuilder;
-import org.javacord.api.entity.message.WebhookMessageBuilder;
-import org.javacord.api.entity.message.mention.AllowedMentions;
-import org.javacord.api.entity.message.mention.AllowedMentionsBuilder;
 import org.javacord.api.entity.permission.Role;
 import org.javacord.api.entity.server.Server;
 import org.javacord.api.entity.user.User;
-import org.javacord.api.entity.webhook.IncomingWebhook;
 
 public final class ApiServer extends ApiCommon {
-	public ApiServer(InetSocketAddress address, String pw) {
+	public ApiServer(Collection<? extends SocketAddress> addresses, Path shmDir, String pw) {
+		super("server");
+
+		if (addresses.isEmpty()) throw new IllegalArgumentException("no listen address");
+
+		this.shmDir = shmDir != null ? shmDir.toAbsolutePath().normalize() : null;
 		this.pw = pw;
 
-		listenThread = new ListenThread(address);
+		listenThreads = new ArrayList<>(addresses.size());
+
+		for (SocketAddress address : addresses) {
+			listenThreads.add(new ListenThread(address));
+		}
 	}
 
 	@Override
 	public void close() {
-		listenThread.interrupt();
+		for (ListenThread thread : listenThreads) {
+			thread.interrupt();
+		}
 
 		for (ServerChannelContext context : connections) {
 			context.closeChannel();
 		}
+
+		streamExecutor.shutdownNow();
+
+		MessageJournal journal = this.journal;
+		if (journal != null) journal.close();
+
+		OutboundQueue queue = outboundQueue;
+		if (queue != null) queue.close();
+
+		FairScheduler scheduler = this.scheduler;
+		if (scheduler != null) scheduler.close();
+
+		Relay relay = this.relay;
+		if (relay != null) relay.close();
+
+		apiStats.close();
+		closeRecorder();
+	}
+
+	// enables fetchAttachment, the directory is used exclusively by the cache
+	public void setAttachmentCache(Path dir, long maxSize) throws IOException {
+		attachmentCache = new AttachmentCache(dir, maxSize, apiStats);
+	}
+
+	// enables fetchHistory by journaling all messages of the added servers' channels, the directory is used exclusively by the journal
+	public void setJournal(Path dir, long maxSize) throws IOException {
+		journal = new MessageJournal(dir, maxSize);
+	}
+
+	// makes an attachment available to fetchAttachment, done for all attachments of published guild messages
+	public void registerAttachment(long attachmentId, URL url, long size) {
+		AttachmentCache cache = attachmentCache;
+		if (cache != null) cache.register(attachmentId, url, size);
 	}
 
 	@Override
 	protected void close(ChannelContext context) {
-		connections.remove(context);
+		ServerChannelContext serverContext = (ServerChannelContext) context;
+		connections.remove(serverContext);
+		discardUploads(serverContext);
+
+		List<Long> channels;
+
+		synchronized (serverContext.subscribedChannels) {
+			channels = new ArrayList<>(serverContext.subscribedChannels);
+		}
+
+		for (long channelId : channels) {
+			unsubscribe(serverContext, channelId);
+		}
+
+		if (serverContext.receiveRelayed) updateRelayEcho();
 
 		super.close(context);
 	}
@@ -58,177 +133,1013 @@ public final class ApiServer extends ApiCommon {
 	protected boolean processCommand(ChannelContext rawContext, String cmd, ByteBuffer buffer, boolean eof) {
 		ServerChannelContext context = (ServerChannelContext) rawContext;
 
-		if (!context.loggedIn) {
-			if (!cmd.equals(COMMAND_C2S_LOGIN)) {
-				System.out.printf("[DCAPI] missing login from %s%n", rawContext.getRemoteAddress());
+		if (!context.loggedIn && !cmd.equals(ApiCodec.COMMAND_C2S_LOGIN) && !cmd.equals(ApiCodec.COMMAND_C2S_SHM_CONNECT)) {
+			System.out.printf("[DCAPI] missing login from %s%n", context.getRemoteAddress());
+			apiStats.onFailedLogin();
+			return false;
+		}
+
+		return ApiCodec.dispatchC2S(context, cmd, buffer, commandHandler);
+	}
+
+	private final class CommandHandler implements ApiCodec.C2SHandler<ServerChannelContext> {
+		@Override
+		public boolean handleLogin(ServerChannelContext context, int version, String password) {
+			if (context.loggedIn) {
+				System.out.printf("[DCAPI] repeated login from %s%n", context.getRemoteAddress());
 				return false;
 			}
 
-			int version = buffer.getInt();
-
-			if (version != API_VERSION) {
-				System.out.printf("[DCAPI] invalid api version %d from %s%n", version, rawContext.getRemoteAddress());
+			if (version < MIN_API_VERSION || version > API_VERSION) {
+				System.out.printf("[DCAPI] invalid api version %d from %s%n", version, context.getRemoteAddress());
+				apiStats.onFailedLogin();
 				return false;
 			}
 
-			if (!readString(buffer).equals(pw)) {
-				System.out.printf("[DCAPI] invalid password from %s%n", rawContext.getRemoteAddress());
+			FairScheduler.Tenant tenant = null;
+
+			if (!password.equals(pw) && (tenant = tenants.get(password)) == null) {
+				System.out.printf("[DCAPI] invalid password from %s%n", context.getRemoteAddress());
+				apiStats.onFailedLogin();
 				return false;
 			}
 
-			System.out.printf("[DCAPI] successful login from %s%n", rawContext.getRemoteAddress());
+			System.out.printf("[DCAPI] successful login from %s%s%n", context.getRemoteAddress(), tenant != null ? " as "+tenant : "");
 			context.loggedIn = true;
+			context.apiVersion = version;
+			context.tenant = tenant != null ? tenant : defaultTenant;
+
 			return true;
 		}
 
-		switch (cmd) {
-		case COMMAND_C2S_SEND_MESSAGE -> {
-			ServerTextChannel channel = readChannel(buffer);
+		@Override
+		public boolean handleShmConnect(ServerChannelContext context, int version, String c2sName, String s2cName) {
+			if (!context.loggedIn) attachSharedMemory(context, version, c2sName, s2cName);
+
+			return false; // the bootstrap connection isn't used for commands anymore
+		}
 
-			if (channel != null) {
-				new MessageBuilder().append(readString(buffer)).setAllowedMentions(NO_MENTIONS).send(channel);
+		@Override
+		public boolean handleSendMessage(ServerChannelContext context, long channelId, String content) {
+			long startTime = System.nanoTime();
+			DiscordBackend backend = getMessageBackend();
+
+			if (backend != null) {
+				runDiscordCommand(context, () -> trackCompletion(context, startTime, trackOrigin(context, channelId, content, () -> backend.sendMessage(channelId, content))));
 			}
+
+			return true;
 		}
-		case COMMAND_C2S_SEND_WEBHOOK_MESSAGE -> {
-			ServerTextChannel channel = readChannel(buffer);
-			if (channel == null) break;
 
-			String msg = readString(buffer);
-			String user = readString(buffer);
-			URL avatarUrl;
+		@Override
+		public boolean handleSendWebhookMessage(ServerChannelContext context, long channelId, String content, String user, String avatarUrl) {
+			long startTime = System.nanoTime();
+			DiscordBackend backend = getMessageBackend();
+			URL url;
 
 			try {
-				avatarUrl = new URL(readString(buffer));
+				url = new URL(avatarUrl);
 			} catch (MalformedURLException e) {
 				e.printStackTrace();
-				break;
+				return true;
 			}
 
-			getCreateWebHook(channel).whenComplete((hook, exc) -> {
-				if (exc != null) {
-					exc.printStackTrace();
-					return;
-				}
+			if (backend != null) {
+				runDiscordCommand(context, () -> trackCompletion(context, startTime, trackOrigin(context, channelId, content, () -> backend.sendWebhookMessage(channelId, content, user, url))));
+			}
 
-				new WebhookMessageBuilder()
-				.append(msg)
-				.setDisplayName(user)
-				.setDisplayAvatar(avatarUrl)
-				.setAllowedMentions(NO_MENTIONS)
-				.send(hook);
-			});
+			return true;
+		}
+
+		@Override
+		public boolean handleSendWebhookMessageRef(ServerChannelContext context, long channelId, int identityRef, String content) {
+			long startTime = System.nanoTime();
+			DiscordBackend backend = getMessageBackend();
+			WebhookIdentity identity = context.webhookIdentities.get(identityRef);
+
+			if (identity == null) {
+				System.err.printf("[DCAPI] unknown webhook identity %d from %s%n", identityRef, context.getRemoteAddress());
+				return true;
+			}
+
+			if (backend != null) {
+				runDiscordCommand(context, () -> trackCompletion(context, startTime, trackOrigin(context, channelId, content, () -> backend.sendWebhookMessage(channelId, content, identity.user, identity.avatarUrl))));
+			}
+
+			return true;
+		}
+
+		@Override
+		public boolean handleDefineWebhookIdentity(ServerChannelContext context, int ref, String user, String avatarUrl) { // also updates existing identities
+			URL url;
+
+			try {
+				url = new URL(avatarUrl);
+			} catch (MalformedURLException e) {
+				e.printStackTrace();
+				return true;
+			}
+
+			if (context.webhookIdentities.size() >= MAX_WEBHOOK_IDENTITIES && !context.webhookIdentities.containsKey(ref)) {
+				System.err.printf("[DCAPI] too many webhook identities from %s%n", context.getRemoteAddress());
+				return false;
+			}
+
+			context.webhookIdentities.put(ref, new WebhookIdentity(user, url));
+
+			return true;
+		}
+
+		@Override
+		public boolean handleEvictWebhookIdentity(ServerChannelContext context, int ref) {
+			context.webhookIdentities.remove(ref);
+
+			return true;
+		}
+
+		@Override
+		public boolean handleAddReaction(ServerChannelContext context, long channelId, long messageId, String reaction) {
+			addReaction(context, channelId, messageId, reaction);
+
+			return true;
 		}
-		case COMMAND_C2S_ADD_REACTION -> {
-			ServerTextChannel channel = readChannel(buffer);
-			long messageId = buffer.getLong();
-			String reaction = readString(buffer);
-			channel.getMessageById(messageId).thenAccept(m -> m.addReaction(reaction));
+
+		@Override
+		public boolean handleAddReactions(ServerChannelContext context, List<ApiCodec.Reaction> reactions) {
+			for (ApiCodec.Reaction reaction : reactions) {
+				addReaction(context, reaction.channelId(), reaction.messageId(), reaction.reaction());
+			}
+
+			return true;
 		}
-		case COMMAND_C2S_SUBSCRIBE_CHANNEL -> {
-			int count = buffer.getShort() & 0xffff;
 
-			for (int i = 0; i < count; i++) {
-				context.subscribedChannels.add(buffer.getLong());
+		@Override
+		public boolean handleSubscribeChannel(ServerChannelContext context, List<Long> channelIds) {
+			for (long channelId : channelIds) {
+				subscribe(context, channelId);
 			}
+
+			return true;
 		}
-		case COMMAND_C2S_UNSUBSCRIBE_CHANNEL -> {
-			int count = buffer.getShort() & 0xffff;
 
-			for (int i = 0; i < count; i++) {
-				context.subscribedChannels.remove(buffer.getLong());
+		@Override
+		public boolean handleUnsubscribeChannel(ServerChannelContext context, List<Long> channelIds) {
+			for (long channelId : channelIds) {
+				unsubscribe(context, channelId);
 			}
+
+			return true;
 		}
-		default -> {
+
+		@Override
+		public boolean handleSetRelayEcho(ServerChannelContext context, boolean enabled) {
+			context.receiveRelayed = enabled;
+			updateRelayEcho();
+
+			return true;
+		}
+
+		@Override
+		public boolean handleSetRelayMode(ServerChannelContext context, boolean enabled) {
+			context.relayMode = enabled;
+
+			return true;
+		}
+
+		@Override
+		public boolean handleUploadBegin(ServerChannelContext context, int uploadId, long channelId, long size, String fileName, String content) {
+			beginUpload(context, uploadId, channelId, size, fileName, content);
+
+			return true;
+		}
+
+		@Override
+		public boolean handleUploadChunk(ServerChannelContext context, int uploadId, ByteBuffer data) {
+			Upload upload = context.uploads.get(uploadId);
+			if (upload == null) return true; // already failed
+
+			String error;
+
+			if (upload.size + data.remaining() > MAX_UPLOAD_SIZE) {
+				error = "upload too large";
+			} else {
+				try {
+					upload.size += data.remaining();
+
+					while (data.hasRemaining()) {
+						upload.channel.write(data);
+					}
+
+					return true;
+				} catch (IOException e) {
+					error = e.toString();
+				}
+			}
+
+			context.uploads.remove(uploadId);
+			upload.discard();
+			sendUploadResult(context, uploadId, 0, error);
+
+			return true;
+		}
+
+		@Override
+		public boolean handleUploadEnd(ServerChannelContext context, int uploadId, boolean abort) {
+			long startTime = System.nanoTime();
+			Upload upload = context.uploads.remove(uploadId);
+			if (upload == null) return true; // already failed
+
+			if (abort) {
+				upload.discard();
+			} else if (!runDiscordCommand(context, () -> finishUpload(context, uploadId, upload, backend, startTime))) {
+				upload.discard();
+				sendUploadResult(context, uploadId, 0, "quota exceeded");
+			}
+
+			return true;
+		}
+
+		@Override
+		public boolean handleFetchAttachment(ServerChannelContext context, int requestId, long attachmentId) {
+			fetchAttachment(context, requestId, attachmentId);
+
+			return true;
+		}
+
+		@Override
+		public boolean handleFetchHistory(ServerChannelContext context, int requestId, long channelId, long beforeId, int limit) {
+			fetchHistory(context, requestId, channelId, beforeId, limit);
+
+			return true;
+		}
+
+		@Override
+		public boolean handleUnknown(ServerChannelContext context, String cmd) {
 			System.err.printf("[DCAPI] Unknown command: %s%n", cmd);
+
 			return false;
 		}
+	}
+
+	private void beginUpload(ServerChannelContext context, int uploadId, long channelId, long size, String fileName, String msg) {
+		String error;
+
+		if (fileName.isEmpty()) {
+			error = "missing file name";
+		} else if (size > MAX_UPLOAD_SIZE) {
+			error = "upload too large";
+		} else if (context.uploads.size() >= MAX_CONCURRENT_UPLOADS) {
+			error = "too many concurrent uploads";
+		} else if (context.uploads.containsKey(uploadId)) {
+			error = "duplicate upload id";
+		} else {
+			try {
+				context.uploads.put(uploadId, new Upload(channelId, fileName, msg));
+				return;
+			} catch (IOException e) {
+				error = e.toString();
+			}
 		}
 
-		return true;
+		sendUploadResult(context, uploadId, 0, error);
 	}
 
-	public synchronized void setServer(Server server) {
-		this.server = server;
-		webhooks.clear();
+	private void finishUpload(ServerChannelContext context, int uploadId, Upload upload, DiscordBackend backend, long startTime) {
+		CompletableFuture<Long> future;
 
-		if (server != null && !registeredMessageListener) {
-			server.getApi().addMessageCreateListener(event -> {
-				Long channelId = event.getChannel().getId();
+		try {
+			upload.channel.close();
+			future = backend != null ? trackOrigin(context, upload.channelId, upload.content, () -> backend.sendFile(upload.channelId, upload.content, upload.file, upload.fileName)) : null;
+		} catch (Throwable t) {
+			future = CompletableFuture.failedFuture(t);
+		}
 
-				for (ServerChannelContext context : connections) {
-					if (!context.subscribedChannels.contains(channelId)) continue;
+		if (future == null) {
+			upload.discard();
+			sendUploadResult(context, uploadId, 0, "channel inaccessible");
+			return;
+		}
 
-					MessageAuthor author = event.getMessageAuthor();
-					List<Long> roleIds;
-					User user = author.asUser().orElse(null);
+		trackCompletion(context, startTime, future);
 
-					if (user == null) {
-						roleIds = Collections.emptyList();
-					} else {
-						List<Role> roles = user.getRoles(server);
-						roleIds = new ArrayList<>(roles.size());
+		future.whenComplete((messageId, exc) -> {
+			upload.discard();
 
-						for (Role role : roles) {
-							roleIds.add(role.getId());
-						}
-					}
+			if (exc == null) {
+				sendUploadResult(context, uploadId, messageId, "");
+			} else {
+				sendUploadResult(context, uploadId, 0, (exc.getCause() != null ? exc.getCause() : exc).toString());
+			}
+		});
+	}
+
+	/*
+	 * Reactions to recently relayed messages may omit the channel (0) and aren't sent again if the same reaction was
+	 * already added through the api, e.g. by several game servers acknowledging the same chat message.
+	 */
+	private void addReaction(ServerChannelContext context, long channelId, long messageId, String reaction) {
+		long startTime = System.nanoTime();
+		DiscordBackend backend = this.backend;
+		if (backend == null) return;
+
+		RecentMessage message;
+
+		synchronized (recentMessages) {
+			message = recentMessages.get(messageId);
+		}
 
-					Color roleColor = author.getRoleColor().orElse(null);
-
-					ByteBuffer buffer = commandBuffer(COMMAND_S2C_ON_MESSAGE, 24);
-					buffer.putLong(event.getMessageId());
-					buffer.putLong(event.getChannel().getId());
-					buffer.putLong(author.getId());
-					buffer = writeString(author.getDisplayName(), buffer);
-					buffer = reserve(6, buffer);
-					buffer.put((byte) (author.isBotUser() || author.isWebhook() ? 1 : 0));
-					writeLongs(roleIds, buffer);
-					buffer.put((byte) (roleColor != null ? 1 : 0));
-					if (roleColor != null) buffer.putInt(roleColor.getRGB());
-					buffer = writeString(event.getMessageContent(), buffer);
-					context.frameAndWrite(buffer);
+		if (channelId == 0) {
+			if (message == null) {
+				System.err.printf("[DCAPI] reaction to unknown message %d without channel%n", messageId);
+				return;
+			}
+
+			channelId = message.channelId;
+		} else if (message != null && message.channelId != channelId) {
+			System.err.printf("[DCAPI] reaction to message %d in wrong channel %d%n", messageId, channelId);
+			return;
+		}
+
+		if (message != null && !message.addReaction(reaction)) return; // already added
+
+		long targetChannelId = channelId;
+
+		boolean queued = runDiscordCommand(context, () -> {
+			CompletableFuture<Void> future = backend.addReaction(targetChannelId, messageId, reaction);
+
+			if (message != null) { // allow retrying failed reactions
+				if (future == null) {
+					message.removeReaction(reaction);
+				} else {
+					future.whenComplete((res, exc) -> {
+						if (exc != null) message.removeReaction(reaction);
+					});
 				}
+			}
+
+			trackCompletion(context, startTime, future);
+		});
+
+		if (!queued && message != null) message.removeReaction(reaction);
+	}
+
+	// runs a command calling Discord, subject to the connection's tenant quota and fair scheduling if tenants are enabled
+	private boolean runDiscordCommand(ServerChannelContext context, Runnable command) {
+		FairScheduler.Tenant tenant = context.tenant;
+
+		if (tenant == null) {
+			command.run();
+			return true;
+		}
+
+		return scheduler.submit(tenant, command);
+	}
+
+	private static void discardUploads(ServerChannelContext context) {
+		synchronized (context.uploads) {
+			for (Upload upload : context.uploads.values()) {
+				upload.discard();
+			}
+
+			context.uploads.clear();
+		}
+	}
+
+	private static void sendUploadResult(ChannelContext context, int uploadId, long messageId, String error) {
+		context.frameAndWrite(ApiCodec.encodeUploadResult(uploadId, messageId, error), Priority.HIGH); // not ordered with anything else
+	}
+
+	private void fetchAttachment(ServerChannelContext context, int requestId, long attachmentId) {
+		AttachmentCache cache = attachmentCache;
+		Relay relay = this.relay;
+
+		if (cache == null && relay == null) {
+			sendAttachmentEnd(context, requestId, 0, "attachment fetching disabled");
+			return;
+		}
+
+		if (context.activeFetches.incrementAndGet() > MAX_CONCURRENT_FETCHES) {
+			context.activeFetches.decrementAndGet();
+			sendAttachmentEnd(context, requestId, 0, "too many concurrent fetches");
+			return;
+		}
+
+		if (cache == null) { // relay mode, served by the upstream server's cache
+			relay.fetchAttachment(context, requestId, attachmentId).whenComplete((size, exc) -> {
+				context.activeFetches.decrementAndGet();
+				sendAttachmentEnd(context, requestId, exc == null ? size : 0, Relay.getError(exc));
+			});
+
+			return;
+		}
+
+		cache.fetch(attachmentId).whenComplete((entry, exc) -> {
+			if (exc != null) {
+				context.activeFetches.decrementAndGet();
+				sendAttachmentEnd(context, requestId, 0, (exc.getCause() != null ? exc.getCause() : exc).toString());
+				return;
+			}
+
+			try {
+				streamExecutor.execute(() -> streamAttachment(context, requestId, cache, entry));
+			} catch (RejectedExecutionException e) { // shutting down
+				cache.release(entry);
+				context.activeFetches.decrementAndGet();
+			}
+		});
+	}
+
+	private static void streamAttachment(ServerChannelContext context, int requestId, AttachmentCache cache, AttachmentCache.Entry entry) {
+		long size = 0;
+		String error = "";
+
+		try (FileChannel channel = FileChannel.open(entry.file, StandardOpenOption.READ)) {
+			ByteBuffer chunk = ByteBuffer.allocate(ATTACHMENT_CHUNK_SIZE);
+
+			while (channel.read(chunk.clear()) >= 0) {
+				size += chunk.position();
+
+				if (!context.awaitPendingWriteBytes(ATTACHMENT_MAX_PENDING) // don't let the stream starve the connection's other traffic
+						|| !context.frameAndWrite(ApiCodec.encodeAttachmentChunk(requestId, chunk.flip()))) return; // disconnected
+			}
+		} catch (IOException e) {
+			error = e.toString();
+		} catch (InterruptedException e) { // shutting down
+			return;
+		} finally {
+			cache.release(entry);
+			context.activeFetches.decrementAndGet();
+		}
+
+		sendAttachmentEnd(context, requestId, size, error);
+	}
+
+	private static void sendAttachmentEnd(ChannelContext context, int requestId, long size, String error) {
+		context.frameAndWrite(ApiCodec.encodeAttachmentEnd(requestId, size, error));
+	}
+
+	private void fetchHistory(ServerChannelContext context, int requestId, long channelId, long beforeId, int limit) {
+		MessageJournal journal = this.journal;
+		Relay relay = this.relay;
+
+		if (journal == null && relay != null) { // served by the upstream server's journal
+			relay.fetchHistory(context, requestId, channelId, beforeId, limit).whenComplete((count, exc) -> {
+				context.frameAndWrite(ApiCodec.encodeHistoryEnd(requestId, exc == null ? count : 0, Relay.getError(exc)));
 			});
 
-			registeredMessageListener = true;
+			return;
+		}
+
+		if (journal == null) {
+			context.frameAndWrite(ApiCodec.encodeHistoryEnd(requestId, 0, "history disabled"));
+			return;
+		}
+
+		limit = Math.max(0, Math.min(limit, MAX_HISTORY_LIMIT));
+		List<ByteBuffer> messages = new ArrayList<>(limit);
+		int count = journal.read(channelId, beforeId, limit, message -> messages.add(ApiCodec.encodeHistoryMessage(requestId, message)));
+
+		for (ByteBuffer message : messages) { // outside the journal's lock
+			if (!context.frameAndWrite(message)) return; // disconnected
+		}
+
+		context.frameAndWrite(ApiCodec.encodeHistoryEnd(requestId, count, ""));
+	}
+
+	private void attachSharedMemory(ChannelContext bootstrapContext, int version, String c2sName, String s2cName) {
+		if (shmDir == null) {
+			System.out.printf("[DCAPI] shared memory transport requested by %s, but not enabled%n", bootstrapContext.getRemoteAddress());
+			return;
+		}
+
+		if (version < MIN_API_VERSION || version > API_VERSION) {
+			System.out.printf("[DCAPI] invalid api version %d from %s%n", version, bootstrapContext.getRemoteAddress());
+			return;
+		}
+
+		RingChannel ring;
+
+		try {
+			Path c2sFile = resolveShmFile(c2sName);
+			Path s2cFile = resolveShmFile(s2cName);
+			ring = RingChannel.open(c2sFile, s2cFile, bootstrapContext.detachChannel()); // the bootstrap connection stays as the doorbell
+		} catch (IOException e) {
+			System.out.printf("[DCAPI] shared memory mapping for %s failed: %s%n", bootstrapContext.getRemoteAddress(), e);
+			return;
+		}
+
+		System.out.printf("[DCAPI] shared memory connection %s from %s%n", ring, bootstrapContext.getRemoteAddress());
+		ServerChannelContext context = new ServerChannelContext();
+		connections.add(context);
+		context.init(ring);
+	}
+
+	private Path resolveShmFile(String name) throws IOException {
+		if (name.isEmpty() || name.startsWith(".") || name.contains("/") || name.contains("\\")) throw new IOException("invalid ring file name: "+name);
+
+		Path ret = shmDir.resolve(name).normalize();
+		if (!shmDir.equals(ret.getParent())) throw new IOException("invalid ring file name: "+name);
+
+		return ret;
+	}
+
+	/*
+	 * Remembers which connection sent a message so its echo from the gateway isn't delivered back to it. The echo may
+	 * arrive before the send future completes with the message id, such sends are matched by channel and content, with
+	 * the leading and trailing whitespace Discord removes stripped. Text sends through a relay complete without an id,
+	 * they stay pending while the upstream echo is enabled until their echo arrives or they expire.
+	 */
+	private <T> CompletableFuture<T> trackOrigin(ServerChannelContext context, long channelId, String content, Supplier<CompletableFuture<T>> send) {
+		PendingSend pending = new PendingSend(context, channelId, content.strip());
+		pendingSends.add(pending); // before sending, the echo could otherwise overtake it
+		CompletableFuture<T> future;
+
+		try {
+			future = send.get();
+		} catch (Throwable t) {
+			pendingSends.remove(pending);
+			throw t;
+		}
+
+		if (future == null) {
+			pendingSends.remove(pending);
+			return null;
+		}
+
+		future.whenComplete((messageId, exc) -> {
+			synchronized (origins) { // atomically with findOrigin, an echo in between would find neither
+				expireRelayedSends();
+
+				if (messageId == null && exc == null && isRelayEchoing()) {
+					// sent through the relay without returning the id, the echo from upstream is matched by content
+					pending.expireTime = System.nanoTime() + RELAYED_SEND_EXPIRY_NS;
+				} else if (pendingSends.remove(pending) // not consumed by an echo overtaking the completion
+						&& messageId instanceof Long id) {
+					origins.put(id, context);
+				}
+			}
+		});
+
+		return future;
+	}
+
+	private ServerChannelContext findOrigin(long messageId, long channelId, String content, boolean ownAuthor) {
+		synchronized (origins) {
+			ServerChannelContext ret = origins.remove(messageId); // each message is only echoed once
+			if (ret != null || !ownAuthor) return ret;
+
+			expireRelayedSends();
+
+			for (PendingSend pending : pendingSends) {
+				if (pending.channelId == channelId && pending.content.equals(content) && pendingSends.remove(pending)) {
+					return pending.context;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	// drops relayed sends whose echo didn't arrive in time, e.g. because the upstream echo got disabled, caller holds origins
+	private void expireRelayedSends() {
+		long time = System.nanoTime();
+
+		for (PendingSend pending : pendingSends) {
+			if (pending.expireTime != 0 && time - pending.expireTime > 0) pendingSends.remove(pending);
+		}
+	}
+
+	private boolean isRelayEchoing() {
+		Relay relay = this.relay;
+
+		return relay != null && relay.isEchoing();
+	}
+
+	// a relay only gets the echo of api sends from upstream while one of its connections asked for relayed messages
+	private void updateRelayEcho() {
+		Relay relay = this.relay;
+		if (relay == null) return;
+
+		synchronized (relay) { // computed under the lock, concurrent updates could otherwise apply a stale result last
+			boolean echo = false;
+
+			for (ServerChannelContext context : connections) {
+				if (context.receiveRelayed) {
+					echo = true;
+					break;
+				}
+			}
+
+			relay.setEcho(echo);
 		}
 	}
 
-	private ServerTextChannel readChannel(ByteBuffer buffer) {
-		Server server = this.server;
-		if (server == null) return null;
+	private static void trackCompletion(ChannelContext context, long startTime, CompletableFuture<?> future) {
+		if (future == null) return; // inaccessible channel
+
+		future.whenComplete((res, exc) -> {
+			context.getStats().recordCommandLatency(System.nanoTime() - startTime, exc != null);
+			if (exc != null) exc.printStackTrace();
+		});
+	}
 
-		return server.getTextChannelById(buffer.getLong()).orElse(null);
+	public void setBackend(DiscordBackend backend) {
+		this.backend = backend;
 	}
 
-	private CompletableFuture<IncomingWebhook> getCreateWebHook(ServerTextChannel channel) {
-		IncomingWebhook ret = webhooks.get(channel);
-		if (ret != null) return CompletableFuture.completedFuture(ret);
+	/*
+	 * Makes text sends durable, they are committed to the file before sending and retried until Discord accepts them.
+	 * Sends still pending from a previous run are replayed once a backend is available.
+	 */
+	public void setOutboundQueue(Path file) throws IOException {
+		outboundQueue = new OutboundQueue(file, () -> backend);
+	}
+
+	/*
+	 * Schedules the Discord-bound commands of all connections fairly within rate (commands/s), see FairScheduler.
+	 * Connections using the server's password become the default tenant, without a quota of its own.
+	 */
+	public synchronized void enableTenants(double rate) {
+		if (scheduler != null) throw new IllegalStateException("tenants already enabled");
+
+		scheduler = new FairScheduler(rate, (int) Math.ceil(rate), apiStats);
+		defaultTenant = scheduler.createTenant(DEFAULT_TENANT, Double.POSITIVE_INFINITY, 1, 1);
+	}
+
+	// adds a client identity logging in with its own password, limited to rate commands/s with bursts up to burst
+	public synchronized void addTenant(String name, String password, double rate, int burst, int weight) {
+		if (scheduler == null) throw new IllegalStateException("tenants not enabled");
+		if (password.equals(pw) || tenants.containsKey(password)) throw new IllegalArgumentException("duplicate password for tenant "+name);
+
+		tenants.put(password, scheduler.createTenant(name, rate, burst, weight));
+	}
+
+	/*
+	 * Relay mode: the server forwards its clients' commands through one connection to the ApiServer at address instead
+	 * of using Discord directly, and publishes the messages of the channels subscribed locally it receives from there.
+	 */
+	public synchronized void setUpstream(SocketAddress address, String pw) {
+		if (relay != null) throw new IllegalStateException("upstream already set");
+
+		Relay relay = new Relay(this, address, pw);
+		this.relay = relay;
+		setBackend(relay);
+
+		for (long channelId : subscribers.keySet()) { // subscribed before
+			relay.subscribe(channelId);
+		}
+
+		updateRelayEcho();
+	}
+
+	private DiscordBackend getMessageBackend() { // the backend for text sends
+		OutboundQueue queue = outboundQueue;
+
+		return queue != null ? queue : backend;
+	}
+
+	// makes a guild's channels accessible, the guilds may be spread across several gateway shards
+	public synchronized void addServer(Server server) {
+		servers.put(server.getId(), server);
+		if (relay == null && !(backend instanceof JavacordBackend)) setBackend(new JavacordBackend(servers)); // a relay keeps sending upstream
+
+		DiscordApi api = server.getApi();
 
-		return channel.createWebhookBuilder().setName("fcbot").create()
-				.thenApply(hook -> {
-					IncomingWebhook prev = webhooks.putIfAbsent(channel, hook);
-					return prev != null ? prev : hook;
-				})
-				.exceptionally(exc -> {
-					IncomingWebhook hook = webhooks.get(channel);
+		if (listeningApis.add(api)) { // one listener per shard
+			api.addMessageCreateListener(event -> {
+				Server eventServer = event.getServer().orElse(null);
+				long channelId = event.getChannel().getId();
+				if (eventServer == null || !servers.containsKey(eventServer.getId()) || !hasSubscribers(channelId) && journal == null) return;
 
-					if (hook != null) {
-						return hook;
-					} else {
-						throw exc instanceof RuntimeException ? (RuntimeException) exc : new RuntimeException(exc);
+				MessageAuthor author = event.getMessageAuthor();
+				List<Long> roleIds;
+				User user = author.asUser().orElse(null);
+
+				if (user == null) {
+					roleIds = Collections.emptyList();
+				} else {
+					List<Role> roles = user.getRoles(eventServer);
+					roleIds = new ArrayList<>(roles.size());
+
+					for (Role role : roles) {
+						roleIds.add(role.getId());
+					}
+				}
+
+				Color roleColor = author.getRoleColor().orElse(null);
+				List<MessageAttachment> messageAttachments = event.getMessageAttachments();
+				List<ApiCodec.Attachment> attachments;
+
+				if (messageAttachments.isEmpty()) {
+					attachments = Collections.emptyList();
+				} else {
+					attachments = new ArrayList<>(messageAttachments.size());
+
+					for (MessageAttachment attachment : messageAttachments) {
+						registerAttachment(attachment.getId(), attachment.getUrl(), attachment.getSize());
+						attachments.add(new ApiCodec.Attachment(attachment.getId(), attachment.getFileName(), attachment.getSize(), getContentType(attachment.getFileName())));
 					}
-				});
+				}
+
+				DiscordBackend backend = this.backend;
+				boolean ownAuthor = author.isYourself()
+						|| author.isWebhook() && backend instanceof JavacordBackend javacordBackend && javacordBackend.isOwnWebhook(author.getId());
+
+				publishMessage(event.getMessageId(), channelId,
+						author.getId(), author.getDisplayName(), author.isBotUser() || author.isWebhook(), roleIds, roleColor != null ? roleColor.getRGB() : null,
+								event.getMessageContent(), attachments, ownAuthor);
+			});
+		}
 	}
 
+	private static String getContentType(String fileName) { // Javacord doesn't expose the attachment's content type
+		String ret = URLConnection.guessContentTypeFromName(fileName);
+
+		return ret != null ? ret : "application/octet-stream";
+	}
+
+	public synchronized void removeServer(long guildId) {
+		servers.remove(guildId);
+	}
+
+	public boolean hasSubscribers(long channelId) {
+		return subscribers.containsKey(channelId);
+	}
+
+	private void subscribe(ServerChannelContext context, long channelId) {
+		if (!context.subscribedChannels.add(channelId)) return;
+
+		subscribers.compute(channelId, (ignore, contexts) -> {
+			if (contexts == null) {
+				contexts = new CopyOnWriteArraySet<>();
+
+				Relay relay = this.relay;
+				if (relay != null) relay.subscribe(channelId); // in compute to stay ordered with unsubscribing
+			}
+
+			contexts.add(context);
+
+			return contexts;
+		});
+	}
+
+	private void unsubscribe(ServerChannelContext context, long channelId) {
+		if (!context.subscribedChannels.remove(channelId)) return;
+
+		subscribers.computeIfPresent(channelId, (ignore, contexts) -> {
+			contexts.remove(context);
+			if (!contexts.isEmpty()) return contexts;
+
+			Relay relay = this.relay;
+			if (relay != null) relay.unsubscribe(channelId);
+
+			return null;
+		});
+	}
+
+	// sends a message event to all connections subscribed to its channel, the frame is encoded once and shared
+	public void publishMessage(long id, long channelId, long authorId, String authorName, boolean fromBot, List<Long> roleIds, Integer roleColor, String content) {
+		publishMessage(id, channelId, authorId, authorName, fromBot, roleIds, roleColor, content, Collections.emptyList(), fromBot);
+	}
+
+	public void publishMessage(long id, long channelId, long authorId, String authorName, boolean fromBot, List<Long> roleIds, Integer roleColor, String content,
+			List<ApiCodec.Attachment> attachments) {
+		publishMessage(id, channelId, authorId, authorName, fromBot, roleIds, roleColor, content, attachments, fromBot);
+	}
+
+	// ownAuthor indicates whether the message may come from a send still in progress
+	private void publishMessage(long id, long channelId, long authorId, String authorName, boolean fromBot, List<Long> roleIds, Integer roleColor, String content,
+			List<ApiCodec.Attachment> attachments, boolean ownAuthor) {
+		ServerChannelContext origin = findOrigin(id, channelId, content, ownAuthor && subscribers.containsKey(channelId));
+		publishMessage(id, channelId, authorId, authorName, fromBot, roleIds, roleColor, content, attachments, origin != null, origin);
+	}
+
+	/*
+	 * Publishes a message received by a relay from upstream, relayed if upstream reported it as sent through the api,
+	 * ownSend if it was sent by this relay. Only the latter can have a local origin.
+	 */
+	void publishUpstreamMessage(long id, long channelId, long authorId, String authorName, boolean fromBot, List<Long> roleIds, Integer roleColor, String content,
+			List<ApiCodec.Attachment> attachments, boolean relayed, boolean ownSend) {
+		ServerChannelContext origin = ownSend ? findOrigin(id, channelId, content, subscribers.containsKey(channelId)) : null;
+		publishMessage(id, channelId, authorId, authorName, fromBot, roleIds, roleColor, content, attachments, relayed, origin);
+	}
+
+	/*
+	 * Messages sent through the api (relayed) aren't echoed back to their origin connection, other connections only
+	 * receive them if they opted in with setRelayEcho. Connections in relay mode receive them all, preceded by
+	 * relayOrigin. Attachments are only sent to v3+ clients, through onMessageAttachments instead of onMessageRef.
+	 *
+	 * The journal gets all messages, including those without subscribers and echoes, as their onMessage frame.
+	 */
+	private void publishMessage(long id, long channelId, long authorId, String authorName, boolean fromBot, List<Long> roleIds, Integer roleColor, String content,
+			List<ApiCodec.Attachment> attachments, boolean relayed, ServerChannelContext origin) {
+		Set<ServerChannelContext> contexts = subscribers.get(channelId);
+		MessageJournal journal = this.journal;
+		ByteBuffer legacyFrame = null;
+
+		if (journal != null) {
+			legacyFrame = frame(ApiCodec.encodeOnMessage(id, channelId, authorId, authorName, fromBot, roleIds, roleColor, content));
+			journal.append(id, channelId, legacyFrame);
+		}
+
+		if (contexts == null) return;
+
+		synchronized (recentMessages) {
+			recentMessages.put(id, new RecentMessage(channelId));
+		}
+
+		AuthorProfile author = null;
+		ByteBuffer frame = null;
+		ByteBuffer attachmentsFrame = null;
+		ByteBuffer originFrame = null;
+
+		for (ServerChannelContext context : contexts) {
+			ByteBuffer contextOriginFrame = null;
+
+			if (relayed && context.relayMode) { // the relay decides which of its connections get it
+				contextOriginFrame = context == origin ? frame(ApiCodec.encodeRelayOrigin(id, true))
+						: originFrame != null ? originFrame : (originFrame = frame(ApiCodec.encodeRelayOrigin(id, false)));
+			} else if (relayed && (context == origin || !context.receiveRelayed)) {
+				continue;
+			}
+
+			if (context.apiVersion < 2) {
+				if (legacyFrame == null) {
+					legacyFrame = frame(ApiCodec.encodeOnMessage(id, channelId, authorId, authorName, fromBot, roleIds, roleColor, content));
+				}
+
+				context.writeFrame(legacyFrame);
+				continue;
+			}
+
+			if (author == null) author = internAuthor(authorId, authorName, fromBot, roleIds, roleColor);
+
+			if (context.apiVersion >= 3 && !attachments.isEmpty()) {
+				if (attachmentsFrame == null) attachmentsFrame = frame(ApiCodec.encodeOnMessageAttachments(id, channelId, author.ref, content, attachments));
+				context.writeMessage(author, contextOriginFrame, attachmentsFrame);
+			} else {
+				if (frame == null) frame = frame(ApiCodec.encodeOnMessageRef(id, channelId, author.ref, content));
+				context.writeMessage(author, contextOriginFrame, frame);
+			}
+		}
+	}
+
+	// returns the server wide author profile, a changed profile keeps its ref but gets a new revision
+	private AuthorProfile internAuthor(long authorId, String name, boolean fromBot, List<Long> roleIds, Integer roleColor) {
+		synchronized (authors) {
+			AuthorProfile prev = authors.get(authorId);
+			if (prev != null && prev.matches(name, fromBot, roleIds, roleColor)) return prev;
+
+			AuthorProfile ret = new AuthorProfile(prev != null ? prev.ref : nextAuthorRef++, prev != null ? prev.revision + 1 : 0,
+					authorId, name, fromBot, roleIds, roleColor);
+			authors.put(authorId, ret);
+
+			return ret;
+		}
+	}
+
+	private static final class AuthorProfile {
+		AuthorProfile(int ref, int revision, long authorId, String name, boolean fromBot, List<Long> roleIds, Integer roleColor) {
+			this.ref = ref;
+			this.revision = revision;
+			this.name = name;
+			this.fromBot = fromBot;
+			this.roleIds = List.copyOf(roleIds);
+			this.roleColor = roleColor;
+
+			this.defineFrame = frame(ApiCodec.encodeDefineAuthor(ref, authorId, name, fromBot, roleIds, roleColor));
+		}
+
+		boolean matches(String name, boolean fromBot, List<Long> roleIds, Integer roleColor) {
+			return this.name.equals(name) && this.fromBot == fromBot && this.roleIds.equals(roleIds) && Objects.equals(this.roleColor, roleColor);
+		}
+
+		final int ref;
+		final int revision;
+		final String name;
+		final boolean fromBot;
+		final List<Long> roleIds;
+		final Integer roleColor;
+		final ByteBuffer defineFrame; // shared by all connections
+	}
+
+	// relayed message for reactions, see addReaction
+	private static final class RecentMessage {
+		RecentMessage(long channelId) {
+			this.channelId = channelId;
+		}
+
+		synchronized boolean addReaction(String reaction) { // returns false if already added
+			if (reactions == null) reactions = new HashSet<>(2);
+
+			return reactions.add(reaction);
+		}
+
+		synchronized void removeReaction(String reaction) {
+			reactions.remove(reaction);
+		}
+
+		final long channelId;
+		private Set<String> reactions; // added through the api
+	}
+
+	private record WebhookIdentity(String user, URL avatarUrl) { }
+
 	private final class ServerChannelContext extends ChannelContext {
 		boolean loggedIn;
 		final Set<Long> subscribedChannels = Collections.synchronizedSet(new HashSet<>());
+		final Map<Integer, Upload> uploads = Collections.synchronizedMap(new HashMap<>());
+		volatile boolean receiveRelayed;
+		volatile boolean relayMode; // receives all relayed messages, each preceded by relayOrigin
+		int apiVersion;
+		FairScheduler.Tenant tenant; // null without tenants
+		final AtomicInteger activeFetches = new AtomicInteger();
+		final Map<Integer, WebhookIdentity> webhookIdentities = new HashMap<>(); // only accessed by the read thread
+
+		/*
+		 * Writes an onMessageRef frame, preceded by defining or updating its author if this connection doesn't know it
+		 * yet and by originFrame unless null, the relayOrigin frame has to stay right in front of its message.
+		 */
+		synchronized void writeMessage(AuthorProfile author, ByteBuffer originFrame, ByteBuffer frame) {
+			Integer revision = definedAuthors.get(author.ref);
+
+			if (revision == null || revision != author.revision) {
+				writeFrame(author.defineFrame);
+				definedAuthors.put(author.ref, author.revision);
+
+				if (evictedAuthorRef != null) {
+					frameAndWrite(ApiCodec.encodeEvictAuthor(evictedAuthorRef));
+					evictedAuthorRef = null;
+				}
+			}
+
+			if (originFrame != null) writeFrame(originFrame);
+			writeFrame(frame);
+		}
+
+		@SuppressWarnings("serial")
+		private final Map<Integer, Integer> definedAuthors = new LinkedHashMap<>(16, 0.75f, true) { // author ref -> revision, lru
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+				if (size() <= MAX_CONNECTION_AUTHORS) return false;
+
+				evictedAuthorRef = eldest.getKey();
+
+				return true;
+			}
+		};
+		private Integer evictedAuthorRef;
+	}
+
+	private static final class PendingSend { // compared by identity, equal sends must be consumed individually
+		PendingSend(ServerChannelContext context, long channelId, String content) {
+			this.context = context;
+			this.channelId = channelId;
+			this.content = content;
+		}
+
+		final ServerChannelContext context;
+		final long channelId;
+		final String content;
+		volatile long expireTime; // System.nanoTime() after which a relayed send stops waiting for its echo, 0 while sending
+	}
+
+	// file upload in progress, spooled to a temp file until its end command arrives
+	private static final class Upload {
+		Upload(long channelId, String fileName, String content) throws IOException {
+			this.channelId = channelId;
+			this.fileName = fileName;
+			this.content = content;
+			this.file = Files.createTempFile("fcdUpload", ".tmp");
+
+			try {
+				this.channel = FileChannel.open(file, StandardOpenOption.WRITE);
+			} catch (IOException e) {
+				Files.deleteIfExists(file);
+				throw e;
+			}
+		}
+
+		void discard() {
+			try {
+				channel.close();
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		final long channelId;
+		final String fileName;
+		final String content;
+		final Path file;
+		final FileChannel channel;
+		long size;
 	}
 
 	private final class ListenThread extends Thread {
 		ListenThread(SocketAddress address) {
-			super("[DCAPI] listener");
+			super("[DCAPI] listener "+address);
 
 			this.address = address;
 
@@ -238,11 +1149,27 @@ public final class ApiServer extends ApiCommon {
 
 		@Override
 		public void run() {
-			try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
-				serverChannel.bind(address);
+			Path socketPath = address instanceof UnixDomainSocketAddress unixAddress ? unixAddress.getPath() : null;
+
+			try (ServerSocketChannel serverChannel = socketPath != null ? ServerSocketChannel.open(StandardProtocolFamily.UNIX) : ServerSocketChannel.open()) {
+				if (socketPath != null) {
+					Files.deleteIfExists(socketPath); // stale socket file from a previous run
+					serverChannel.bind(address);
+
+					try {
+						Files.setPosixFilePermissions(socketPath, PosixFilePermissions.fromString("rw-rw----"));
+					} catch (UnsupportedOperationException e) {
+						// ignore
+					}
+				} else {
+					serverChannel.bind(address);
+				}
+
+				System.out.printf("[DCAPI] listening on %s%n", address);
 
 				for (;;) {
 					SocketChannel channel = serverChannel.accept();
+					apiStats.onAccepted();
 					ServerChannelContext context = new ServerChannelContext();
 					connections.add(context);
 					context.init(channel);
@@ -253,17 +1180,74 @@ public final class ApiServer extends ApiCommon {
 			} catch (Throwable t) {
 				System.err.printf("[DCAPI] listening failed: %s%n", t.toString());
 			}
+
+			if (socketPath != null) {
+				try {
+					Files.deleteIfExists(socketPath);
+				} catch (IOException e) { }
+			}
 		}
 
 		private final SocketAddress address;
 	};
 
-	public static final AllowedMentions NO_MENTIONS = new AllowedMentionsBuilder().build();
+	private static final long MAX_UPLOAD_SIZE = 8 * 1024 * 1024; // Discord's attachment limit for servers without boosts
+	private static final int MAX_CONCURRENT_UPLOADS = 4; // per connection
+	private static final int MAX_CONCURRENT_FETCHES = 4; // per connection
+	private static final int ATTACHMENT_CHUNK_SIZE = 64 * 1024;
+	private static final int ATTACHMENT_MAX_PENDING = 256 * 1024;
+	private static final int MAX_HISTORY_LIMIT = 100; // messages per fetchHistory request
+	private static final int MAX_TRACKED_ORIGINS = 10_000;
+	private static final long RELAYED_SEND_EXPIRY_NS = 5 * 60 * 1_000_000_000L; // the upstream outbound queue may delay a send
+	private static final int MAX_RECENT_MESSAGES = 10_000; // relayed messages remembered for reactions
+	private static final int MAX_AUTHORS = 65_536; // server wide
+	private static final int MAX_CONNECTION_AUTHORS = 4096; // defined per connection before evicting
+	private static final int MAX_WEBHOOK_IDENTITIES = 1024; // per connection
+	private static final String DEFAULT_TENANT = "default";
 
+	private final Path shmDir;
 	private final String pw;
-	private final ListenThread listenThread;
+	private final List<ListenThread> listenThreads;
+	private final CommandHandler commandHandler = new CommandHandler();
 	private final List<ServerChannelContext> connections = new CopyOnWriteArrayList<>();
-	private volatile Server server;
-	private final Map<ServerTextChannel, IncomingWebhook> webhooks = new ConcurrentHashMap<>();
-	private boolean registeredMessageListener;
+	private final Map<Long, Set<ServerChannelContext>> subscribers = new ConcurrentHashMap<>(); // channel id -> subscribed connections, across all guilds
+	private final Map<Long, Server> servers = new ConcurrentHashMap<>(); // guild id -> server
+	private final Set<DiscordApi> listeningApis = new HashSet<>();
+	private final Collection<PendingSend> pendingSends = new ConcurrentLinkedQueue<>();
+	@SuppressWarnings("serial")
+	private final Map<Long, ServerChannelContext> origins = new LinkedHashMap<>() { // message id -> origin, for completed sends whose echo is still outstanding
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, ServerChannelContext> eldest) {
+			return size() > MAX_TRACKED_ORIGINS;
+		}
+	};
+	@SuppressWarnings("serial")
+	private final Map<Long, RecentMessage> recentMessages = new LinkedHashMap<>() { // message id -> channel and reactions
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, RecentMessage> eldest) {
+			return size() > MAX_RECENT_MESSAGES;
+		}
+	};
+	@SuppressWarnings("serial")
+	private final Map<Long, AuthorProfile> authors = new LinkedHashMap<>(16, 0.75f, true) { // author id -> profile, lru
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, AuthorProfile> eldest) {
+			return size() > MAX_AUTHORS;
+		}
+	};
+	private int nextAuthorRef;
+	private volatile DiscordBackend backend;
+	private volatile AttachmentCache attachmentCache;
+	private volatile MessageJournal journal;
+	private volatile OutboundQueue outboundQueue;
+	private volatile FairScheduler scheduler;
+	private volatile Relay relay;
+	private volatile FairScheduler.Tenant defaultTenant;
+	private final Map<String, FairScheduler.Tenant> tenants = new ConcurrentHashMap<>(); // password -> tenant
+	private final ExecutorService streamExecutor = Executors.newCachedThreadPool(r -> {
+		Thread ret = new Thread(r, "[DCAPI] attachment stream");
+		ret.setDaemon(true);
+
+		return ret;
+	});
 }
@@ -0,0 +1,220 @@
+package fcdiscord.server;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fcdiscord.ApiStats;
+
+/*
+ * Size bounded LRU disk cache for message attachments. Each attachment is downloaded from Discord's CDN at most once
+ * while cached, concurrent requests for the same attachment share the download.
+ *
+ * Entries handed out by fetch are pinned until released so they aren't deleted while being streamed, the cache may
+ * temporarily exceed its size limit because of that.
+ */
+final class AttachmentCache {
+	AttachmentCache(Path dir, long maxSize, ApiStats stats) throws IOException {
+		this.dir = dir;
+		this.maxSize = maxSize;
+		this.maxFileSize = Math.min(maxSize / 4, MAX_FILE_SIZE);
+		this.stats = stats;
+
+		Files.createDirectories(dir);
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, FILE_PREFIX+"*")) { // the index isn't persisted
+			for (Path file : stream) {
+				Files.deleteIfExists(file);
+			}
+		}
+	}
+
+	// remembers where a published attachment can be downloaded, fetch only accepts known attachments
+	synchronized void register(long attachmentId, URL url, long size) {
+		sources.put(attachmentId, new Source(url, size));
+	}
+
+	CompletableFuture<Entry> fetch(long attachmentId) {
+		Source source;
+		CompletableFuture<Entry> ret = new CompletableFuture<>();
+
+		synchronized (this) {
+			Entry entry = entries.get(attachmentId);
+
+			if (entry != null) {
+				entry.pins++;
+				stats.onAttachmentFetch(true);
+
+				return CompletableFuture.completedFuture(entry);
+			}
+
+			Download download = downloads.get(attachmentId);
+
+			if (download != null) {
+				download.waiters.add(ret);
+				stats.onAttachmentFetch(true);
+
+				return ret;
+			}
+
+			source = sources.get(attachmentId);
+			if (source == null) return CompletableFuture.failedFuture(new IOException("unknown attachment"));
+			if (source.size > maxFileSize) return CompletableFuture.failedFuture(new IOException("attachment too large"));
+
+			download = new Download();
+			download.waiters.add(ret);
+			downloads.put(attachmentId, download);
+			stats.onAttachmentFetch(false);
+		}
+
+		download(attachmentId, source);
+
+		return ret;
+	}
+
+	private void download(long attachmentId, Source source) {
+		// unique names, an evicted but still pinned file of the same attachment may remain until released
+		String fileName = FILE_PREFIX+Long.toUnsignedString(attachmentId)+"-"+nextFileId.incrementAndGet();
+		Path tmpFile = dir.resolve(fileName+".tmp");
+		HttpRequest request;
+
+		try {
+			request = HttpRequest.newBuilder(source.url.toURI()).timeout(DOWNLOAD_TIMEOUT).GET().build();
+		} catch (URISyntaxException e) {
+			finishDownload(attachmentId, null, 0, e);
+			return;
+		}
+
+		httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofFile(tmpFile)).whenComplete((response, exc) -> {
+			try {
+				if (exc != null) throw exc;
+				if (response.statusCode() != 200) throw new IOException("download failed with status "+response.statusCode());
+
+				long size = Files.size(tmpFile);
+				if (size > maxFileSize) throw new IOException("attachment too large");
+
+				Path file = dir.resolve(fileName);
+				Files.move(tmpFile, file);
+				finishDownload(attachmentId, file, size, null);
+			} catch (Throwable t) {
+				try {
+					Files.deleteIfExists(tmpFile);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+
+				finishDownload(attachmentId, null, 0, t);
+			}
+		});
+	}
+
+	private void finishDownload(long attachmentId, Path file, long size, Throwable exc) {
+		List<CompletableFuture<Entry>> waiters;
+		Entry entry = null;
+
+		synchronized (this) {
+			waiters = downloads.remove(attachmentId).waiters;
+
+			if (exc == null) {
+				entry = new Entry(attachmentId, file, size);
+				entry.pins = waiters.size();
+				entries.put(attachmentId, entry);
+				totalSize += size;
+				evict();
+			}
+		}
+
+		if (exc != null) System.err.printf("[DCAPI] attachment %d download failed: %s%n", attachmentId, exc);
+
+		for (CompletableFuture<Entry> waiter : waiters) {
+			if (exc == null) {
+				waiter.complete(entry);
+			} else {
+				waiter.completeExceptionally(exc);
+			}
+		}
+	}
+
+	synchronized void release(Entry entry) {
+		if (--entry.pins == 0 && entry.evicted) delete(entry);
+	}
+
+	private void evict() { // caller must hold the lock
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext() && totalSize > maxSize; ) {
+			Entry entry = it.next(); // least recently used first
+			it.remove();
+			totalSize -= entry.size;
+			entry.evicted = true;
+
+			if (entry.pins == 0) delete(entry);
+		}
+	}
+
+	private static void delete(Entry entry) {
+		try {
+			Files.deleteIfExists(entry.file);
+		} catch (IOException e) {
+			System.err.printf("[DCAPI] can't delete cached attachment %s: %s%n", entry.file, e);
+		}
+	}
+
+	static final class Entry {
+		Entry(long attachmentId, Path file, long size) {
+			this.attachmentId = attachmentId;
+			this.file = file;
+			this.size = size;
+		}
+
+		final long attachmentId;
+		final Path file;
+		final long size;
+		int pins; // guarded by the cache
+		boolean evicted;
+	}
+
+	private record Source(URL url, long size) { }
+
+	private static final class Download {
+		final List<CompletableFuture<Entry>> waiters = new ArrayList<>(1);
+	}
+
+	private static final String FILE_PREFIX = "att-";
+	private static final long MAX_FILE_SIZE = 64 * 1024 * 1024;
+	private static final int MAX_SOURCES = 100_000; // recently published attachments that may be fetched
+	private static final Duration DOWNLOAD_TIMEOUT = Duration.ofMinutes(2);
+
+	private final Path dir;
+	private final long maxSize;
+	private final long maxFileSize;
+	private final HttpClient httpClient = HttpClient.newBuilder()
+			.connectTimeout(Duration.ofSeconds(20))
+			.followRedirects(HttpClient.Redirect.NORMAL)
+			.build();
+	private final Map<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // attachment id -> cached file, lru
+	private final Map<Long, Download> downloads = new HashMap<>(); // attachment id -> download in progress
+	@SuppressWarnings("serial")
+	private final Map<Long, Source> sources = new LinkedHashMap<>() { // attachment id -> download location
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Source> eldest) {
+			return size() > MAX_SOURCES;
+		}
+	};
+	private final ApiStats stats;
+	private final AtomicLong nextFileId = new AtomicLong();
+	private long totalSize;
+}
@@ -0,0 +1,13 @@
+package fcdiscord.server;
+
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+public interface DiscordBackend {
+	// the send methods return null if the channel isn't accessible, otherwise a future for the new message's id
+	CompletableFuture<Long> sendMessage(long channelId, String content);
+	CompletableFuture<Long> sendWebhookMessage(long channelId, String content, String user, URL avatarUrl);
+	CompletableFuture<Long> sendFile(long channelId, String content, Path file, String fileName); // file may be deleted once the future completes
+	CompletableFuture<Void> addReaction(long channelId, long messageId, String reaction);
+}
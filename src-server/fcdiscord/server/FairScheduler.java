@@ -0,0 +1,206 @@
+package fcdiscord.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import fcdiscord.ApiStats;
+
+/*
+ * Shares the bot's Discord request budget between tenants. Each tenant has its own quota as a token bucket, commands
+ * exceeding it or the shared budget wait in the tenant's queue. Waiting tenants are served by deficit round robin
+ * proportional to their weight, so a busy tenant can't delay the others beyond their share.
+ *
+ * Commands run immediately on the submitting thread while nothing is waiting and tokens are available, otherwise on
+ * the scheduler's thread once it's their turn.
+ */
+final class FairScheduler {
+	FairScheduler(double rate, int burst, ApiStats stats) {
+		this.budget = new TokenBucket(rate, burst);
+		this.stats = stats;
+	}
+
+	Tenant createTenant(String name, double rate, int burst, int weight) {
+		if (weight <= 0) throw new IllegalArgumentException("invalid weight: "+weight);
+
+		return new Tenant(name, new TokenBucket(rate, burst), weight);
+	}
+
+	// returns false if the command was dropped because the tenant's queue is full
+	boolean submit(Tenant tenant, Runnable command) {
+		synchronized (this) {
+			long now = System.nanoTime();
+
+			if (active.isEmpty() && !releasing && tenant.quota.available(now) && budget.available(now)) {
+				tenant.quota.take();
+				budget.take();
+			} else if (tenant.queue.size() >= MAX_QUEUED) {
+				stats.onTenantCommand(tenant.name, true, true);
+				return false;
+			} else {
+				if (tenant.queue.isEmpty()) active.add(tenant);
+				tenant.queue.add(command);
+				stats.onTenantCommand(tenant.name, true, false);
+				scheduleDrain(0);
+
+				return true;
+			}
+		}
+
+		stats.onTenantCommand(tenant.name, false, false);
+		run(command);
+
+		return true;
+	}
+
+	private void drain() {
+		List<Runnable> ready = new ArrayList<>();
+
+		synchronized (this) {
+			drainScheduled = false;
+
+			long now = System.nanoTime();
+			long wait = Long.MAX_VALUE;
+			int skipped = 0; // consecutive tenants without quota
+
+			while (!active.isEmpty()) {
+				if (!budget.available(now)) {
+					wait = budget.waitNanos();
+					break;
+				}
+
+				Tenant tenant = active.peek();
+
+				if (!tenant.quota.available(now)) { // skip without accumulating credit
+					wait = Math.min(wait, tenant.quota.waitNanos());
+					tenant.deficit = 0;
+					active.add(active.remove());
+					if (++skipped >= active.size()) break;
+					continue;
+				}
+
+				skipped = 0;
+				if (tenant.deficit < 1) tenant.deficit += tenant.weight; // start of the tenant's turn
+
+				tenant.quota.take();
+				budget.take();
+				tenant.deficit--;
+				ready.add(tenant.queue.remove());
+
+				if (tenant.queue.isEmpty()) {
+					active.remove();
+					tenant.deficit = 0;
+				} else if (tenant.deficit < 1) { // turn over
+					active.add(active.remove());
+				}
+			}
+
+			if (!active.isEmpty()) scheduleDrain(wait);
+			releasing = !ready.isEmpty();
+		}
+
+		if (ready.isEmpty()) return;
+
+		for (Runnable command : ready) {
+			run(command);
+		}
+
+		synchronized (this) {
+			releasing = false;
+		}
+	}
+
+	private void scheduleDrain(long delayNanos) { // caller must hold the lock
+		if (drainScheduled) return;
+
+		try {
+			executor.schedule(this::drain, Math.max(delayNanos, 0), TimeUnit.NANOSECONDS);
+			drainScheduled = true;
+		} catch (RejectedExecutionException e) {
+			// closed
+		}
+	}
+
+	private static void run(Runnable command) {
+		try {
+			command.run();
+		} catch (Throwable t) {
+			t.printStackTrace();
+		}
+	}
+
+	void close() {
+		executor.shutdownNow();
+	}
+
+	static final class Tenant {
+		Tenant(String name, TokenBucket quota, int weight) {
+			this.name = name;
+			this.quota = quota;
+			this.weight = weight;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+		final String name;
+		final TokenBucket quota;
+		final int weight; // commands per round robin turn
+		final Queue<Runnable> queue = new ArrayDeque<>(); // guarded by the scheduler
+		int deficit;
+	}
+
+	private static final class TokenBucket { // guarded by the scheduler
+		TokenBucket(double rate, int burst) {
+			if (!(rate > 0) || burst < 1) throw new IllegalArgumentException("invalid rate or burst");
+
+			this.nanosPerToken = 1e9 / rate; // 0 for an unlimited rate
+			this.burst = burst;
+			this.tokens = burst;
+			this.lastRefill = System.nanoTime();
+		}
+
+		boolean available(long now) {
+			if (tokens < burst) {
+				tokens = nanosPerToken > 0 ? Math.min(burst, tokens + (now - lastRefill) / nanosPerToken) : burst;
+			}
+
+			lastRefill = now;
+
+			return tokens >= 1;
+		}
+
+		void take() {
+			tokens--;
+		}
+
+		long waitNanos() { // after available
+			return (long) Math.ceil((1 - tokens) * nanosPerToken);
+		}
+
+		private final double nanosPerToken;
+		private final int burst;
+		private double tokens;
+		private long lastRefill;
+	}
+
+	private static final int MAX_QUEUED = 1000; // per tenant
+
+	private final TokenBucket budget;
+	private final ApiStats stats;
+	private final Queue<Tenant> active = new ArrayDeque<>(); // tenants with queued commands, round robin order
+	private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+		Thread ret = new Thread(r, "[DCAPI] fair scheduler");
+		ret.setDaemon(true);
+
+		return ret;
+	});
+	private boolean drainScheduled;
+	private boolean releasing; // released commands still running, later ones mustn't overtake them
+}
@@ -0,0 +1,131 @@
+package fcdiscord.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.javacord.api.entity.DiscordEntity;
+import org.javacord.api.entity.channel.ServerTextChannel;
+import org.javacord.api.entity.message.Message;
+import org.javacord.api.entity.message.MessageBuilder;
+import org.javacord.api.entity.message.WebhookMessageBuilder;
+import org.javacord.api.entity.message.mention.AllowedMentions;
+import org.javacord.api.entity.message.mention.AllowedMentionsBuilder;
+import org.javacord.api.entity.server.Server;
+import org.javacord.api.entity.webhook.IncomingWebhook;
+
+final class JavacordBackend implements DiscordBackend {
+	JavacordBackend(Map<Long, Server> servers) { // guild id -> server, may be updated concurrently
+		this.servers = servers;
+	}
+
+	@Override
+	public CompletableFuture<Long> sendMessage(long channelId, String content) {
+		ServerTextChannel channel = getChannel(channelId);
+		if (channel == null) return null;
+
+		return new MessageBuilder()
+				.append(content)
+				.setAllowedMentions(NO_MENTIONS)
+				.send(channel)
+				.thenApply(DiscordEntity::getId);
+	}
+
+	@Override
+	public CompletableFuture<Long> sendWebhookMessage(long channelId, String content, String user, URL avatarUrl) {
+		ServerTextChannel channel = getChannel(channelId);
+		if (channel == null) return null;
+
+		return getCreateWebHook(channel).thenCompose(hook -> new WebhookMessageBuilder()
+				.append(content)
+				.setDisplayName(user)
+				.setDisplayAvatar(avatarUrl)
+				.setAllowedMentions(NO_MENTIONS)
+				.send(hook))
+				.thenApply(DiscordEntity::getId);
+	}
+
+	@Override
+	public CompletableFuture<Long> sendFile(long channelId, String content, Path file, String fileName) {
+		ServerTextChannel channel = getChannel(channelId);
+		if (channel == null) return null;
+
+		InputStream is;
+
+		try {
+			is = Files.newInputStream(file);
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+
+		MessageBuilder builder = new MessageBuilder();
+		if (!content.isEmpty()) builder.append(content);
+
+		return builder
+				.addAttachment(is, fileName)
+				.setAllowedMentions(NO_MENTIONS)
+				.send(channel)
+				.whenComplete((res, exc) -> {
+					try {
+						is.close();
+					} catch (IOException e) { }
+				})
+				.thenApply(DiscordEntity::getId);
+	}
+
+	@Override
+	public CompletableFuture<Void> addReaction(long channelId, long messageId, String reaction) {
+		ServerTextChannel channel = getChannel(channelId);
+		if (channel == null) return null;
+
+		return Message.addReaction(channel.getApi(), channelId, messageId, reaction); // without fetching the message first
+	}
+
+	boolean isOwnWebhook(long webhookId) {
+		for (IncomingWebhook hook : webhooks.values()) {
+			if (hook.getId() == webhookId) return true;
+		}
+
+		return false;
+	}
+
+	private ServerTextChannel getChannel(long channelId) {
+		for (Server server : servers.values()) {
+			// the lookup covers all guilds on the server's shard, so it usually succeeds on the first one
+			ServerTextChannel ret = server.getApi().getServerTextChannelById(channelId).orElse(null);
+			if (ret != null) return servers.containsKey(ret.getServer().getId()) ? ret : null;
+		}
+
+		return null;
+	}
+
+	private CompletableFuture<IncomingWebhook> getCreateWebHook(ServerTextChannel channel) {
+		IncomingWebhook ret = webhooks.get(channel);
+		if (ret != null) return CompletableFuture.completedFuture(ret);
+
+		return channel.createWebhookBuilder().setName("fcbot").create()
+				.thenApply(hook -> {
+					IncomingWebhook prev = webhooks.putIfAbsent(channel, hook);
+					return prev != null ? prev : hook;
+				})
+				.exceptionally(exc -> {
+					IncomingWebhook hook = webhooks.get(channel);
+
+					if (hook != null) {
+						return hook;
+					} else {
+						throw exc instanceof RuntimeException ? (RuntimeException) exc : new RuntimeException(exc);
+					}
+				});
+	}
+
+	public static final AllowedMentions NO_MENTIONS = new AllowedMentionsBuilder().build();
+
+	private final Map<Long, Server> servers;
+	private final Map<ServerTextChannel, IncomingWebhook> webhooks = new ConcurrentHashMap<>();
+}
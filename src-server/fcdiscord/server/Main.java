@@ -6,12 +6,17 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
 import java.util.stream.Collectors;
 
 import fcdiscord.Config;
+import fcdiscord.TrafficRecorder;
+import fcdiscord.server.update.Mod;
 import fcdiscord.server.update.ModUpdateHandler;
 import org.javacord.api.DiscordApi;
 import org.javacord.api.DiscordApiBuilder;
@@ -39,6 +44,19 @@ public final class Main {
 		Path configFile = Paths.get(args.length == 0 ? "config.properties" : args[0]);
 		Config config = Config.createForFile(configFile, false, false);
 
+		if (config.isValidForRelay() && !config.isValidForDiscord()) { // relay only, no Discord connection
+			createApiServer(config).setUpstream(config.getApiUpstreamAddress(), config.getApiUpstreamPassword());
+			System.out.printf("Relaying to %s%n", config.getApiUpstreamAddress());
+
+			for (;;) { // the api threads are daemons
+				LockSupport.park();
+			}
+		}
+
+		if (config.isValidForRelay()) {
+			System.err.println("Ignoring the api upstream config entries, relay mode doesn't combine with a Discord token");
+		}
+
 		if (!config.isValidForApiServer() && !config.isValidForUpdateHandler()) {
 			System.err.println("Missing config entries");
 			System.exit(1);
@@ -47,40 +65,85 @@ public final class Main {
 		ApiServer apiServer;
 
 		if (config.isValidForApiServer()) {
-			apiServer = new ApiServer(config.getServerApiAddress(), config.getApiPassword());
+			apiServer = createApiServer(config);
 		} else {
 			apiServer = null;
 		}
 
+		List<Long> guildIds = config.getGuildIds();
 		Handler handler;
 
 		if (config.isValidForUpdateHandler()) {
-			handler = new Handler(config.getGuildId(), config.getInstances());
+			Mod.setScanThreads(config.getModScanThreads());
+			handler = new Handler(guildIds, config.getInstances());
 		} else {
 			handler = null;
 		}
 
-		DiscordApi api = new DiscordApiBuilder()
+		DiscordApiBuilder builder = new DiscordApiBuilder()
 				.setWaitForUsersOnStartup(true)
 				.setIntents(Intent.GUILDS, Intent.GUILD_MEMBERS, Intent.GUILD_MESSAGES, Intent.GUILD_MESSAGE_REACTIONS, Intent.DIRECT_MESSAGES, Intent.DIRECT_MESSAGE_REACTIONS)
-				.setToken(config.getToken())
-				.addServerBecomesAvailableListener(handler)
-				.addMessageCreateListener(handler)
-				.addReactionAddListener(handler)
-				.login()
-				.join();
+				.setToken(config.getToken());
+
+		if (handler != null) {
+			builder.addServerBecomesAvailableListener(handler)
+			.addMessageCreateListener(handler)
+			.addReactionAddListener(handler);
+		}
+
+		if (apiServer != null) {
+			builder.addServerBecomesAvailableListener(event -> {
+				if (guildIds.contains(event.getServer().getId())) apiServer.addServer(event.getServer());
+			});
+		}
+
+		if (config.getShards() > 0) {
+			builder.setTotalShards(config.getShards());
+		} else {
+			builder.setRecommendedTotalShards().join();
+		}
 
-		Server server = api.getServerById(config.getGuildId()).orElse(null);
+		List<DiscordApi> apis = new ArrayList<>();
 
-		if (server != null) {
-			handler.init(server);
-			if (apiServer != null) apiServer.setServer(server);
+		for (CompletableFuture<DiscordApi> future : builder.loginAllShards()) {
+			apis.add(future.join());
 		}
+
+		System.out.printf("Logged in with %d shard(s)%n", apis.size());
+
+		for (DiscordApi api : apis) {
+			for (long guildId : guildIds) {
+				Server server = api.getServerById(guildId).orElse(null);
+				if (server == null) continue; // on another shard or not available yet
+
+				if (handler != null) handler.init(server);
+				if (apiServer != null) apiServer.addServer(server);
+			}
+		}
+	}
+
+	private static ApiServer createApiServer(Config config) throws IOException {
+		ApiServer ret = new ApiServer(config.getServerApiAddresses(), config.getApiShmDir(), config.getApiPassword());
+		if (config.getApiCaptureFile() != null) ret.setRecorder(TrafficRecorder.open(config.getApiCaptureFile(), true));
+		if (config.getApiAttachmentCacheDir() != null) ret.setAttachmentCache(config.getApiAttachmentCacheDir(), config.getApiAttachmentCacheSize());
+		if (config.getApiOutboundQueueFile() != null) ret.setOutboundQueue(config.getApiOutboundQueueFile());
+
+		if (!config.getTenants().isEmpty()) {
+			ret.enableTenants(config.getApiDiscordRate());
+
+			for (Config.Tenant tenant : config.getTenants()) {
+				ret.addTenant(tenant.getName(), tenant.getPassword(), tenant.getRate(), tenant.getBurst(), tenant.getWeight());
+			}
+		}
+
+		if (config.getApiJournalDir() != null) ret.setJournal(config.getApiJournalDir(), config.getApiJournalSize());
+
+		return ret;
 	}
 
 	private static class Handler implements ServerBecomesAvailableListener, MessageCreateListener, ReactionAddListener {
-		Handler(long guildId, Collection<Config.Instance> instances) {
-			this.guildId = guildId;
+		Handler(Collection<Long> guildIds, Collection<Config.Instance> instances) {
+			this.guildIds = new HashSet<>(guildIds);
 			this.instanceMap = new HashMap<>(instances.size());
 
 			for (Config.Instance instance : instances) {
@@ -89,8 +152,7 @@ public final class Main {
 		}
 
 		synchronized void init(Server server) {
-			if (initialized) return;
-			initialized = true;
+			if (!initializedGuilds.add(server.getId())) return;
 
 			SlashCommand.with("approveall", "approve all mods")
 			.setDefaultPermission(false)
@@ -142,21 +204,22 @@ public final class Main {
 				return null;
 			});
 
-			System.out.println("Instances:");
+			System.out.printf("Instances in %s:%n", server.getName());
 
 			for (Config.Instance instance : instanceMap.values()) {
 				ServerChannel channel = server.getChannelById(instance.getChannelId()).orElse(null);
+				if (channel == null) continue; // in another guild
 
-				System.out.printf("  %s: %s%n", channel != null ? "#"+channel.getName() : "missing:"+instance.getChannelId(), instance.getBaseDir());
+				System.out.printf("  #%s: %s%n", channel.getName(), instance.getBaseDir());
 			}
 
-			System.out.println("Ready");
+			System.out.printf("Ready: %s%n", server.getName());
 		}
 
 		@Override
 		public void onServerBecomesAvailable(ServerBecomesAvailableEvent event) {
 			Server server = event.getServer();
-			if (server.getId() != guildId) return;
+			if (!guildIds.contains(server.getId())) return;
 
 			init(server);
 		}
@@ -164,7 +227,7 @@ public final class Main {
 		@Override
 		public void onMessageCreate(MessageCreateEvent event) {
 			Server server = event.getServer().orElse(null);
-			if (server == null || server.getId() != guildId) return;
+			if (server == null || !guildIds.contains(server.getId())) return;
 
 			Config.Instance instance = instanceMap.get(event.getChannel().getId());
 
@@ -176,7 +239,7 @@ public final class Main {
 		@Override
 		public void onReactionAdd(ReactionAddEvent event) {
 			Server server = event.getServer().orElse(null);
-			if (server == null || server.getId() != guildId) return;
+			if (server == null || !guildIds.contains(server.getId())) return;
 
 			Config.Instance instance = instanceMap.get(event.getChannel().getId());
 
@@ -195,9 +258,9 @@ public final class Main {
 			}
 		}
 
-		private final long guildId;
+		private final Set<Long> guildIds;
 		private final Map<Long, Config.Instance> instanceMap;
 
-		private boolean initialized;
+		private final Set<Long> initializedGuilds = new HashSet<>();
 	}
 }
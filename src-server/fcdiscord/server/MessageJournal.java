@@ -0,0 +1,355 @@
+package fcdiscord.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import fcdiscord.ApiCodec;
+
+/*
+ * Append-only journal of published messages for fetchHistory, stored as their onMessage frames in memory mapped
+ * segment files. The oldest segment is deleted once the configured size is exceeded.
+ *
+ * segment: magic (int), then records: the frame as sent, starting with its length, a length of 0 ends the segment
+ *
+ * A record's length is written after its data, so a crashed process leaves no partial record behind. The data is
+ * forced to disk every second, an os crash loses at most the last second. The per channel index is kept in memory
+ * only and rebuilt from the segments on start. Segments found truncated keep their complete records and are extended
+ * back to their full size.
+ */
+final class MessageJournal implements Closeable {
+	MessageJournal(Path dir, long maxSize) throws IOException {
+		this.dir = dir;
+		this.maxSegments = (int) Math.max(2, maxSize / SEGMENT_SIZE);
+
+		Files.createDirectories(dir);
+
+		List<Path> files = new ArrayList<>();
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, FILE_PREFIX+"*"+FILE_SUFFIX)) {
+			for (Path file : stream) {
+				files.add(file);
+			}
+		}
+
+		files.sort(null); // the zero padded sequence numbers sort like the names
+
+		for (Path file : files) {
+			String name = file.getFileName().toString();
+			long seq;
+
+			try {
+				seq = Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()), 16);
+			} catch (NumberFormatException e) {
+				continue;
+			}
+
+			Segment segment;
+
+			try {
+				segment = Segment.open(file, seq, false);
+			} catch (IOException e) {
+				System.err.printf("[DCAPI] discarding invalid journal segment %s: %s%n", file, e);
+				Files.deleteIfExists(file);
+				continue;
+			}
+
+			segments.put(seq, segment);
+			recover(segment);
+		}
+
+		if (segments.isEmpty()) {
+			current = Segment.open(segmentFile(0), 0, true);
+			segments.put(current.seq, current);
+		} else {
+			current = segments.lastEntry().getValue();
+		}
+
+		trim();
+
+		syncThread = new Thread("[DCAPI] journal sync") {
+			@Override
+			public void run() {
+				while (!interrupted()) {
+					try {
+						sleep(SYNC_INTERVAL_MS);
+					} catch (InterruptedException e) {
+						break;
+					}
+
+					sync();
+				}
+			}
+		};
+
+		syncThread.setDaemon(true);
+		syncThread.start();
+	}
+
+	// indexes the segment's records and positions it for appending after the last valid one
+	private void recover(Segment segment) {
+		ByteBuffer buffer = segment.buffer;
+		int end = segment.loadedSize; // records past it were cut off
+		int pos = HEADER_SIZE;
+		int len;
+
+		if (end < SEGMENT_SIZE) System.err.printf("[DCAPI] journal segment %s is truncated to %d bytes%n", segment.file, end);
+
+		while (pos <= end - 4 && (len = buffer.getInt(pos)) != 0) {
+			if (len < MIN_RECORD_SIZE || len > end - pos
+					|| buffer.getShort(pos + 4) != FIELDS_OFFSET - 6
+					|| ApiCodec.readCommand(buffer.slice(pos + 4, len - 4)) != ApiCodec.COMMAND_S2C_ON_MESSAGE) {
+				System.err.printf("[DCAPI] journal segment %s is corrupt at %d, discarding the remainder%n", segment.file, pos);
+				buffer.put(pos, new byte[SEGMENT_SIZE - pos]);
+				break;
+			}
+
+			index(buffer.getLong(pos + FIELDS_OFFSET + 8), buffer.getLong(pos + FIELDS_OFFSET), segment.seq, pos);
+			pos += len;
+		}
+
+		segment.writePos = pos;
+		segment.syncedPos = pos;
+	}
+
+	// stores a message's onMessage frame, frame's position is left unchanged
+	synchronized void append(long messageId, long channelId, ByteBuffer frame) {
+		if (closed) return;
+
+		int len = frame.remaining();
+
+		if (len > SEGMENT_SIZE - HEADER_SIZE) {
+			System.err.printf("[DCAPI] message %d too large for the journal%n", messageId);
+			return;
+		}
+
+		if (len > SEGMENT_SIZE - current.writePos) {
+			try {
+				current = Segment.open(segmentFile(current.seq + 1), current.seq + 1, true);
+			} catch (IOException e) {
+				System.err.printf("[DCAPI] journal write failed, stopping: %s%n", e.toString());
+				closed = true;
+				return;
+			}
+
+			segments.put(current.seq, current);
+			trim();
+		}
+
+		int pos = current.writePos;
+		current.buffer.put(pos + 4, frame, frame.position() + 4, len - 4);
+		if (pos + len <= SEGMENT_SIZE - 4) current.buffer.putInt(pos + len, 0); // may hold data of an append cut off by a crash
+		current.buffer.putInt(pos, len); // commits the record
+		current.writePos = pos + len;
+
+		index(channelId, messageId, current.seq, pos);
+	}
+
+	/*
+	 * Passes the fields of up to limit journaled messages of the channel older than beforeId (0 for the newest) to
+	 * consumer in chronological order, the buffers are only valid during the call. Returns the number of messages.
+	 */
+	synchronized int read(long channelId, long beforeId, int limit, Consumer<ByteBuffer> consumer) {
+		ChannelIndex index = channels.get(channelId);
+		if (index == null || limit <= 0) return 0;
+
+		int end = Arrays.binarySearch(index.ids, index.start, index.end, beforeId != 0 ? beforeId : Long.MAX_VALUE);
+		if (end < 0) end = -end - 1;
+
+		int ret = 0;
+
+		for (int i = Math.max(index.start, end - limit); i < end; i++) {
+			long position = index.positions[i];
+			Segment segment = segments.get(position >>> 32);
+			if (segment == null) continue; // deleted already, not trimmed from the index yet
+
+			int pos = (int) position;
+			int len = segment.buffer.getInt(pos);
+			consumer.accept(segment.buffer.slice(pos + FIELDS_OFFSET, len - FIELDS_OFFSET));
+			ret++;
+		}
+
+		return ret;
+	}
+
+	private void index(long channelId, long messageId, long seq, int pos) {
+		ChannelIndex index = channels.get(channelId);
+
+		if (index == null) {
+			index = new ChannelIndex();
+			channels.put(channelId, index);
+		}
+
+		index.add(messageId, seq << 32 | pos);
+	}
+
+	private void trim() { // deletes the oldest segments exceeding the size limit
+		if (segments.size() <= maxSegments) return;
+
+		while (segments.size() > maxSegments) {
+			Segment segment = segments.pollFirstEntry().getValue();
+
+			try { // the mapping stays valid until collected
+				Files.deleteIfExists(segment.file);
+			} catch (IOException e) {
+				System.err.printf("[DCAPI] can't delete journal segment %s: %s%n", segment.file, e);
+			}
+		}
+
+		long firstSeq = segments.firstKey();
+
+		for (Iterator<ChannelIndex> it = channels.values().iterator(); it.hasNext(); ) {
+			ChannelIndex index = it.next();
+			index.dropBefore(firstSeq);
+			if (index.start == index.end) it.remove();
+		}
+	}
+
+	void sync() {
+		List<Segment> dirty = new ArrayList<>(2);
+		List<int[]> ranges = new ArrayList<>(2);
+
+		synchronized (this) {
+			for (Segment segment : segments.descendingMap().values()) { // the current and possibly its predecessor
+				if (segment.syncedPos == segment.writePos) break;
+
+				dirty.add(segment);
+				ranges.add(new int[] { segment.syncedPos, segment.writePos });
+				segment.syncedPos = segment.writePos;
+			}
+		}
+
+		for (int i = 0; i < dirty.size(); i++) { // outside the lock to not block appending while waiting for the disk
+			int[] range = ranges.get(i);
+			dirty.get(i).buffer.force(range[0], range[1] - range[0]);
+		}
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+		}
+
+		syncThread.interrupt();
+		sync();
+	}
+
+	private Path segmentFile(long seq) {
+		return dir.resolve(String.format("%s%016x%s", FILE_PREFIX, seq, FILE_SUFFIX));
+	}
+
+	private static final class Segment {
+		static Segment open(Path file, long seq, boolean create) throws IOException {
+			try (FileChannel fc = create
+					? FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+							: FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				long size = create ? SEGMENT_SIZE : fc.size();
+				if (size < HEADER_SIZE || size > SEGMENT_SIZE) throw new IOException("invalid segment size "+size);
+
+				MappedByteBuffer buffer = fc.map(MapMode.READ_WRITE, 0, SEGMENT_SIZE); // extends truncated files with zeros
+
+				if (create) {
+					buffer.putInt(0, MAGIC);
+				} else if (buffer.getInt(0) != MAGIC) {
+					throw new IOException("invalid magic");
+				}
+
+				Segment ret = new Segment(file, seq, buffer, (int) size);
+				ret.writePos = ret.syncedPos = HEADER_SIZE;
+
+				return ret;
+			}
+		}
+
+		private Segment(Path file, long seq, MappedByteBuffer buffer, int loadedSize) {
+			this.file = file;
+			this.seq = seq;
+			this.buffer = buffer;
+			this.loadedSize = loadedSize;
+		}
+
+		final Path file;
+		final long seq;
+		final MappedByteBuffer buffer;
+		final int loadedSize; // file size when opened
+		int writePos; // guarded by the journal
+		int syncedPos;
+	}
+
+	// message ids in ascending order with their record positions (segment seq << 32 | offset)
+	private static final class ChannelIndex {
+		void add(long messageId, long position) {
+			int idx = end;
+
+			while (idx > start && ids[idx - 1] >= messageId) { // gateway events may arrive slightly out of order
+				if (ids[idx - 1] == messageId) return;
+				idx--;
+			}
+
+			if (end == ids.length) {
+				if (start > ids.length / 2) { // mostly dropped entries, compact
+					System.arraycopy(ids, start, ids, 0, end - start);
+					System.arraycopy(positions, start, positions, 0, end - start);
+				} else {
+					ids = Arrays.copyOfRange(ids, start, ids.length * 2 - start);
+					positions = Arrays.copyOfRange(positions, start, positions.length * 2 - start);
+				}
+
+				idx -= start;
+				end -= start;
+				start = 0;
+			}
+
+			System.arraycopy(ids, idx, ids, idx + 1, end - idx);
+			System.arraycopy(positions, idx, positions, idx + 1, end - idx);
+			ids[idx] = messageId;
+			positions[idx] = position;
+			end++;
+		}
+
+		void dropBefore(long seq) {
+			while (start < end && positions[start] >>> 32 < seq) {
+				start++;
+			}
+		}
+
+		long[] ids = new long[16];
+		long[] positions = new long[16];
+		int start;
+		int end;
+	}
+
+	private static final int MAGIC = 0x664a6e6c; // fJnl
+	private static final int HEADER_SIZE = 4;
+	private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+	private static final int FIELDS_OFFSET = 4 + 2 + ApiCodec.COMMAND_S2C_ON_MESSAGE.length(); // frame length, command
+	private static final int MIN_RECORD_SIZE = FIELDS_OFFSET + 16; // up to the channel id
+	private static final long SYNC_INTERVAL_MS = 1000;
+	private static final String FILE_PREFIX = "journal-";
+	private static final String FILE_SUFFIX = ".seg";
+
+	private final Path dir;
+	private final int maxSegments;
+	private final TreeMap<Long, Segment> segments = new TreeMap<>(); // seq -> segment
+	private final Map<Long, ChannelIndex> channels = new HashMap<>(); // channel id -> index
+	private final Thread syncThread;
+	private Segment current;
+	private boolean closed;
+}
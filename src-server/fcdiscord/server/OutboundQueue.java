@@ -0,0 +1,512 @@
+package fcdiscord.server;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import org.javacord.api.exception.DiscordException;
+import org.javacord.api.exception.RatelimitException;
+import org.javacord.api.util.rest.RestRequestResponseInformation;
+
+/*
+ * Durable queue in front of a DiscordBackend's text sends. Each send is committed to a local log before it is passed
+ * to Discord and only removed once Discord accepted it, failed sends are retried with exponential backoff. Pending
+ * sends are replayed on start, so they survive Discord outages and restarts. Sends to a channel keep their order,
+ * only one of them is in flight at a time.
+ *
+ * log: magic (long), then records: length (int, excl. itself), type (byte), seq (long), payload
+ * payload: send: channel id (long), enqueue time ms (long), content; webhook: like send, then user, avatar url; done: none
+ * strings are stored as length (int) + utf-8 bytes
+ *
+ * Commits are grouped and forced to disk before sending, done records aren't forced. A send may thus be repeated
+ * after an os crash, but never lost. Replayed sends have no origin connection, their echo is delivered like the one
+ * of a foreign message. File sends and reactions bypass the queue.
+ *
+ * The queue holds at most MAX_ENTRIES sends with MAX_CHARS of text, further sends fail immediately until it drained.
+ * This also bounds the log, compactions keep it within about twice the pending sends' size. A log with an invalid
+ * header is moved aside as <file>.corrupt-<time> instead of preventing the start.
+ *
+ * All state except the incoming sends and the limit counters is confined to the queue's thread.
+ */
+final class OutboundQueue implements DiscordBackend {
+	OutboundQueue(Path file, Supplier<DiscordBackend> backend) throws IOException {
+		this.file = file;
+		this.backend = backend;
+
+		List<Entry> pending = load(file);
+
+		for (Entry entry : pending) {
+			nextSeq = Math.max(nextSeq, entry.seq + 1);
+			reserve(entry, true); // accepted before, counts towards the limits but isn't refused
+		}
+
+		compact(pending); // starts a fresh log with only the pending sends
+
+		if (!pending.isEmpty()) {
+			System.out.printf("[DCAPI] replaying %d queued sends%n", pending.size());
+			executor.execute(() -> enqueueCommitted(pending));
+		}
+	}
+
+	@Override
+	public CompletableFuture<Long> sendMessage(long channelId, String content) {
+		return enqueue(new Entry(TYPE_SEND, channelId, System.currentTimeMillis(), content, null, null));
+	}
+
+	@Override
+	public CompletableFuture<Long> sendWebhookMessage(long channelId, String content, String user, URL avatarUrl) {
+		return enqueue(new Entry(TYPE_WEBHOOK, channelId, System.currentTimeMillis(), content, user, avatarUrl));
+	}
+
+	@Override
+	public CompletableFuture<Long> sendFile(long channelId, String content, Path file, String fileName) {
+		DiscordBackend backend = this.backend.get();
+
+		return backend != null ? backend.sendFile(channelId, content, file, fileName) : null;
+	}
+
+	@Override
+	public CompletableFuture<Void> addReaction(long channelId, long messageId, String reaction) {
+		DiscordBackend backend = this.backend.get();
+
+		return backend != null ? backend.addReaction(channelId, messageId, reaction) : null;
+	}
+
+	private CompletableFuture<Long> enqueue(Entry entry) {
+		if (!reserve(entry, false)) {
+			return CompletableFuture.failedFuture(new IOException("outbound queue full"));
+		}
+
+		incoming.add(entry);
+
+		if (commitScheduled.compareAndSet(false, true)) { // otherwise the scheduled commit picks it up
+			try {
+				executor.execute(this::commit);
+			} catch (RejectedExecutionException e) { // closed
+				if (incoming.remove(entry)) release(entry);
+				entry.future.completeExceptionally(new IOException("outbound queue closed"));
+			}
+		}
+
+		return entry.future;
+	}
+
+	private synchronized boolean reserve(Entry entry, boolean force) {
+		if (!force && (pendingCount >= MAX_ENTRIES || pendingChars + entry.chars() > MAX_CHARS)) {
+			if (!full) {
+				System.err.printf("[DCAPI] outbound queue full (%d sends, %d chars), refusing sends%n", pendingCount, pendingChars);
+				full = true;
+			}
+
+			return false;
+		}
+
+		pendingCount++;
+		pendingChars += entry.chars();
+
+		return true;
+	}
+
+	private synchronized void release(Entry entry) {
+		pendingCount--;
+		pendingChars -= entry.chars();
+
+		if (full && pendingCount < MAX_ENTRIES * 9 / 10 && pendingChars < MAX_CHARS * 9 / 10) { // log again after draining noticeably
+			System.err.println("[DCAPI] outbound queue accepting sends again");
+			full = false;
+		}
+	}
+
+	private void commit() {
+		commitScheduled.set(false);
+
+		List<Entry> entries = new ArrayList<>();
+		Entry entry;
+
+		while ((entry = incoming.poll()) != null) {
+			entry.seq = nextSeq++;
+			entries.add(entry);
+		}
+
+		if (entries.isEmpty()) return;
+
+		try {
+			for (Entry e : entries) {
+				write(channel, e.encode());
+			}
+
+			channel.force(false);
+			logSize = channel.size();
+		} catch (IOException e) { // still send, just without durability
+			System.err.printf("[DCAPI] outbound queue write failed: %s%n", e.toString());
+		}
+
+		enqueueCommitted(entries);
+	}
+
+	private void enqueueCommitted(List<Entry> entries) {
+		for (Entry entry : entries) {
+			ChannelQueue queue = channels.computeIfAbsent(entry.channelId, ignore -> new ChannelQueue());
+			queue.entries.add(entry);
+			if (!queue.busy) dispatch(queue);
+		}
+	}
+
+	private void dispatch(ChannelQueue queue) {
+		Entry entry = queue.entries.peek();
+
+		if (entry == null) {
+			queue.busy = false;
+			return;
+		}
+
+		queue.busy = true;
+
+		DiscordBackend backend = this.backend.get();
+
+		if (backend == null) { // not connected to Discord yet
+			schedule(() -> dispatch(queue), BACKEND_WAIT_MS);
+			return;
+		}
+
+		CompletableFuture<Long> future;
+
+		try {
+			future = entry.type == TYPE_SEND
+					? backend.sendMessage(entry.channelId, entry.content)
+							: backend.sendWebhookMessage(entry.channelId, entry.content, entry.user, entry.avatarUrl);
+		} catch (Throwable t) {
+			future = CompletableFuture.failedFuture(t);
+		}
+
+		if (future == null) { // the guild may not be available yet after a restart
+			long time = System.currentTimeMillis();
+			if (entry.inaccessibleSince == 0) entry.inaccessibleSince = time; // not from the enqueue time, replayed sends may be older than the timeout
+
+			if (time - entry.inaccessibleSince > INACCESSIBLE_TIMEOUT_MS) {
+				finish(queue, entry, null, new IOException("channel "+entry.channelId+" inaccessible"));
+			} else {
+				retry(queue, entry, null);
+			}
+
+			return;
+		}
+
+		future.whenCompleteAsync((messageId, exc) -> {
+			if (exc == null) {
+				finish(queue, entry, messageId, null);
+			} else {
+				while (exc instanceof CompletionException && exc.getCause() != null) {
+					exc = exc.getCause();
+				}
+
+				if (isPermanent(exc) || System.currentTimeMillis() - entry.time > MAX_AGE_MS) {
+					finish(queue, entry, null, exc);
+				} else {
+					retry(queue, entry, exc);
+				}
+			}
+		}, executor);
+	}
+
+	private void retry(ChannelQueue queue, Entry entry, Throwable exc) {
+		long delay = Math.min(RETRY_BASE_MS << Math.min(entry.attempts, 20), RETRY_MAX_MS);
+		if (exc instanceof RatelimitException) delay = Math.max(delay, RATELIMIT_DELAY_MS); // Javacord already waited for the bucket
+		entry.attempts++;
+
+		if (entry.attempts == 1 || delay == RETRY_MAX_MS && entry.attempts % 10 == 0) { // don't flood the log during long outages
+			System.err.printf("[DCAPI] send to channel %d failed, retrying in %d ms: %s%n",
+					entry.channelId, delay, exc != null ? exc.toString() : "channel inaccessible");
+		}
+
+		schedule(() -> dispatch(queue), delay);
+	}
+
+	private void finish(ChannelQueue queue, Entry entry, Long messageId, Throwable exc) {
+		queue.entries.remove();
+		if (queue.entries.isEmpty()) channels.remove(entry.channelId);
+		release(entry);
+
+		try {
+			write(channel, Entry.encodeDone(entry.seq));
+			logSize += DONE_RECORD_SIZE;
+
+			if (logSize > compactThreshold
+					|| logSize > COMPACT_SIZE && channels.isEmpty() && incoming.isEmpty()) { // cheap once drained
+				compact(pendingEntries());
+			}
+		} catch (IOException e) {
+			System.err.printf("[DCAPI] outbound queue write failed: %s%n", e.toString());
+		}
+
+		if (exc == null) {
+			entry.future.complete(messageId);
+		} else {
+			System.err.printf("[DCAPI] dropping send to channel %d: %s%n", entry.channelId, exc.toString());
+			entry.future.completeExceptionally(exc);
+		}
+
+		if (queue.entries.isEmpty()) {
+			queue.busy = false;
+		} else {
+			dispatch(queue);
+		}
+	}
+
+	private List<Entry> pendingEntries() {
+		List<Entry> ret = new ArrayList<>();
+
+		for (ChannelQueue queue : channels.values()) {
+			ret.addAll(queue.entries);
+		}
+
+		ret.sort(Comparator.comparingLong(e -> e.seq));
+
+		return ret;
+	}
+
+	// replaces the log with one containing only the given entries
+	private void compact(List<Entry> entries) throws IOException {
+		Path tmpFile = file.resolveSibling(file.getFileName()+".tmp");
+
+		try (FileChannel out = FileChannel.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			write(out, ByteBuffer.allocate(8).putLong(0, MAGIC));
+
+			for (Entry entry : entries) {
+				write(out, entry.encode());
+			}
+
+			out.force(false);
+		}
+
+		Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		if (channel != null) channel.close();
+		channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		logSize = channel.size();
+		compactThreshold = Math.max(COMPACT_SIZE, logSize * 2); // a large backlog shouldn't cause a compaction per send
+	}
+
+	private static List<Entry> load(Path file) throws IOException {
+		if (!Files.exists(file)) return new ArrayList<>();
+
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+
+		if (buffer.remaining() < 8 || buffer.getLong() != MAGIC) { // keep it for inspection, but don't let it prevent the start
+			Path corruptFile = file.resolveSibling(file.getFileName()+".corrupt-"+System.currentTimeMillis());
+			System.err.printf("[DCAPI] invalid outbound queue file %s, moving it to %s and starting empty%n", file, corruptFile);
+			Files.move(file, corruptFile);
+
+			return new ArrayList<>();
+		}
+
+		Map<Long, Entry> entries = new LinkedHashMap<>(); // seq -> entry
+
+		while (buffer.remaining() >= 4) {
+			int len = buffer.getInt();
+			if (len < 9 || len > buffer.remaining()) break; // partially written last record
+
+			ByteBuffer record = buffer.slice(buffer.position(), len);
+			buffer.position(buffer.position() + len);
+
+			try {
+				byte type = record.get();
+				long seq = record.getLong();
+
+				if (type == TYPE_DONE) {
+					entries.remove(seq);
+				} else if (type == TYPE_SEND || type == TYPE_WEBHOOK) {
+					Entry entry = Entry.decode(type, record);
+					entry.seq = seq;
+					entries.put(seq, entry);
+				}
+			} catch (BufferUnderflowException | MalformedURLException e) {
+				System.err.printf("[DCAPI] skipping invalid outbound queue record: %s%n", e.toString());
+			}
+		}
+
+		return new ArrayList<>(entries.values());
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private void schedule(Runnable task, long delayMs) {
+		try {
+			executor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// closed, the send stays in the log
+		}
+	}
+
+	// Discord's 4xx responses other than rate limits won't succeed on retry, anything else may be a transient outage
+	private static boolean isPermanent(Throwable exc) {
+		if (exc instanceof RatelimitException || !(exc instanceof DiscordException discordExc)) return false;
+
+		int code = discordExc.getResponse().map(RestRequestResponseInformation::getCode).orElse(0);
+
+		return code >= 400 && code < 500 && code != 429;
+	}
+
+	void close() { // pending sends stay in the log for the next start
+		executor.shutdown(); // not interrupting, that would close the log's channel
+
+		try {
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+			channel.close();
+		} catch (InterruptedException | IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static ScheduledThreadPoolExecutor createExecutor() {
+		ScheduledThreadPoolExecutor ret = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread thread = new Thread(r, "[DCAPI] outbound queue");
+			thread.setDaemon(true);
+
+			return thread;
+		});
+
+		ret.setExecuteExistingDelayedTasksAfterShutdownPolicy(false); // drops pending retries on close
+
+		return ret;
+	}
+
+	private static final class Entry {
+		Entry(byte type, long channelId, long time, String content, String user, URL avatarUrl) {
+			this.type = type;
+			this.channelId = channelId;
+			this.time = time;
+			this.content = content;
+			this.user = user;
+			this.avatarUrl = avatarUrl;
+		}
+
+		static Entry decode(byte type, ByteBuffer buffer) throws MalformedURLException {
+			long channelId = buffer.getLong();
+			long time = buffer.getLong();
+			String content = getString(buffer);
+
+			if (type == TYPE_WEBHOOK) {
+				String user = getString(buffer);
+				URL avatarUrl = new URL(getString(buffer));
+
+				return new Entry(type, channelId, time, content, user, avatarUrl);
+			} else {
+				return new Entry(type, channelId, time, content, null, null);
+			}
+		}
+
+		ByteBuffer encode() {
+			byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
+			byte[] userBytes = user != null ? user.getBytes(StandardCharsets.UTF_8) : null;
+			byte[] avatarUrlBytes = avatarUrl != null ? avatarUrl.toString().getBytes(StandardCharsets.UTF_8) : null;
+			int len = 1 + 8 + 8 + 8 + 4 + contentBytes.length;
+			if (type == TYPE_WEBHOOK) len += 4 + userBytes.length + 4 + avatarUrlBytes.length;
+
+			ByteBuffer ret = ByteBuffer.allocate(4 + len);
+			ret.putInt(len);
+			ret.put(type);
+			ret.putLong(seq);
+			ret.putLong(channelId);
+			ret.putLong(time);
+			ret.putInt(contentBytes.length).put(contentBytes);
+
+			if (type == TYPE_WEBHOOK) {
+				ret.putInt(userBytes.length).put(userBytes);
+				ret.putInt(avatarUrlBytes.length).put(avatarUrlBytes);
+			}
+
+			return ret.flip();
+		}
+
+		int chars() {
+			return content.length() + (user != null ? user.length() : 0);
+		}
+
+		static ByteBuffer encodeDone(long seq) {
+			return ByteBuffer.allocate(DONE_RECORD_SIZE).putInt(DONE_RECORD_SIZE - 4).put(TYPE_DONE).putLong(seq).flip();
+		}
+
+		private static String getString(ByteBuffer buffer) {
+			int len = buffer.getInt();
+			if (len < 0 || len > buffer.remaining()) throw new BufferUnderflowException();
+
+			String ret = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), len, StandardCharsets.UTF_8);
+			buffer.position(buffer.position() + len);
+
+			return ret;
+		}
+
+		final byte type;
+		final long channelId;
+		final long time; // enqueue time, ms since the epoch
+		final String content;
+		final String user;
+		final URL avatarUrl;
+		final CompletableFuture<Long> future = new CompletableFuture<>();
+		long seq;
+		int attempts;
+		long inaccessibleSince; // first dispatch finding the channel inaccessible in this run, 0 if none
+	}
+
+	private static final class ChannelQueue {
+		final Queue<Entry> entries = new ArrayDeque<>();
+		boolean busy; // head entry in flight or waiting for a retry
+	}
+
+	private static final long MAGIC = 0x6663644f75745131L; // fcdOutQ1
+	private static final byte TYPE_SEND = 1;
+	private static final byte TYPE_WEBHOOK = 2;
+	private static final byte TYPE_DONE = 3;
+	private static final int DONE_RECORD_SIZE = 4 + 1 + 8;
+	private static final long COMPACT_SIZE = 1024 * 1024;
+	private static final long RETRY_BASE_MS = 1000;
+	private static final long RETRY_MAX_MS = 5 * 60 * 1000;
+	private static final long RATELIMIT_DELAY_MS = 5000;
+	private static final long BACKEND_WAIT_MS = 1000;
+	private static final long INACCESSIBLE_TIMEOUT_MS = 10 * 60 * 1000; // gives the guilds time to become available after a restart
+	private static final long MAX_AGE_MS = 24 * 60 * 60 * 1000; // chat older than this isn't worth delivering anymore
+	private static final int MAX_ENTRIES = 10_000;
+	private static final long MAX_CHARS = 16 * 1024 * 1024;
+
+	private final Path file;
+	private final Supplier<DiscordBackend> backend;
+	private final ScheduledThreadPoolExecutor executor = createExecutor();
+	private final Queue<Entry> incoming = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean commitScheduled = new AtomicBoolean();
+	private final Map<Long, ChannelQueue> channels = new HashMap<>(); // channel id -> pending sends
+	private int pendingCount; // incoming, logged and in flight sends, guarded by the queue
+	private long pendingChars;
+	private boolean full; // refusing sends, for logging the transitions only
+	private FileChannel channel;
+	private long logSize;
+	private long compactThreshold;
+	private long nextSeq;
+}
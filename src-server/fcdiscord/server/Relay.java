@@ -0,0 +1,185 @@
+package fcdiscord.server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import fcdiscord.ApiCodec;
+import fcdiscord.ApiCodec.Attachment;
+import fcdiscord.ApiCommon.ChannelContext;
+import fcdiscord.client.ApiClient;
+import fcdiscord.client.ApiClient.MessageHandler;
+
+/*
+ * Backend of an ApiServer running as a relay for the clients of one site, forwarding everything through a single
+ * upstream connection to the ApiServer talking to Discord.
+ *
+ * The upstream subscription is the union of the local ones, each message crosses the upstream link once and is
+ * published locally from there. Sends, reactions, uploads and fetches are multiplexed over the same connection.
+ *
+ * While a local connection has setRelayEcho enabled, the upstream connection is in relay mode: the upstream server
+ * echoes all messages sent through the api, including the relay's own sends, each announced with relayOrigin. Those
+ * are only published to local connections with setRelayEcho, never to the local connection that sent it. Text sends
+ * complete as soon as they are queued upstream, without a message id, so their echo is matched to the local sender by
+ * channel and content. Otherwise the upstream server doesn't echo api sends to the relay at all.
+ */
+final class Relay implements DiscordBackend {
+	Relay(ApiServer server, SocketAddress upstreamAddress, String pw) {
+		this.server = server;
+		this.client = ApiClient.create(upstreamAddress, null, pw);
+	}
+
+	// called with the first local subscriber of a channel
+	synchronized void subscribe(long channelId) {
+		if (handlers.containsKey(channelId)) return;
+
+		ChannelHandler handler = new ChannelHandler();
+		handlers.put(channelId, handler);
+		client.registerMessageHandler(handler, channelId);
+	}
+
+	// called once a channel's last local subscriber is gone
+	synchronized void unsubscribe(long channelId) {
+		ChannelHandler handler = handlers.remove(channelId);
+		if (handler != null) client.unregisterMessageHandler(handler);
+	}
+
+	// enables the upstream echo of api sends, while any local connection has setRelayEcho enabled
+	synchronized void setEcho(boolean echo) {
+		if (echo == this.echo) return;
+
+		this.echo = echo;
+		client.setRelayOriginHandler(echo ? this::onRelayOrigin : null);
+	}
+
+	boolean isEchoing() {
+		return echo;
+	}
+
+	private void onRelayOrigin(long messageId, boolean own) { // on the upstream read thread, right before the message
+		originMessageId = messageId;
+		originOwn = own;
+	}
+
+	@Override
+	public CompletableFuture<Long> sendMessage(long channelId, String content) {
+		if (!client.isConnected()) return notConnected();
+
+		client.sendMessage(channelId, content);
+
+		return CompletableFuture.completedFuture(null);
+	}
+
+	@Override
+	public CompletableFuture<Long> sendWebhookMessage(long channelId, String content, String user, URL avatarUrl) {
+		if (!client.isConnected()) return notConnected();
+
+		client.sendWebhookMessage(channelId, content, user, avatarUrl);
+
+		return CompletableFuture.completedFuture(null);
+	}
+
+	@Override
+	public CompletableFuture<Long> sendFile(long channelId, String content, Path file, String fileName) {
+		try (FileChannel channel = FileChannel.open(file)) { // uploadFile returns after reading all data
+			return client.uploadFile(channelId, channel, channel.size(), fileName, content);
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	@Override
+	public CompletableFuture<Void> addReaction(long channelId, long messageId, String reaction) {
+		if (!client.isConnected()) return notConnected();
+
+		client.addReaction(channelId, messageId, reaction);
+
+		return CompletableFuture.completedFuture(null);
+	}
+
+	private static <T> CompletableFuture<T> notConnected() {
+		return CompletableFuture.failedFuture(new IOException("upstream not connected"));
+	}
+
+	/*
+	 * Streams an attachment from the upstream server's cache to a local connection. The data is forwarded on the
+	 * upstream read thread without waiting for the local connection, a connection too far behind fails the fetch.
+	 */
+	CompletableFuture<Long> fetchAttachment(ChannelContext context, int requestId, long attachmentId) {
+		return client.fetchAttachment(attachmentId, new WritableByteChannel() {
+			@Override
+			public int write(ByteBuffer src) throws IOException {
+				int ret = src.remaining();
+				if (!context.frameAndWrite(ApiCodec.encodeAttachmentChunk(requestId, src))) throw new IOException("connection lost");
+				src.position(src.limit());
+
+				return ret;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() { }
+		});
+	}
+
+	// reads history from the upstream server's journal, the messages are written to context as they arrive
+	CompletableFuture<Integer> fetchHistory(ChannelContext context, int requestId, long channelId, long beforeId, int limit) {
+		return client.fetchHistory(channelId, beforeId, limit, (id, msgChannelId, authorId, authorName, fromBot, roleIds, roleColor, content) -> {
+			ByteBuffer message = ApiCodec.encodeOnMessage(id, msgChannelId, authorId, authorName, fromBot, roleIds, roleColor, content);
+			message.flip().position(ON_MESSAGE_FIELDS_OFFSET);
+
+			context.frameAndWrite(ApiCodec.encodeHistoryMessage(requestId, message));
+		});
+	}
+
+	// error string for a local reply to a forwarded fetch, the upstream server's errors are passed through unchanged
+	static String getError(Throwable exc) {
+		if (exc == null) return "";
+		if (exc instanceof CompletionException && exc.getCause() != null) exc = exc.getCause();
+
+		return exc instanceof IOException ? exc.getMessage() : exc.toString();
+	}
+
+	void close() {
+		client.close();
+	}
+
+	private final class ChannelHandler implements MessageHandler { // one per channel to be able to unsubscribe individually
+		@Override
+		public void onMessage(long id, long channelId, long authorId, String authorName, boolean fromBot, List<Long> roles, Integer roleColor, String content) {
+			onMessage(id, channelId, authorId, authorName, fromBot, roles, roleColor, content, Collections.emptyList());
+		}
+
+		@Override
+		public void onMessage(long id, long channelId, long authorId, String authorName, boolean fromBot, List<Long> roles, Integer roleColor, String content,
+				List<Attachment> attachments) {
+			boolean relayed = id == originMessageId;
+			if (relayed) originMessageId = 0;
+
+			server.publishUpstreamMessage(id, channelId, authorId, authorName, fromBot, roles, roleColor, content, attachments, relayed, relayed && originOwn);
+		}
+	}
+
+	private static final int ON_MESSAGE_FIELDS_OFFSET = 4 + 2 + ApiCodec.COMMAND_S2C_ON_MESSAGE.length(); // frame length, command
+
+	private final ApiServer server;
+	private final ApiClient client;
+	private final Map<Long, ChannelHandler> handlers = new HashMap<>(); // channel id -> upstream subscription
+	private volatile boolean echo;
+	private long originMessageId; // announced by the last relayOrigin until its message arrives, only accessed by the upstream read thread
+	private boolean originOwn;
+}
@@ -0,0 +1,267 @@
+package fcdiscord.server.update;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import fcdiscord.server.update.Mod.ModEntry;
+
+/*
+ * Content addressed store of downloaded mod jars, so approving a message reuses the files fetched while simulating it
+ * instead of downloading them again.
+ *
+ * Files are stored as <sha-256>.jar, the sources they were obtained from (url within a message or attachment id) map
+ * to a hash and the file name they were submitted as. Urls are keyed by message since their content may change, only
+ * processing the same message again reuses a download. The source map is persisted in the index file, parse results
+ * are only kept in memory. Files unused for MAX_AGE_MS or exceeding MAX_SIZE in least recently used order are evicted
+ * when storing.
+ *
+ * index: one line per source: hash, key, filename separated by tabs
+ */
+final class DownloadCache {
+	DownloadCache(Path dir) {
+		this.dir = dir;
+
+		try {
+			load();
+		} catch (IOException e) {
+			System.out.printf("can't load download cache %s: %s%n", dir, e);
+			keys.clear();
+			files.clear();
+		}
+	}
+
+	private void load() throws IOException {
+		if (!Files.isDirectory(dir)) return;
+
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+			for (Path path : ds) {
+				String name = path.getFileName().toString();
+
+				if (name.endsWith(FILE_SUFFIX) && name.length() == Sha256.LENGTH + FILE_SUFFIX.length()) {
+					String hash = name.substring(0, Sha256.LENGTH);
+					files.put(hash, new CachedData(hash, Files.size(path), Files.getLastModifiedTime(path).toMillis()));
+				} else if (name.endsWith(TMP_SUFFIX)) { // left behind by an interrupted store
+					Files.deleteIfExists(path);
+				}
+			}
+		}
+
+		Path indexFile = dir.resolve(INDEX_FILE);
+
+		if (Files.exists(indexFile)) {
+			for (String line : Files.readAllLines(indexFile, StandardCharsets.UTF_8)) {
+				String[] parts = line.split("\t", 3);
+				if (parts.length != 3) continue;
+
+				CachedData data = files.get(parts[0]);
+				if (data != null) keys.put(parts[1], new CachedFile(parts[2], data));
+			}
+		}
+
+		for (Iterator<CachedData> it = files.values().iterator(); it.hasNext(); ) { // drop files without a source
+			CachedData data = it.next();
+
+			if (keys.values().stream().noneMatch(f -> f.data == data)) {
+				Files.deleteIfExists(getFile(data.hash));
+				it.remove();
+			}
+		}
+	}
+
+	// returns the download previously stored for key or null
+	synchronized CachedFile get(String key) {
+		CachedFile ret = keys.get(key);
+		if (ret == null) return null;
+
+		ret.data.lastUse = System.currentTimeMillis();
+
+		try { // persist the use for eviction after restarts
+			Files.setLastModifiedTime(getFile(ret.data.hash), FileTime.fromMillis(ret.data.lastUse));
+		} catch (IOException e) {
+			// ignore, evicted by its old use time at worst
+		}
+
+		return ret;
+	}
+
+	/*
+	 * Copies a cached file to dst, verifying its content. Returns the mod entry for dst, parsing the copy only if the
+	 * file wasn't parsed since the start, or null if the file is gone or corrupt.
+	 */
+	ModEntry copy(CachedFile file, Path dst) throws IOException {
+		CachedData data = file.data;
+		MessageDigest digest = Sha256.createDigest();
+
+		try (InputStream is = new DigestInputStream(Files.newInputStream(getFile(data.hash)), digest)) {
+			Files.copy(is, dst, StandardCopyOption.REPLACE_EXISTING);
+		} catch (NoSuchFileException e) {
+			remove(data);
+			return null;
+		}
+
+		if (!Sha256.toHex(digest.digest()).equals(data.hash)) {
+			System.out.printf("cached download %s is corrupt, removing%n", data.hash);
+			remove(data);
+			return null;
+		}
+
+		Collection<Mod> mods = data.mods;
+
+		if (mods == null) {
+			mods = Mod.parse(dst).mods();
+			data.mods = mods;
+		}
+
+		return new ModEntry(dst, mods);
+	}
+
+	// stores a downloaded file's content under its hash and maps key to it, file stays in place
+	void put(String key, String filename, String hash, Path file, Collection<Mod> mods) {
+		if (filename.indexOf('\n') >= 0 || filename.indexOf('\r') >= 0 || filename.indexOf('\t') >= 0) return; // not representable in the index
+
+		Path tmpFile = null;
+
+		try {
+			synchronized (this) {
+				CachedData data = files.get(hash);
+
+				if (data != null) { // known content, only add the source
+					data.lastUse = System.currentTimeMillis();
+					if (data.mods == null) data.mods = mods;
+					keys.put(key, new CachedFile(filename, data));
+					writeIndex();
+
+					return;
+				}
+
+				Files.createDirectories(dir);
+			}
+
+			tmpFile = Files.createTempFile(dir, hash, TMP_SUFFIX);
+			Files.copy(file, tmpFile, StandardCopyOption.REPLACE_EXISTING); // outside the lock, may take a while for large files
+
+			synchronized (this) {
+				CachedData data = files.get(hash);
+
+				if (data == null) { // not stored concurrently
+					Files.move(tmpFile, getFile(hash), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+					tmpFile = null;
+
+					data = new CachedData(hash, Files.size(getFile(hash)), System.currentTimeMillis());
+					files.put(hash, data);
+				}
+
+				if (data.mods == null) data.mods = mods;
+				keys.put(key, new CachedFile(filename, data));
+
+				evict(data);
+				writeIndex();
+			}
+		} catch (IOException e) {
+			System.out.printf("can't store %s in the download cache: %s%n", key, e);
+		} finally {
+			if (tmpFile != null) {
+				try {
+					Files.deleteIfExists(tmpFile);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void evict(CachedData keep) throws IOException { // caller must hold the lock
+		long minUse = System.currentTimeMillis() - MAX_AGE_MS;
+		long size = 0;
+		List<CachedData> candidates = new ArrayList<>(files.values());
+		candidates.sort((a, b) -> Long.compare(b.lastUse, a.lastUse)); // most recently used first
+
+		for (CachedData data : candidates) {
+			size += data.size;
+
+			if (data != keep && (data.lastUse < minUse || size > MAX_SIZE)) {
+				size -= data.size;
+				remove(data);
+			}
+		}
+	}
+
+	private synchronized void remove(CachedData data) throws IOException {
+		if (files.remove(data.hash) != data) return;
+
+		keys.values().removeIf(f -> f.data == data);
+		Files.deleteIfExists(getFile(data.hash));
+		writeIndex();
+	}
+
+	private void writeIndex() throws IOException { // caller must hold the lock
+		Path tmpFile = dir.resolve(INDEX_FILE+TMP_SUFFIX);
+
+		try (BufferedWriter writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+			for (Map.Entry<String, CachedFile> entry : keys.entrySet()) {
+				writer.write(String.format("%s\t%s\t%s%n", entry.getValue().data.hash, entry.getKey(), entry.getValue().filename));
+			}
+		}
+
+		Files.move(tmpFile, dir.resolve(INDEX_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private Path getFile(String hash) {
+		return dir.resolve(hash+FILE_SUFFIX);
+	}
+
+	// a source's download
+	static final class CachedFile {
+		CachedFile(String filename, CachedData data) {
+			this.filename = filename;
+			this.data = data;
+		}
+
+		String filename() {
+			return filename;
+		}
+
+		private final String filename;
+		private final CachedData data;
+	}
+
+	private static final class CachedData {
+		CachedData(String hash, long size, long lastUse) {
+			this.hash = hash;
+			this.size = size;
+			this.lastUse = lastUse;
+		}
+
+		final String hash;
+		final long size;
+		long lastUse; // guarded by the cache
+		volatile Collection<Mod> mods; // null if not parsed since the start
+	}
+
+	private static final long MAX_SIZE = 1L << 30;
+	private static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(30);
+	private static final String FILE_SUFFIX = ".jar";
+	private static final String TMP_SUFFIX = ".tmp";
+	private static final String INDEX_FILE = "index.txt";
+
+	private final Path dir;
+	private final Map<String, CachedFile> keys = new HashMap<>(); // source -> download
+	private final Map<String, CachedData> files = new HashMap<>(); // hash -> stored file
+}
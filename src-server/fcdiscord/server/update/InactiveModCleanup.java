@@ -10,11 +10,13 @@ import fcdiscord.server.update.Mod.ModList;
 
 public final class InactiveModCleanup {
 	public static void main(String[] args) throws IOException {
-		if (args.length != 1) {
-			System.err.println("usage: <mods dir>");
+		if (args.length != 1 && args.length != 2) {
+			System.err.println("usage: <mods dir> [scan threads]");
 			System.exit(1);
 		}
 
+		if (args.length > 1) Mod.setScanThreads(Integer.parseInt(args[1]));
+
 		Path modsDir = Paths.get(args[0]).toAbsolutePath().normalize();
 		Path inactiveModsDir = modsDir.resolveSibling(modsDir.getFileName().toString()+"-archive");
 		Files.createDirectories(inactiveModsDir);
@@ -0,0 +1,144 @@
+package fcdiscord.server.update;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+ * Runs an instance's update tasks one after another on a worker pool shared by all instances. A queue only occupies a
+ * worker for one task at a time and then goes to the back of the pool's queue, so busy instances can't starve others.
+ *
+ * Exposes its queue depth and wait times through JMX as fcdiscord:type=UpdateQueue,instance=<path>.
+ */
+final class InstanceQueue implements InstanceQueueMXBean {
+	InstanceQueue(Path instancePath, Executor workers) {
+		this.instancePath = instancePath;
+		this.workers = workers;
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("fcdiscord:type=UpdateQueue,instance="+ObjectName.quote(instancePath.toString())));
+		} catch (JMException e) {
+			System.err.printf("mbean registration for update queue %s failed: %s%n", instancePath, e.toString());
+		}
+	}
+
+	void submit(Runnable task) {
+		synchronized (this) {
+			queue.add(new Task(task, System.nanoTime()));
+			if (queue.size() > maxQueueDepth) maxQueueDepth = queue.size();
+			if (running) return;
+
+			running = true;
+		}
+
+		workers.execute(this::runNext);
+	}
+
+	private void runNext() {
+		Task task;
+
+		synchronized (this) {
+			task = queue.remove();
+		}
+
+		long startTime = System.nanoTime();
+		record(waitNanos, waitMaxNanos, startTime - task.submitTime);
+
+		try {
+			task.runnable.run();
+		} catch (Throwable t) {
+			t.printStackTrace();
+		}
+
+		processedTasks.increment();
+		record(processNanos, processMaxNanos, System.nanoTime() - startTime);
+
+		synchronized (this) {
+			if (queue.isEmpty()) {
+				running = false;
+				return;
+			}
+		}
+
+		workers.execute(this::runNext); // requeued to let other instances' tasks run in between
+	}
+
+	private static void record(LongAdder sum, AtomicLong max, long nanos) {
+		sum.add(nanos);
+		if (nanos > max.get()) max.accumulateAndGet(nanos, Math::max);
+	}
+
+	@Override
+	public String getInstancePath() {
+		return instancePath.toString();
+	}
+
+	@Override
+	public synchronized int getQueueDepth() {
+		return queue.size();
+	}
+
+	@Override
+	public synchronized int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	@Override
+	public long getProcessedTasks() {
+		return processedTasks.sum();
+	}
+
+	@Override
+	public double getWaitAvgMillis() {
+		long count = processedTasks.sum();
+
+		return count > 0 ? waitNanos.sum() * 1e-6 / count : 0;
+	}
+
+	@Override
+	public double getWaitMaxMillis() {
+		return waitMaxNanos.get() * 1e-6;
+	}
+
+	@Override
+	public double getProcessAvgMillis() {
+		long count = processedTasks.sum();
+
+		return count > 0 ? processNanos.sum() * 1e-6 / count : 0;
+	}
+
+	@Override
+	public double getProcessMaxMillis() {
+		return processMaxNanos.get() * 1e-6;
+	}
+
+	@Override
+	public void resetMaxima() {
+		synchronized (this) {
+			maxQueueDepth = queue.size();
+		}
+
+		waitMaxNanos.set(0);
+		processMaxNanos.set(0);
+	}
+
+	private record Task(Runnable runnable, long submitTime) { }
+
+	private final Path instancePath;
+	private final Executor workers;
+	private final Queue<Task> queue = new ArrayDeque<>(); // waiting tasks, the running one excluded
+	private boolean running; // a task is running or about to
+	private int maxQueueDepth;
+	private final LongAdder processedTasks = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+	private final AtomicLong waitMaxNanos = new AtomicLong();
+	private final LongAdder processNanos = new LongAdder();
+	private final AtomicLong processMaxNanos = new AtomicLong();
+}
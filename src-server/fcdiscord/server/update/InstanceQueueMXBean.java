@@ -0,0 +1,16 @@
+package fcdiscord.server.update;
+
+public interface InstanceQueueMXBean {
+	String getInstancePath();
+
+	int getQueueDepth();
+	int getMaxQueueDepth();
+
+	long getProcessedTasks();
+	double getWaitAvgMillis();
+	double getWaitMaxMillis();
+	double getProcessAvgMillis();
+	double getProcessMaxMillis();
+
+	void resetMaxima();
+}
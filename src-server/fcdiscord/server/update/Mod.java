@@ -2,8 +2,6 @@ package fcdiscord.server.update;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -11,7 +9,6 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.jar.Attributes;
@@ -26,26 +23,23 @@ import org.tomlj.TomlArray;
 import org.tomlj.TomlTable;
 
 public final class Mod {
-	public static ModList computeModList(Path dir) throws IOException {
+	public static ModList computeModList(Path dir) throws IOException { // only parses jars changed since the last call, see ModIndex
 		Map<String, List<ModEntry>> mods = new HashMap<>();
 		@SuppressWarnings("unused")
 		int totalModJars = 0;
 		@SuppressWarnings("unused")
 		int brokenModJars = 0;
 
-		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, path -> !Files.isDirectory(path) && path.getFileName().toString().toLowerCase(Locale.ENGLISH).endsWith(".jar"))) {
-			for (Path path : ds) {
-				ModEntry res = parse(path);
-				boolean broken = false;
+		for (ModEntry res : ModIndex.get(dir).scan()) {
+			boolean broken = false;
 
-				for (Mod mod : res.mods()) {
-					mods.computeIfAbsent(mod.modId, ignore -> new ArrayList<>()).add(res);
-					if (mod.version == null || mod.version.contains("${")) broken = true;
-				}
-
-				totalModJars++;
-				if (broken) brokenModJars++;
+			for (Mod mod : res.mods()) {
+				mods.computeIfAbsent(mod.modId, ignore -> new ArrayList<>()).add(res);
+				if (mod.version == null || mod.version.contains("${")) broken = true;
 			}
+
+			totalModJars++;
+			if (broken) brokenModJars++;
 		}
 
 		if (DEBUG) {
@@ -99,6 +93,11 @@ public final class Mod {
 		return new ModList(activeMods, inactiveMods);
 	}
 
+	// number of threads parsing jars in computeModList, 0 for one per cpu, 1 (the default) for a sequential scan
+	public static void setScanThreads(int threads) {
+		ModIndex.setScanThreads(threads);
+	}
+
 	public record ModList(Set<ModEntry> active, Set<ModEntry> inactive) { }
 
 	public static int compareMods(ModEntry jarA, ModEntry jarB) {
@@ -193,22 +192,26 @@ public final class Mod {
 		Collection<Mod> mods;
 
 		try (JarFile jar = new JarFile(file.toFile())) {
-			Manifest manifest = jar.getManifest();
-			ZipEntry entry = jar.getEntry("META-INF/mods.toml");
+			ZipEntry entry = jar.getEntry(MODS_TOML);
 
-			if (entry != null) {
-				mods = parse(jar.getInputStream(entry), manifest, file);
-			} else if (jar.getEntry("fabric.mod.json") != null) {
-				throw new IOException(file+" is a fabric-only mod");
-			} else {
-				mods = parse(manifest);
-			}
+			mods = parse(entry != null ? jar.getInputStream(entry) : null, jar.getEntry(FABRIC_JSON) != null, jar.getManifest(), file.toString());
 		}
 
 		return new ModEntry(file, mods);
 	}
 
-	private static Collection<Mod> parse(InputStream is, Manifest manifest, Path path) throws IOException {
+	// parses a jar's metadata obtained without opening it locally, modsToml is null if absent, see RemoteJar
+	static Collection<Mod> parse(InputStream modsToml, boolean hasFabricJson, Manifest manifest, String name) throws IOException {
+		if (modsToml != null) {
+			return parse(modsToml, manifest, name);
+		} else if (hasFabricJson) {
+			throw new IOException(name+" is a fabric-only mod");
+		} else {
+			return parse(manifest);
+		}
+	}
+
+	private static Collection<Mod> parse(InputStream is, Manifest manifest, String path) throws IOException {
 		TomlArray mods = Toml.parse(is).getArray("mods");
 		List<Mod> ret = new ArrayList<>(mods.size());
 
@@ -241,7 +244,7 @@ public final class Mod {
 		}
 	}
 
-	private Mod(String modId, String version) {
+	Mod(String modId, String version) {
 		this.modId = modId;
 		this.version = version;
 	}
@@ -259,6 +262,9 @@ public final class Mod {
 		return String.format("%s %s", modId, version);
 	}
 
+	static final String MODS_TOML = "META-INF/mods.toml";
+	static final String FABRIC_JSON = "fabric.mod.json";
+
 	private static final boolean DEBUG = false;
 
 	private final String modId;
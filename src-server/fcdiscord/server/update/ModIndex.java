@@ -0,0 +1,254 @@
+package fcdiscord.server.update;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fcdiscord.server.update.Mod.ModEntry;
+
+/*
+ * Parse results of a mod directory's jars, so computing the mod list only parses jars added or changed since the last
+ * scan instead of opening every jar each time.
+ *
+ * Each scan lists the directory and compares the jars' size and mtime with the indexed values. Jars differing in
+ * either are hashed and only parsed if the content is new, which also covers renamed or restored files. The index is
+ * stored next to the directory as <dir>-index and rewritten after scans that changed it.
+ *
+ * file: magic (int), entry count (int), entries: filename (utf), size (long), mtime (long), sha-256 (utf),
+ *   mod count (int), mods: mod id (utf), has version (bool), version (utf, if present)
+ */
+final class ModIndex {
+	static ModIndex get(Path dir) {
+		return indexes.computeIfAbsent(dir.toAbsolutePath().normalize(), ModIndex::new);
+	}
+
+	private ModIndex(Path dir) {
+		this.dir = dir;
+		this.indexFile = dir.resolveSibling(dir.getFileName().toString()+"-index");
+
+		try {
+			load();
+		} catch (NoSuchFileException e) {
+			// first use
+		} catch (IOException e) {
+			System.out.printf("discarding invalid mod index %s: %s%n", indexFile, e);
+			entries.clear();
+		}
+	}
+
+	private void load() throws IOException {
+		try (DataInputStream is = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+			if (is.readInt() != MAGIC) throw new IOException("invalid magic");
+
+			int count = is.readInt();
+
+			for (int i = 0; i < count; i++) {
+				String filename = is.readUTF();
+				long size = is.readLong();
+				long mtime = is.readLong();
+				String hash = is.readUTF();
+				int modCount = is.readInt();
+				List<Mod> mods = new ArrayList<>(modCount);
+
+				for (int j = 0; j < modCount; j++) {
+					String modId = is.readUTF();
+					String version = is.readBoolean() ? is.readUTF() : null;
+					mods.add(new Mod(modId, version));
+				}
+
+				entries.put(filename, new Entry(new ModEntry(dir.resolve(filename), mods), size, mtime, hash));
+			}
+		}
+	}
+
+	/*
+	 * Returns the directory's jars in listing order, parsing the ones not indexed yet. With more than one scan thread
+	 * the jars to parse are processed concurrently, the results and the first failure in listing order are the same as
+	 * with a sequential scan.
+	 */
+	synchronized List<ModEntry> scan() throws IOException {
+		List<Path> paths = new ArrayList<>();
+		List<Entry> scanned = new ArrayList<>();
+		List<Integer> pending = new ArrayList<>(); // indices into paths of jars not matching their entry
+
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, path -> !Files.isDirectory(path) && path.getFileName().toString().toLowerCase(Locale.ENGLISH).endsWith(".jar"))) {
+			for (Path path : ds) {
+				BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+				Entry entry = entries.get(path.getFileName().toString());
+
+				if (entry == null || entry.size != attrs.size() || entry.mtime != attrs.lastModifiedTime().toMillis()) {
+					pending.add(paths.size());
+					entry = new Entry(null, attrs.size(), attrs.lastModifiedTime().toMillis(), null);
+				}
+
+				paths.add(path);
+				scanned.add(entry);
+			}
+		}
+
+		int threads = Math.min(scanThreads, pending.size());
+
+		if (threads <= 1) {
+			for (int idx : pending) {
+				scanned.set(idx, scanJar(paths.get(idx), scanned.get(idx)));
+			}
+		} else {
+			ExecutorService executor = getScanExecutor();
+			List<Future<Entry>> futures = new ArrayList<>(pending.size());
+
+			try {
+				for (int idx : pending) {
+					Path path = paths.get(idx);
+					Entry stat = scanned.get(idx);
+					futures.add(executor.submit(() -> scanJar(path, stat)));
+				}
+
+				for (int i = 0; i < pending.size(); i++) { // in listing order to fail like a sequential scan
+					try {
+						scanned.set(pending.get(i), futures.get(i).get());
+					} catch (ExecutionException e) {
+						if (e.getCause() instanceof IOException exc) throw exc;
+						throw new IOException(e.getCause());
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+			} finally {
+				for (Future<Entry> future : futures) { // remaining jars after a failure
+					future.cancel(true);
+				}
+			}
+		}
+
+		List<ModEntry> ret = new ArrayList<>(paths.size());
+		Map<String, Entry> newEntries = new HashMap<>();
+
+		for (int i = 0; i < paths.size(); i++) {
+			Entry entry = scanned.get(i);
+			newEntries.put(paths.get(i).getFileName().toString(), entry);
+			ret.add(entry.mod);
+		}
+
+		if (!pending.isEmpty() || newEntries.size() != entries.size()) {
+			entries = newEntries;
+
+			if (DEBUG) System.out.printf("mod index %s: %d jars, %d changed%n", dir, ret.size(), pending.size());
+
+			try {
+				save();
+			} catch (IOException e) {
+				System.out.printf("can't write mod index %s: %s%n", indexFile, e);
+			}
+		}
+
+		return ret;
+	}
+
+	// hashes a jar not matching its entry and parses it if the content isn't indexed, safe to run concurrently
+	private Entry scanJar(Path path, Entry stat) throws IOException {
+		String hash = Sha256.hash(path);
+		Entry entry = entries.get(path.getFileName().toString());
+		Entry known = entry != null && entry.hash.equals(hash) ? entry : findByHash(hash);
+
+		if (known != null) { // same content, only touched, renamed or restored
+			return new Entry(new ModEntry(path, known.mod.mods()), stat.size, stat.mtime, hash);
+		} else {
+			return new Entry(Mod.parse(path), stat.size, stat.mtime, hash);
+		}
+	}
+
+	private Entry findByHash(String hash) {
+		for (Entry entry : entries.values()) {
+			if (entry.hash.equals(hash)) return entry;
+		}
+
+		return null;
+	}
+
+	private void save() throws IOException {
+		Path tmpFile = indexFile.resolveSibling(indexFile.getFileName().toString()+".tmp");
+
+		try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+			os.writeInt(MAGIC);
+			os.writeInt(entries.size());
+
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				Entry entry = e.getValue();
+				Collection<Mod> mods = entry.mod.mods();
+
+				os.writeUTF(e.getKey());
+				os.writeLong(entry.size);
+				os.writeLong(entry.mtime);
+				os.writeUTF(entry.hash);
+				os.writeInt(mods.size());
+
+				for (Mod mod : mods) {
+					os.writeUTF(mod.getModId());
+					os.writeBoolean(mod.getVersion() != null);
+					if (mod.getVersion() != null) os.writeUTF(mod.getVersion());
+				}
+			}
+		}
+
+		Files.move(tmpFile, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private record Entry(ModEntry mod, long size, long mtime, String hash) { }
+
+	static synchronized void setScanThreads(int threads) {
+		if (threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+		if (threads == scanThreads) return;
+
+		scanThreads = threads;
+
+		if (scanExecutor != null) { // recreated with the new size on demand, running scans complete on the old one
+			scanExecutor.shutdown();
+			scanExecutor = null;
+		}
+	}
+
+	private static synchronized ExecutorService getScanExecutor() {
+		if (scanExecutor == null) {
+			scanExecutor = Executors.newFixedThreadPool(scanThreads, r -> {
+				Thread ret = new Thread(r, "mod scan thread");
+				ret.setDaemon(true);
+
+				return ret;
+			});
+		}
+
+		return scanExecutor;
+	}
+
+	private static final int MAGIC = 0x664d6449; // fMdI
+	private static final boolean DEBUG = false;
+
+	private static volatile int scanThreads = 1; // jars hashed and parsed concurrently, 1 for a sequential scan
+	private static ExecutorService scanExecutor; // shared by all indexes, guarded by the class
+
+	private static final Map<Path, ModIndex> indexes = new ConcurrentHashMap<>(); // mod dir -> index
+
+	private final Path dir;
+	private final Path indexFile;
+	private Map<String, Entry> entries = new HashMap<>(); // filename -> entry, guarded by the index
+}
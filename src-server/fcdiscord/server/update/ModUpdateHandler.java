@@ -1,5 +1,6 @@
 package fcdiscord.server.update;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -14,20 +15,27 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import fcdiscord.server.update.DownloadCache.CachedFile;
 import fcdiscord.server.update.Mod.ModEntry;
 import fcdiscord.server.update.Mod.ModList;
 import org.javacord.api.entity.emoji.Emoji;
@@ -43,7 +51,7 @@ public final class ModUpdateHandler {
 	public static void handleMessage(Message message, Path instancePath) {
 		if (message.getAuthor().isBotUser()) return;
 
-		processMessage(message, instancePath, true);
+		getQueue(instancePath).submit(() -> processMessage(message, instancePath, true));
 	}
 
 	public static void handleReaction(Reaction reaction, User user, Path instancePath) {
@@ -82,16 +90,18 @@ public final class ModUpdateHandler {
 			}
 		}
 
+		InstanceQueue queue = getQueue(instancePath);
+
 		if (future != null) {
-			future.thenAcceptAsync(users -> {
+			future.thenAccept(users -> {
 				for (User u : users) {
 					if (u.isBot()) return;
 				}
 
-				processMessage(msg, instancePath, false);
-			}, executor);
+				queue.submit(() -> processMessage(msg, instancePath, false));
+			});
 		} else {
-			executor.execute(() -> processMessage(msg, instancePath, false));
+			queue.submit(() -> processMessage(msg, instancePath, false));
 		}
 	}
 
@@ -112,18 +122,38 @@ public final class ModUpdateHandler {
 	}
 
 	public static CompletableFuture<Void> processMessages(Collection<Message> msgs, Path instancePath) {
-		return CompletableFuture.runAsync(() -> {
-			System.out.printf("running bulk update for %d messages%n", msgs.size());
+		CompletableFuture<Void> ret = new CompletableFuture<>();
+
+		getQueue(instancePath).submit(() -> {
+			try {
+				System.out.printf("running bulk update for %d messages%n", msgs.size());
 
-			for (Message msg : msgs) {
-				System.out.printf("processing message %d: %s%n", msg.getId(), msg.getContent().replaceAll("\\s+", " ").trim());
-				processMessage(msg, instancePath, false);
+				for (Message msg : msgs) {
+					System.out.printf("processing message %d: %s%n", msg.getId(), msg.getContent().replaceAll("\\s+", " ").trim());
+					processMessage(msg, instancePath, false);
+				}
+
+				ret.complete(null);
+			} catch (Throwable t) {
+				ret.completeExceptionally(t);
 			}
-		}, executor);
+		});
+
+		return ret;
 	}
 
+	// updates of an instance are serialized, different instances proceed independently
+	private static InstanceQueue getQueue(Path instancePath) {
+		return queues.computeIfAbsent(instancePath.toAbsolutePath().normalize(), path -> new InstanceQueue(path, workers));
+	}
+
+	/*
+	 * The message's files are downloaded and parsed concurrently, then installed one after another in their order in the
+	 * message. Any failure removes the files installed for the message so far.
+	 */
 	private static void processMessage(Message msg, Path instancePath, boolean simulate) {
 		List<InstallResult> outputs = new ArrayList<>();
+		List<CompletableFuture<PreparedFile>> downloads = new ArrayList<>();
 
 		try {
 			if (!msg.getContent().isBlank()) {
@@ -170,7 +200,7 @@ public final class ModUpdateHandler {
 						URI uri = new URI(rawUrl);
 
 						System.out.println("processing url "+uri);
-						outputs.add(handleUrl(uri, instancePath, simulate));
+						downloads.add(prepareAsync(() -> handleUrl(uri, msg.getId(), instancePath)));
 						it.remove();
 					} catch (URISyntaxException e) {
 						// ignore
@@ -188,7 +218,25 @@ public final class ModUpdateHandler {
 				if (!isJar(filename)) continue;
 
 				System.out.println("processing attachment "+attachment.getUrl());
-				outputs.add(installFile(filename, () -> attachment.downloadAsInputStream(), instancePath, simulate));
+				String cacheKey = "attachment:"+attachment.getId();
+
+				downloads.add(prepareAsync(() -> {
+					PreparedFile ret = prepareCached(cacheKey, instancePath);
+
+					return ret != null ? ret : prepareFile(filename, () -> attachment.downloadAsInputStream(), instancePath, cacheKey);
+				}));
+			}
+
+			for (CompletableFuture<PreparedFile> download : downloads) {
+				PreparedFile file;
+
+				try {
+					file = download.join();
+				} catch (CompletionException e) {
+					throw e.getCause();
+				}
+
+				outputs.add(commitFile(file, simulate));
 			}
 
 			System.out.printf("installed %d mods%n", outputs.size());
@@ -221,13 +269,36 @@ public final class ModUpdateHandler {
 					}
 				}
 			}
+		} finally {
+			for (CompletableFuture<PreparedFile> download : downloads) { // removes the temp files of downloads that didn't get installed, once done
+				download.thenAccept(PreparedFile::discard);
+			}
 		}
 	}
 
-	private static InstallResult handleUrl(URI uri, Path instancePath, boolean simulate) throws Exception {
+	private static CompletableFuture<PreparedFile> prepareAsync(Callable<PreparedFile> task) {
+		CompletableFuture<PreparedFile> ret = new CompletableFuture<>();
+
+		downloadExecutor.execute(() -> {
+			try {
+				ret.complete(task.call());
+			} catch (Throwable t) {
+				ret.completeExceptionally(t);
+			}
+		});
+
+		return ret;
+	}
+
+	private static PreparedFile handleUrl(URI uri, long messageId, Path instancePath) throws Exception {
 		String host = uri.getHost();
 		String path = uri.getPath();
 		if (host == null || path == null || !"http".equals(uri.getScheme()) && !"https".equals(uri.getScheme())) throw new IOException("invalid url: "+uri);
+
+		String cacheKey = "url:%d:%s".formatted(messageId, uri); // only reused for the same message, the url's content may change
+		PreparedFile ret = prepareCached(cacheKey, instancePath);
+		if (ret != null) return ret;
+
 		Matcher matcher;
 
 		if (host.equals(CF_LINK_HOST)
@@ -239,15 +310,18 @@ public final class ModUpdateHandler {
 			uri = new URI(response.body().trim());
 		}
 
-		return handleDownload(uri, instancePath, simulate);
+		return handleDownload(uri, instancePath, cacheKey);
 	}
 
-	private static InstallResult handleDownload(URI uri, Path instancePath, boolean simulate) throws Exception {
+	private static PreparedFile handleDownload(URI uri, Path instancePath, String cacheKey) throws Exception {
 		HttpRequest request = HttpRequest.newBuilder(uri).timeout(TIMEOUT).build();
 		String path = uri.getPath();
 
 		if (isJar(path)) { // proper filename available, use it
-			return installFile(path.substring(path.lastIndexOf('/') + 1),
+			String filename = path.substring(path.lastIndexOf('/') + 1);
+			precheck(uri, filename, instancePath);
+
+			return prepareFile(filename,
 					() -> {
 						HttpResponse<InputStream> response = httpClient.send(request, BodyHandlers.ofInputStream());
 
@@ -258,7 +332,7 @@ public final class ModUpdateHandler {
 
 						return response.body();
 					},
-					instancePath, simulate);
+					instancePath, cacheKey);
 		} else { // try to infer filename from redirect or Content-Disposition header
 			HttpResponse<InputStream> response = httpClient.send(request, BodyHandlers.ofInputStream());
 
@@ -300,7 +374,7 @@ public final class ModUpdateHandler {
 			InputStream is = response.body();
 
 			try {
-				return installFile(filename, () -> is, instancePath, simulate);
+				return prepareFile(filename, () -> is, instancePath, cacheKey);
 			} finally {
 				try {
 					is.close();
@@ -309,7 +383,55 @@ public final class ModUpdateHandler {
 		}
 	}
 
-	private static InstallResult installFile(String filename, DataSource dataSource, Path instancePath, boolean simulate) throws Exception {
+	/*
+	 * Runs the checks against the mod's metadata fetched with range requests, so jars without usable mods or not newer
+	 * than the active ones aren't downloaded in full. Returns normally if they pass or can't be run this way, the full
+	 * download is checked again. The active mods are read without the install lock, commitFile repeats that check
+	 * under it.
+	 */
+	private static void precheck(URI uri, String filename, Path instancePath) throws Exception {
+		RemoteJar.Metadata metadata = RemoteJar.readMetadata(httpClient, uri, TIMEOUT);
+		if (metadata == null) return;
+
+		Path targetDir = instancePath.resolve(TARGET_DIR).toAbsolutePath().normalize();
+		ModEntry mod = new ModEntry(targetDir.resolve(filename),
+				Mod.parse(metadata.modsToml() != null ? new ByteArrayInputStream(metadata.modsToml()) : null, metadata.hasFabricJson(), metadata.manifest(), uri.toString()));
+		validate(mod);
+		findReplacedMods(mod, Mod.computeModList(targetDir)); // cheap with the mod index
+
+		if (DEBUG) System.out.println("range pre-check passed for "+uri);
+	}
+
+	// downloads and parses a mod, storing it in the instance's download cache, safe to run concurrently
+	private static PreparedFile prepareFile(String filename, DataSource dataSource, Path instancePath, String cacheKey) throws Exception {
+		return prepare(filename, instancePath, tmpFile -> {
+			MessageDigest digest = Sha256.createDigest();
+
+			try (InputStream is = new DigestInputStream(dataSource.open(), digest)) {
+				Files.copy(is, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+
+			ModEntry mod = Mod.parse(tmpFile);
+			validate(mod);
+
+			getCache(instancePath).put(cacheKey, filename, Sha256.toHex(digest.digest()), tmpFile, mod.mods());
+
+			return mod;
+		});
+	}
+
+	// copies a mod downloaded earlier from the same source out of the download cache, returns null if it isn't cached
+	private static PreparedFile prepareCached(String cacheKey, Path instancePath) throws Exception {
+		DownloadCache cache = getCache(instancePath);
+		CachedFile cached = cache.get(cacheKey);
+		if (cached == null) return null;
+
+		System.out.println("using cached download for "+cacheKey);
+
+		return prepare(cached.filename(), instancePath, tmpFile -> cache.copy(cached, tmpFile));
+	}
+
+	private static PreparedFile prepare(String filename, Path instancePath, FileSource source) throws Exception {
 		if (!isJar(filename) || filename.contains("/") || filename.contains("\\")) {
 			throw new IOException("invalid filename: "+filename);
 		}
@@ -323,43 +445,32 @@ public final class ModUpdateHandler {
 		Path tmpFile = Files.createTempFile("fcdDl", ".jar");
 
 		try {
-			try (InputStream is = dataSource.open()) {
-				Files.copy(is, tmpFile, StandardCopyOption.REPLACE_EXISTING);
-			}
-
-			ModEntry mod = Mod.parse(tmpFile);
-			if (mod.mods().isEmpty()) throw new IOException("jar doesn't contain any mods");
+			ModEntry mod = source.fill(tmpFile);
 
-			for (Mod m : mod.mods()) {
-				if (m.getVersion() == null) throw new IOException("mod "+m.getModId()+" doesn't declare a version");
+			if (mod == null) {
+				Files.delete(tmpFile);
+				return null;
 			}
 
-			ModList modList = Mod.computeModList(targetDir);
-			List<ModEntry> replacedMods = new ArrayList<>();
-
-			for (ModEntry activeMod : modList.active()) {
-				boolean intersects = false;
+			return new PreparedFile(filename, targetDir, targetFile, tmpFile, mod);
+		} catch (Throwable t) {
+			Files.deleteIfExists(tmpFile);
+			throw t;
+		}
+	}
 
-				intersectCheckLoop : for (Mod am : activeMod.mods()) {
-					for (Mod nm : mod.mods()) {
-						if (Objects.equals(am.getModId(), nm.getModId())) {
-							intersects = true;
-							break intersectCheckLoop;
-						}
-					}
-				}
+	// validates a prepared mod against the instance's active mods and moves it into place, serialized per instance
+	private static InstallResult commitFile(PreparedFile file, boolean simulate) throws Exception {
+		Path targetDir = file.targetDir();
+		ModEntry mod = file.mod();
 
-				if (intersects) {
-					if (Mod.compareMods(mod, activeMod) <= 0) {
-						throw new IOException("submitted mod "+mod.mods()+" doesn't have a higher version than the currently active mod "+activeMod.mods());
-					}
+		synchronized (installLocks.computeIfAbsent(targetDir, ignore -> new Object())) {
+			if (Files.exists(file.targetFile())) throw new FileAlreadyExistsException(file.filename());
 
-					replacedMods.add(activeMod);
-				}
-			}
+			List<ModEntry> replacedMods = findReplacedMods(mod, Mod.computeModList(targetDir));
 
 			if (simulate) {
-				Files.delete(tmpFile);
+				Files.delete(file.tmpFile());
 			} else {
 				Files.createDirectories(targetDir);
 
@@ -372,13 +483,57 @@ public final class ModUpdateHandler {
 					}
 				}
 
-				Files.move(tmpFile, targetFile, StandardCopyOption.REPLACE_EXISTING);
+				Files.move(file.tmpFile(), file.targetFile(), StandardCopyOption.REPLACE_EXISTING);
 			}
 
-			return new InstallResult(targetFile, replacedMods.isEmpty());
-		} catch (Throwable t) {
-			Files.deleteIfExists(tmpFile);
-			throw t;
+			return new InstallResult(file.targetFile(), replacedMods.isEmpty());
+		}
+	}
+
+	private static void validate(ModEntry mod) throws IOException {
+		if (mod.mods().isEmpty()) throw new IOException("jar doesn't contain any mods");
+
+		for (Mod m : mod.mods()) {
+			if (m.getVersion() == null) throw new IOException("mod "+m.getModId()+" doesn't declare a version");
+		}
+	}
+
+	// returns the active mods mod replaces, fails if it isn't newer than any of them
+	private static List<ModEntry> findReplacedMods(ModEntry mod, ModList modList) throws IOException {
+		List<ModEntry> ret = new ArrayList<>();
+
+		for (ModEntry activeMod : modList.active()) {
+			boolean intersects = false;
+
+			intersectCheckLoop : for (Mod am : activeMod.mods()) {
+				for (Mod nm : mod.mods()) {
+					if (Objects.equals(am.getModId(), nm.getModId())) {
+						intersects = true;
+						break intersectCheckLoop;
+					}
+				}
+			}
+
+			if (intersects) {
+				if (Mod.compareMods(mod, activeMod) <= 0) {
+					throw new IOException("submitted mod "+mod.mods()+" doesn't have a higher version than the currently active mod "+activeMod.mods());
+				}
+
+				ret.add(activeMod);
+			}
+		}
+
+		return ret;
+	}
+
+	// downloaded and parsed mod awaiting installation
+	private record PreparedFile(String filename, Path targetDir, Path targetFile, Path tmpFile, ModEntry mod) {
+		void discard() { // no-op after installing
+			try {
+				Files.deleteIfExists(tmpFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 	}
 
@@ -392,6 +547,14 @@ public final class ModUpdateHandler {
 		InputStream open() throws Exception;
 	}
 
+	private interface FileSource {
+		ModEntry fill(Path tmpFile) throws Exception; // returns null if unavailable
+	}
+
+	private static DownloadCache getCache(Path instancePath) {
+		return caches.computeIfAbsent(instancePath.toAbsolutePath().normalize(), path -> new DownloadCache(path.resolve(CACHE_DIR)));
+	}
+
 	private static final String TRIGGER_EMOJI = "👍";
 	private static final String SUCCESS_EMOJI = "✔️";
 	private static final String EMPTY_EMOJI = "❔";
@@ -401,6 +564,7 @@ public final class ModUpdateHandler {
 	private static final String SIM_NEW = "✨";
 
 	private static final Path TARGET_DIR = Paths.get("servermods");
+	private static final Path CACHE_DIR = Paths.get("servermods-cache");
 	private static final Duration TIMEOUT = Duration.ofSeconds(20);
 
 	private static final Pattern URL_PATTERN = Pattern.compile("(https?://[^\\s<]+[^\\s<\\.,:\\)])"); // approximate set or urls detected by discord (made clickable)
@@ -410,7 +574,13 @@ public final class ModUpdateHandler {
 	private static final Pattern CONTENT_DISPOSITION_PATTERN = Pattern.compile("\\s*attachment\\s*;(?:.+?;)?\\s*"
 			+ "(?:filename\\s*=\\s*|filename\\*\\s*=\\s*[^']+'[^']*')(\".+?\"|[^\"]+)\\s*(?:;.+?)?", Pattern.CASE_INSENSITIVE);
 
-	private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+	private static final boolean DEBUG = false;
+
+	private static final int MAX_PARALLEL_DOWNLOADS = 4;
+
+	private static final int WORKER_THREADS = 4; // instances processing updates concurrently
+
+	private static final ExecutorService workers = Executors.newFixedThreadPool(WORKER_THREADS, r -> {
 		Thread ret = new Thread(r, "mod update thread");
 		ret.setDaemon(true);
 		ret.setUncaughtExceptionHandler((thread, exc) -> exc.printStackTrace());
@@ -418,6 +588,19 @@ public final class ModUpdateHandler {
 		return ret;
 	});
 
+	private static final Map<Path, InstanceQueue> queues = new ConcurrentHashMap<>(); // instance path -> queue
+
+	private static final ExecutorService downloadExecutor = Executors.newFixedThreadPool(MAX_PARALLEL_DOWNLOADS, r -> {
+		Thread ret = new Thread(r, "mod download thread");
+		ret.setDaemon(true);
+
+		return ret;
+	});
+
+	private static final Map<Path, DownloadCache> caches = new ConcurrentHashMap<>(); // instance path -> download cache
+
+	private static final Map<Path, Object> installLocks = new ConcurrentHashMap<>(); // mod dir -> lock
+
 	private static final HttpClient httpClient = HttpClient.newBuilder()
 			.followRedirects(Redirect.NORMAL)
 			.connectTimeout(TIMEOUT)
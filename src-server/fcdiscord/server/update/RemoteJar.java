@@ -0,0 +1,254 @@
+package fcdiscord.server.update;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+ * Reads a remote jar's mod metadata with http range requests, so jars failing the checks are rejected before
+ * downloading them in full.
+ *
+ * The end of central directory record is located in the file's tail, then only the central directory and the entries
+ * Mod.parse looks at are fetched. Servers without range support, zip64 and anything else unexpected yield no result,
+ * leaving the decision to the full download.
+ */
+final class RemoteJar {
+	record Metadata(byte[] modsToml, boolean hasFabricJson, Manifest manifest) { }
+
+	// returns null if the metadata can't be obtained this way
+	static Metadata readMetadata(HttpClient client, URI uri, Duration timeout) throws InterruptedException {
+		try {
+			return new RemoteJar(client, uri, timeout).read();
+		} catch (IOException | RuntimeException e) {
+			System.out.printf("range pre-check of %s failed: %s%n", uri, e);
+			return null;
+		}
+	}
+
+	private RemoteJar(HttpClient client, URI uri, Duration timeout) {
+		this.client = client;
+		this.uri = uri;
+		this.timeout = timeout;
+	}
+
+	private Metadata read() throws IOException, InterruptedException {
+		Range tail = fetch("bytes=-"+SHORT_TAIL_SIZE);
+		if (tail == null) return null;
+
+		int eocd = findEocd(tail.data);
+
+		if (eocd < 0 && tail.start > 0) { // long archive comment
+			tail = fetch("bytes=-"+MAX_TAIL_SIZE);
+			if (tail == null) return null;
+			eocd = findEocd(tail.data);
+		}
+
+		if (eocd < 0) throw new IOException("no end of central directory");
+
+		ByteBuffer buf = tail.data;
+		int entryCount = buf.getShort(eocd + 10) & 0xffff;
+		long cdSize = buf.getInt(eocd + 12) & 0xffffffffL;
+		long cdOffset = buf.getInt(eocd + 16) & 0xffffffffL;
+
+		if (entryCount == 0xffff || cdSize == 0xffffffffL || cdOffset == 0xffffffffL) return null; // zip64
+		if (cdSize > MAX_CD_SIZE || cdOffset + cdSize > tail.start + eocd) throw new IOException("invalid central directory");
+
+		ByteBuffer cd;
+
+		if (cdOffset >= tail.start) {
+			cd = buf.slice((int) (cdOffset - tail.start), (int) cdSize).order(ByteOrder.LITTLE_ENDIAN);
+		} else {
+			Range range = fetch(cdOffset, cdSize);
+			if (range == null) return null;
+			cd = range.data;
+		}
+
+		Map<String, CdEntry> entries = new HashMap<>();
+		int pos = 0;
+
+		for (int i = 0; i < entryCount; i++) {
+			if (cd.limit() - pos < CD_HEADER_SIZE || cd.getInt(pos) != CD_SIGNATURE) throw new IOException("invalid central directory entry");
+
+			int nameLen = cd.getShort(pos + 28) & 0xffff;
+			int extraLen = cd.getShort(pos + 30) & 0xffff;
+			int commentLen = cd.getShort(pos + 32) & 0xffff;
+			if (cd.limit() - pos - CD_HEADER_SIZE < nameLen) throw new IOException("truncated central directory");
+
+			byte[] nameBytes = new byte[nameLen];
+			cd.get(pos + CD_HEADER_SIZE, nameBytes);
+			String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+			if (name.equals(Mod.MODS_TOML) || name.equals(Mod.FABRIC_JSON) || name.toUpperCase(Locale.ENGLISH).equals(JarFile.MANIFEST_NAME)) {
+				entries.putIfAbsent(name.equals(Mod.MODS_TOML) || name.equals(Mod.FABRIC_JSON) ? name : JarFile.MANIFEST_NAME,
+						new CdEntry(cd.getShort(pos + 10) & 0xffff,
+								cd.getInt(pos + 20) & 0xffffffffL,
+								cd.getInt(pos + 24) & 0xffffffffL,
+								cd.getInt(pos + 42) & 0xffffffffL,
+								nameLen + extraLen));
+			}
+
+			pos += CD_HEADER_SIZE + nameLen + extraLen + commentLen;
+		}
+
+		CdEntry tomlEntry = entries.get(Mod.MODS_TOML);
+		CdEntry manifestEntry = entries.get(JarFile.MANIFEST_NAME);
+		Range both = null;
+
+		if (tomlEntry != null && manifestEntry != null) { // usually adjacent at the start, fetch both at once
+			long start = Math.min(tomlEntry.offset, manifestEntry.offset);
+			long end = Math.max(tomlEntry.end(), manifestEntry.end());
+			if (end - start <= MAX_ENTRY_SIZE) both = fetch(start, end - start);
+		}
+
+		byte[] modsToml = tomlEntry != null ? readEntry(tomlEntry, both) : null;
+		if (tomlEntry != null && modsToml == null) return null;
+
+		Manifest manifest;
+
+		if (manifestEntry != null) {
+			byte[] data = readEntry(manifestEntry, both);
+			if (data == null) return null;
+			manifest = new Manifest(new ByteArrayInputStream(data));
+		} else {
+			manifest = new Manifest();
+		}
+
+		return new Metadata(modsToml, entries.containsKey(Mod.FABRIC_JSON), manifest);
+	}
+
+	private static int findEocd(ByteBuffer data) { // returns the record's offset or -1
+		for (int pos = data.limit() - EOCD_SIZE; pos >= 0; pos--) {
+			if (data.getInt(pos) == EOCD_SIGNATURE
+					&& pos + EOCD_SIZE + (data.getShort(pos + 20) & 0xffff) == data.limit()) { // comment extends to the end
+				return pos;
+			}
+		}
+
+		return -1;
+	}
+
+	// returns an entry's uncompressed data or null if unsupported, using the data in prefetched if it covers the entry
+	private byte[] readEntry(CdEntry entry, Range prefetched) throws IOException, InterruptedException {
+		if (entry.method != METHOD_STORED && entry.method != METHOD_DEFLATED
+				|| entry.size > MAX_ENTRY_SIZE || entry.compressedSize > MAX_ENTRY_SIZE) {
+			return null;
+		}
+
+		ByteBuffer buf;
+
+		if (prefetched != null) {
+			buf = prefetched.data.slice((int) (entry.offset - prefetched.start), (int) (entry.end() - entry.offset)).order(ByteOrder.LITTLE_ENDIAN);
+		} else {
+			Range range = fetch(entry.offset, entry.end() - entry.offset);
+			if (range == null) return null;
+			buf = range.data;
+		}
+
+		if (buf.getInt(0) != LOCAL_SIGNATURE) throw new IOException("invalid local header");
+
+		long dataOffset = LOCAL_HEADER_SIZE + (buf.getShort(26) & 0xffff) + (buf.getShort(28) & 0xffff);
+
+		if (dataOffset + entry.compressedSize > buf.limit()) { // the local header's extra field is longer than the central one's
+			Range range = fetch(entry.offset, dataOffset + entry.compressedSize);
+			if (range == null) return null;
+			buf = range.data;
+		}
+
+		byte[] ret = new byte[(int) entry.size];
+		ByteBuffer data = buf.slice((int) dataOffset, (int) entry.compressedSize);
+
+		if (entry.method == METHOD_STORED) {
+			if (entry.compressedSize != entry.size) throw new IOException("size mismatch");
+			data.get(ret);
+		} else {
+			Inflater inflater = new Inflater(true);
+
+			try {
+				inflater.setInput(data);
+				int len = inflater.inflate(ret);
+				if (len != ret.length) throw new IOException("size mismatch");
+			} catch (DataFormatException e) {
+				throw new IOException(e);
+			} finally {
+				inflater.end();
+			}
+		}
+
+		return ret;
+	}
+
+	private Range fetch(long start, long length) throws IOException, InterruptedException {
+		Range ret = fetch("bytes=%d-%d".formatted(start, start + length - 1));
+		if (ret != null && (ret.start != start || ret.data.limit() != length)) throw new IOException("unexpected range");
+
+		return ret;
+	}
+
+	// returns null if the server doesn't serve the range
+	private Range fetch(String range) throws IOException, InterruptedException {
+		HttpRequest request = HttpRequest.newBuilder(uri).timeout(timeout).header("Range", range).build();
+		HttpResponse<InputStream> response = client.send(request, BodyHandlers.ofInputStream());
+
+		try (InputStream is = response.body()) { // closing early aborts full responses
+			if (response.statusCode() != 206) return null;
+
+			Matcher matcher = CONTENT_RANGE_PATTERN.matcher(response.headers().firstValue("Content-Range").orElse(""));
+			if (!matcher.matches()) return null; // multipart or unknown total size
+
+			long start = Long.parseLong(matcher.group(1));
+			long end = Long.parseLong(matcher.group(2));
+			if (end < start || end - start >= MAX_RANGE_SIZE) throw new IOException("invalid range");
+
+			byte[] data = is.readNBytes((int) (end - start + 1));
+			if (data.length != end - start + 1) throw new IOException("truncated range");
+
+			return new Range(ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN), start);
+		}
+	}
+
+	private record Range(ByteBuffer data, long start) { }
+	private record CdEntry(int method, long compressedSize, long size, long offset, int namesLength) {
+		long end() { // assuming the local header's extra field has the central one's length, as usual
+			return offset + LOCAL_HEADER_SIZE + namesLength + compressedSize;
+		}
+	}
+
+	private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("\\s*bytes\\s+(\\d+)-(\\d+)/(\\d+)\\s*", Pattern.CASE_INSENSITIVE);
+
+	private static final int EOCD_SIGNATURE = 0x06054b50;
+	private static final int CD_SIGNATURE = 0x02014b50;
+	private static final int LOCAL_SIGNATURE = 0x04034b50;
+	private static final int EOCD_SIZE = 22;
+	private static final int CD_HEADER_SIZE = 46;
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int METHOD_STORED = 0;
+	private static final int METHOD_DEFLATED = 8;
+
+	private static final int SHORT_TAIL_SIZE = 16 * 1024; // usually covers the central directory of small jars
+	private static final int MAX_TAIL_SIZE = EOCD_SIZE + 0xffff; // with the longest comment
+	private static final long MAX_CD_SIZE = 4 * 1024 * 1024;
+	private static final long MAX_ENTRY_SIZE = 1024 * 1024;
+	private static final long MAX_RANGE_SIZE = MAX_CD_SIZE + MAX_ENTRY_SIZE;
+
+	private final HttpClient client;
+	private final URI uri;
+	private final Duration timeout;
+}
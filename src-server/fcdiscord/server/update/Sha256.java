@@ -0,0 +1,44 @@
+package fcdiscord.server.update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// content hashes identifying jars in the mod index and the download cache, as lower case hex
+final class Sha256 {
+	static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e); // required to be supported by every jvm
+		}
+	}
+
+	static String hash(Path file) throws IOException {
+		MessageDigest digest = createDigest();
+
+		try (InputStream is = new DigestInputStream(Files.newInputStream(file), digest)) {
+			is.transferTo(OutputStream.nullOutputStream());
+		}
+
+		return toHex(digest.digest());
+	}
+
+	static String toHex(byte[] data) {
+		StringBuilder ret = new StringBuilder(data.length * 2);
+
+		for (byte b : data) {
+			ret.append(Character.forDigit(b >>> 4 & 0xf, 16));
+			ret.append(Character.forDigit(b & 0xf, 16));
+		}
+
+		return ret.toString();
+	}
+
+	static final int LENGTH = 64; // hex chars
+}
@@ -0,0 +1,67 @@
+package fcdiscord.tools;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// lock free log-linear histogram with ~3% precision, values in ns
+final class LatencyHistogram {
+	void record(long value) {
+		if (value < 0) value = 0;
+
+		counts.incrementAndGet(index(value));
+	}
+
+	long getCount() {
+		long ret = 0;
+
+		for (int i = 0; i < counts.length(); i++) {
+			ret += counts.get(i);
+		}
+
+		return ret;
+	}
+
+	long getPercentile(double percentile) {
+		long[] snapshot = new long[counts.length()];
+		long total = 0;
+
+		for (int i = 0; i < snapshot.length; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+
+		if (total == 0) return 0;
+
+		long threshold = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long sum = 0;
+
+		for (int i = 0; i < snapshot.length; i++) {
+			sum += snapshot[i];
+			if (sum >= threshold) return value(i);
+		}
+
+		return value(snapshot.length - 1);
+	}
+
+	private static int index(long value) {
+		if (value < LINEAR_LIMIT) return (int) value;
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+
+		return LINEAR_LIMIT + (shift - 1) * HALF_SUB + (int) (value >>> shift) - HALF_SUB;
+	}
+
+	private static long value(int index) { // bucket midpoint
+		if (index < LINEAR_LIMIT) return index;
+
+		int shift = (index - LINEAR_LIMIT) / HALF_SUB + 1;
+		long sub = (index - LINEAR_LIMIT) % HALF_SUB + HALF_SUB;
+
+		return (sub << shift) + (1L << shift) / 2;
+	}
+
+	private static final int SUB_BITS = 6;
+	private static final int LINEAR_LIMIT = 1 << SUB_BITS;
+	private static final int HALF_SUB = LINEAR_LIMIT / 2;
+
+	private final AtomicLongArray counts = new AtomicLongArray(index(Long.MAX_VALUE) + 1);
+}
@@ -0,0 +1,384 @@
+package fcdiscord.tools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.URL;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import fcdiscord.client.ApiClient;
+import fcdiscord.server.ApiServer;
+import fcdiscord.server.DiscordBackend;
+
+/*
+ * Offline load generator and soak test for ApiServer, everything runs in this process:
+ *
+ * - a fake event source publishing synthetic guild messages through ApiServer.publishMessage
+ * - simulated ApiClients subscribing to a random mix of channels and sending messages back
+ * - a DiscordBackend sink recording what would have been sent to Discord
+ *
+ * usage: LoadTest [key=value...], see the options in main
+ */
+public final class LoadTest {
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+
+		for (String arg : args) {
+			int pos = arg.indexOf('=');
+			if (pos <= 0) throw new IllegalArgumentException("invalid argument, expected key=value: "+arg);
+
+			options.put(arg.substring(0, pos), arg.substring(pos + 1));
+		}
+
+		int clientCount = getInt(options, "clients", 20);
+		int channelCount = getInt(options, "channels", 10);
+		int subscriptions = Math.min(channelCount, getInt(options, "subscriptions", 3)); // channels per client
+		int eventRate = getInt(options, "rate", 1000); // discord messages per second
+		int clientRate = getInt(options, "clientRate", 5); // messages sent per client per second
+		int contentSize = getInt(options, "size", 80); // message content chars
+		int roleCount = getInt(options, "roles", 5);
+		int duration = getInt(options, "duration", 60); // s
+		int warmup = getInt(options, "warmup", 5); // s
+		int reportInterval = getInt(options, "report", 5); // s
+		String transport = options.getOrDefault("transport", "tcp"); // tcp, unix or shm
+		int port = getInt(options, "port", 45123);
+
+		Path tmpDir = Files.createTempDirectory("fcdLoad");
+		SocketAddress address;
+		Path shmDir = null;
+
+		switch (transport) {
+		case "tcp" -> address = new InetSocketAddress("localhost", port);
+		case "unix" -> address = UnixDomainSocketAddress.of(tmpDir.resolve("api.sock"));
+		case "shm" -> {
+			address = new InetSocketAddress("localhost", port);
+			shmDir = tmpDir;
+		}
+		default -> throw new IllegalArgumentException("invalid transport: "+transport);
+		}
+
+		LoadTest test = new LoadTest(channelCount, contentSize, roleCount);
+		ApiServer server = new ApiServer(List.of(address), shmDir, PASSWORD);
+		server.setBackend(test.sink);
+		Thread.sleep(500); // let the listener bind
+
+		Random rnd = new Random(0);
+		List<ApiClient> clients = new ArrayList<>(clientCount);
+		List<long[]> clientChannels = new ArrayList<>(clientCount);
+
+		for (int i = 0; i < clientCount; i++) {
+			List<Long> channels = new ArrayList<>(test.channelIds);
+			Collections.shuffle(channels, rnd);
+			long[] subscribed = channels.subList(0, subscriptions).stream().mapToLong(Long::longValue).toArray();
+
+			ApiClient client = ApiClient.create(address, shmDir, PASSWORD);
+			client.registerMessageHandler(test::onClientMessage, subscribed);
+			clients.add(client);
+			clientChannels.add(subscribed);
+
+			for (long channel : subscribed) {
+				test.subscriberCounts.merge(channel, 1, Integer::sum);
+			}
+		}
+
+		long connectDeadline = System.nanoTime() + 30_000_000_000L;
+
+		while (server.getApiStats().getActiveConnections() < clientCount) {
+			if (System.nanoTime() - connectDeadline > 0) throw new IllegalStateException("clients failed to connect");
+			Thread.sleep(10);
+		}
+
+		for (long channel : test.channelIds) {
+			while (!server.hasSubscribers(channel) && test.subscriberCounts.containsKey(channel)) Thread.sleep(10);
+		}
+
+		System.out.printf("running %d clients over %s, %d channels, %d subscriptions each, %d events/s, %d client msgs/s, %ds (+%ds warmup)%n",
+				clientCount, transport, channelCount, subscriptions, eventRate, clientRate * clientCount, duration, warmup);
+
+		Thread source = new Thread(() -> test.runSource(server, eventRate), "load source");
+		source.setDaemon(true);
+		source.start();
+
+		Thread clientSender = new Thread(() -> test.runClients(clients, clientChannels, clientRate * clientCount), "load client sender");
+		clientSender.setDaemon(true);
+		clientSender.start();
+
+		Thread.sleep(warmup * 1000L);
+		test.reset();
+
+		long start = System.nanoTime();
+		long end = start + duration * 1_000_000_000L;
+		long nextReport = start;
+		Stats last = test.snapshot();
+
+		while (System.nanoTime() - end < 0) {
+			nextReport += reportInterval * 1_000_000_000L;
+			LockSupport.parkNanos(Math.min(nextReport, end) - System.nanoTime());
+
+			Stats cur = test.snapshot();
+			test.report("interval", last, cur);
+			last = cur;
+		}
+
+		test.running = false;
+		source.join();
+		clientSender.join();
+		Thread.sleep(500); // drain in-flight deliveries
+
+		test.report("total", test.startStats, test.snapshot());
+
+		for (ApiClient client : clients) {
+			client.close();
+		}
+
+		server.close();
+
+		try (var files = Files.list(tmpDir)) {
+			for (Path file : (Iterable<Path>) files::iterator) Files.deleteIfExists(file);
+		}
+
+		Files.deleteIfExists(tmpDir);
+		System.exit(0);
+	}
+
+	private static int getInt(Map<String, String> options, String key, int def) {
+		String value = options.get(key);
+
+		return value != null ? Integer.parseInt(value) : def;
+	}
+
+	private LoadTest(int channelCount, int contentSize, int roleCount) {
+		for (int i = 0; i < channelCount; i++) {
+			channelIds.add(CHANNEL_BASE_ID + i);
+		}
+
+		Random rnd = new Random(1);
+
+		for (int i = 0; i < AUTHOR_COUNT; i++) {
+			List<Long> roles = new ArrayList<>(roleCount);
+
+			for (int j = 0; j < roleCount; j++) {
+				roles.add(ROLE_BASE_ID + rnd.nextInt(1000));
+			}
+
+			authors.add(new Author(AUTHOR_BASE_ID + i, "Player"+i, roles, rnd.nextBoolean() ? rnd.nextInt(0xffffff) : null));
+		}
+
+		StringBuilder sb = new StringBuilder(contentSize);
+
+		while (sb.length() < contentSize) {
+			sb.append("lorem ipsum dolor sit amet ");
+		}
+
+		padding = sb.substring(0, contentSize);
+	}
+
+	private void runSource(ApiServer server, int rate) {
+		Random rnd = new Random(2);
+		long interval = 1_000_000_000L / Math.max(1, rate);
+		long next = System.nanoTime();
+
+		while (running) {
+			long now = System.nanoTime();
+
+			if (now - next < 0) {
+				LockSupport.parkNanos(next - now);
+				continue;
+			}
+
+			next += interval;
+
+			long channelId = channelIds.get(rnd.nextInt(channelIds.size()));
+			Author author = authors.get(rnd.nextInt(authors.size()));
+
+			server.publishMessage(nextMessageId.incrementAndGet(), channelId,
+					author.id, author.name, false, author.roles, author.roleColor,
+					System.nanoTime()+" "+padding);
+
+			published.increment();
+			expectedDeliveries.add(subscriberCounts.getOrDefault(channelId, 0));
+		}
+	}
+
+	private void runClients(List<ApiClient> clients, List<long[]> clientChannels, int rate) {
+		if (rate <= 0) return;
+
+		Random rnd = new Random(3);
+		long interval = 1_000_000_000L / rate;
+		long next = System.nanoTime();
+		int idx = 0;
+
+		while (running) {
+			long now = System.nanoTime();
+
+			if (now - next < 0) {
+				LockSupport.parkNanos(next - now);
+				continue;
+			}
+
+			next += interval;
+			idx = (idx + 1) % clients.size();
+
+			ApiClient client = clients.get(idx);
+			long[] channels = clientChannels.get(idx);
+			long channelId = channels[rnd.nextInt(channels.length)];
+			String content = System.nanoTime()+" "+padding;
+
+			if ((idx & 1) == 0) {
+				client.sendMessage(channelId, content);
+			} else {
+				client.sendWebhookMessage(channelId, content, authors.get(idx % authors.size()).name, AVATAR_URL);
+			}
+
+			clientSent.increment();
+		}
+	}
+
+	private void onClientMessage(long id, long channelId, long authorId, String authorName, boolean fromBot, List<Long> roles, Integer roleColor, String content) {
+		long now = System.nanoTime();
+		s2cLatency.record(now - parseTimestamp(content));
+		delivered.increment();
+	}
+
+	private static long parseTimestamp(String content) {
+		int end = content.indexOf(' ');
+
+		return Long.parseLong(end >= 0 ? content.substring(0, end) : content);
+	}
+
+	private void reset() {
+		s2cLatency = new LatencyHistogram();
+		c2sLatency = new LatencyHistogram();
+		startStats = snapshot();
+	}
+
+	private Stats snapshot() {
+		return new Stats(System.nanoTime(), published.sum(), expectedDeliveries.sum(), delivered.sum(), clientSent.sum(), sink.received.sum(), getDroppedFrames());
+	}
+
+	private static long getDroppedFrames() {
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		long ret = 0;
+
+		try {
+			for (ObjectName name : mbs.queryNames(new ObjectName("fcdiscord:type=ApiConnection,*"), null)) {
+				ret += (Long) mbs.getAttribute(name, "DroppedFrames");
+			}
+		} catch (Exception e) {
+			// connection closed concurrently
+		}
+
+		return ret;
+	}
+
+	private void report(String type, Stats from, Stats to) {
+		double sec = (to.time - from.time) * 1e-9;
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		System.out.printf("[%s %.1fs] events %.0f/s, deliveries %.0f/s (%d of %d expected), client sends %.0f/s, sink %.0f/s, dropped frames %d%n",
+				type, sec,
+				(to.published - from.published) / sec,
+				(to.delivered - from.delivered) / sec, to.delivered - from.delivered, to.expected - from.expected,
+				(to.clientSent - from.clientSent) / sec,
+				(to.sinkReceived - from.sinkReceived) / sec,
+				to.dropped - from.dropped);
+		System.out.printf("    s2c latency p50 %s p99 %s p999 %s, c2s latency p50 %s p99 %s p999 %s%n",
+				formatNanos(s2cLatency.getPercentile(50)), formatNanos(s2cLatency.getPercentile(99)), formatNanos(s2cLatency.getPercentile(99.9)),
+				formatNanos(c2sLatency.getPercentile(50)), formatNanos(c2sLatency.getPercentile(99)), formatNanos(c2sLatency.getPercentile(99.9)));
+		System.out.printf("    heap %d MiB used / %d MiB committed, %d threads (peak %d)%n",
+				memory.getHeapMemoryUsage().getUsed() >> 20, memory.getHeapMemoryUsage().getCommitted() >> 20,
+				threads.getThreadCount(), threads.getPeakThreadCount());
+	}
+
+	private static String formatNanos(long nanos) {
+		if (nanos < 10_000) return nanos+"ns";
+		if (nanos < 10_000_000) return (nanos / 1000)+"us";
+
+		return (nanos / 1_000_000)+"ms";
+	}
+
+	private final class RecordingSink implements DiscordBackend {
+		@Override
+		public CompletableFuture<Long> sendMessage(long channelId, String content) {
+			return record(content);
+		}
+
+		@Override
+		public CompletableFuture<Long> sendWebhookMessage(long channelId, String content, String user, URL avatarUrl) {
+			return record(content);
+		}
+
+		@Override
+		public CompletableFuture<Long> sendFile(long channelId, String content, Path file, String fileName) {
+			return record(content);
+		}
+
+		@Override
+		public CompletableFuture<Void> addReaction(long channelId, long messageId, String reaction) {
+			received.increment();
+
+			return CompletableFuture.completedFuture(null);
+		}
+
+		private CompletableFuture<Long> record(String content) {
+			c2sLatency.record(System.nanoTime() - parseTimestamp(content));
+			received.increment();
+
+			return CompletableFuture.completedFuture(nextMessageId.incrementAndGet());
+		}
+
+		final LongAdder received = new LongAdder();
+	}
+
+	private record Author(long id, String name, List<Long> roles, Integer roleColor) { }
+	private record Stats(long time, long published, long expected, long delivered, long clientSent, long sinkReceived, long dropped) { }
+
+	private static final String PASSWORD = "loadtest";
+	private static final int AUTHOR_COUNT = 200;
+	private static final long CHANNEL_BASE_ID = 900_000_000_000_000_000L;
+	private static final long AUTHOR_BASE_ID = 800_000_000_000_000_000L;
+	private static final long ROLE_BASE_ID = 700_000_000_000_000_000L;
+	private static final URL AVATAR_URL;
+
+	static {
+		try {
+			AVATAR_URL = new URL("https://crafatar.com/avatars/069a79f444e94726a5befca90e38aaf5");
+		} catch (Exception e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final List<Long> channelIds = new ArrayList<>();
+	private final List<Author> authors = new ArrayList<>();
+	private final Map<Long, Integer> subscriberCounts = new HashMap<>();
+	private final String padding;
+	private final RecordingSink sink = new RecordingSink();
+
+	private final AtomicLong nextMessageId = new AtomicLong(1_000_000_000_000_000_000L);
+	private final LongAdder published = new LongAdder();
+	private final LongAdder expectedDeliveries = new LongAdder();
+	private final LongAdder delivered = new LongAdder();
+	private final LongAdder clientSent = new LongAdder();
+	private volatile LatencyHistogram s2cLatency = new LatencyHistogram();
+	private volatile LatencyHistogram c2sLatency = new LatencyHistogram();
+	private volatile Stats startStats;
+	private volatile boolean running = true;
+}
@@ -0,0 +1,299 @@
+package fcdiscord.tools;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.URL;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import fcdiscord.ApiCodec;
+import fcdiscord.ApiCommon;
+import fcdiscord.TrafficCaptureReader;
+import fcdiscord.TrafficRecorder;
+import fcdiscord.server.ApiServer;
+import fcdiscord.server.DiscordBackend;
+
+/*
+ * Replays a TrafficRecorder capture with the original timing, scaled or as fast as possible.
+ *
+ * usage: Replay <capture file> <mode> [speed=<factor>|max] [connection=<id>]
+ * modes:
+ *   server <host:port|socket path> <password>  replay the c2s traffic into a running ApiServer, sends will reach Discord!
+ *   local                                      replay the c2s traffic into an in-process ApiServer with a counting backend
+ *   client <port>                              wait for an ApiClient to connect and replay the s2c traffic into it
+ */
+public final class Replay extends ApiCommon {
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("usage: <capture file> <server <address> <password>|local|client <port>> [speed=<factor>|max] [connection=<id>]");
+			System.exit(1);
+		}
+
+		Path captureFile = Paths.get(args[0]);
+		String mode = args[1];
+		int optionStart = switch (mode) {
+		case "server" -> 4;
+		case "local" -> 2;
+		case "client" -> 3;
+		default -> throw new IllegalArgumentException("invalid mode: "+mode);
+		};
+
+		double speed = 1;
+		int connection = -1;
+
+		for (int i = optionStart; i < args.length; i++) {
+			String arg = args[i];
+
+			if (arg.startsWith("speed=")) {
+				String value = arg.substring(6);
+				speed = value.equals("max") ? 0 : Double.parseDouble(value);
+			} else if (arg.startsWith("connection=")) {
+				connection = Integer.parseInt(arg.substring(11));
+			} else {
+				throw new IllegalArgumentException("invalid option: "+arg);
+			}
+		}
+
+		Replay replay = new Replay(speed, connection);
+
+		switch (mode) {
+		case "server" -> replay.replayIntoServer(captureFile, parseAddress(args[2]), args[3]);
+		case "local" -> replay.replayIntoLocalServer(captureFile);
+		case "client" -> replay.replayIntoClient(captureFile, Integer.parseInt(args[2]));
+		}
+
+		replay.close();
+		System.exit(0);
+	}
+
+	private static SocketAddress parseAddress(String address) {
+		int pos = address.lastIndexOf(':');
+
+		if (address.contains("/") || pos < 0) {
+			return UnixDomainSocketAddress.of(address);
+		} else {
+			return new InetSocketAddress(address.substring(0, pos), Integer.parseInt(address.substring(pos + 1)));
+		}
+	}
+
+	private Replay(double speed, int connection) {
+		super("replay");
+
+		this.speed = speed;
+		this.connection = connection;
+	}
+
+	private void replayIntoServer(Path captureFile, SocketAddress address, String pw) throws IOException {
+		Map<Integer, ChannelContext> contexts = new HashMap<>();
+		long start = System.nanoTime();
+
+		try (TrafficCaptureReader reader = new TrafficCaptureReader(captureFile)) {
+			while (reader.next()) {
+				int id = reader.getConnectionId();
+				if (connection >= 0 && id != connection) continue;
+
+				switch (reader.getType()) {
+				case TrafficRecorder.TYPE_C2S -> {
+					ChannelContext context = contexts.get(id);
+
+					if (context == null) {
+						context = connect(address, pw);
+						contexts.put(id, context);
+					}
+
+					awaitDue(start, reader.getTime());
+					write(context, reader.getFrame());
+				}
+				case TrafficRecorder.TYPE_CLOSE -> {
+					ChannelContext context = contexts.remove(id);
+					if (context != null) disconnect(context);
+				}
+				}
+			}
+		}
+
+		for (ChannelContext context : contexts.values()) {
+			disconnect(context);
+		}
+
+		report(start);
+	}
+
+	private void replayIntoLocalServer(Path captureFile) throws Exception {
+		Path tmpDir = Files.createTempDirectory("fcdReplay");
+		SocketAddress address = UnixDomainSocketAddress.of(tmpDir.resolve("api.sock"));
+		CountingBackend backend = new CountingBackend();
+		ApiServer server = new ApiServer(List.of(address), null, LOCAL_PASSWORD);
+		server.setBackend(backend);
+		Thread.sleep(500); // let the listener bind
+
+		replayIntoServer(captureFile, address, LOCAL_PASSWORD);
+
+		while (server.getApiStats().getActiveConnections() > 0) { // wait for the server to process everything
+			Thread.sleep(1);
+		}
+
+		System.out.printf("server processed: %d messages, %d webhook messages, %d files (%d bytes), %d reactions%n",
+				backend.messages.sum(), backend.webhookMessages.sum(), backend.files.sum(), backend.fileBytes.sum(), backend.reactions.sum());
+
+		server.close();
+		Files.deleteIfExists(tmpDir.resolve("api.sock"));
+		Files.deleteIfExists(tmpDir);
+	}
+
+	private void replayIntoClient(Path captureFile, int port) throws IOException {
+		ChannelContext context = new ChannelContext();
+
+		try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+			serverChannel.bind(new InetSocketAddress(port));
+			System.out.printf("waiting for a client on port %d%n", port);
+
+			SocketChannel channel = serverChannel.accept();
+			context.init(channel);
+			System.out.printf("client connected from %s%n", context.getRemoteAddress());
+		}
+
+		long start = System.nanoTime();
+		long firstTime = -1;
+
+		try (TrafficCaptureReader reader = new TrafficCaptureReader(captureFile)) {
+			while (reader.next()) {
+				if (reader.getType() != TrafficRecorder.TYPE_S2C) continue;
+				if (connection >= 0 && reader.getConnectionId() != connection) continue;
+				if (firstTime < 0) firstTime = reader.getTime();
+
+				awaitDue(start, reader.getTime() - firstTime);
+				write(context, reader.getFrame());
+			}
+		}
+
+		disconnect(context);
+		report(start);
+	}
+
+	private ChannelContext connect(SocketAddress address, String pw) throws IOException {
+		ChannelContext ret = new ChannelContext();
+		ret.init(SocketChannel.open(address));
+
+		ret.frameAndWrite(ApiCodec.encodeLogin(API_VERSION, pw));
+
+		return ret;
+	}
+
+	private void disconnect(ChannelContext context) {
+		ByteBuffer buffer = commandBuffer(COMMAND_EXIT, 0);
+		context.frameAndWrite(buffer);
+
+		while (context.getPendingWriteBytes() > 0) {
+			LockSupport.parkNanos(100_000);
+		}
+
+		context.clear();
+	}
+
+	private void awaitDue(long start, long recordTime) {
+		if (speed <= 0) return;
+
+		long due = start + (long) (recordTime / speed);
+		long now;
+
+		while ((now = System.nanoTime()) - due < 0) {
+			LockSupport.parkNanos(due - now);
+		}
+	}
+
+	private void write(ChannelContext context, ByteBuffer frame) {
+		while (context.getPendingWriteBytes() > MAX_PENDING) { // keep the connection's write queue from overflowing when replaying fast
+			LockSupport.parkNanos(100_000);
+		}
+
+		if (context.writeFrame(frame)) {
+			framesSent++;
+			bytesSent += frame.remaining();
+		}
+	}
+
+	private void report(long start) {
+		double sec = (System.nanoTime() - start) * 1e-9;
+
+		System.out.printf("replayed %d frames / %d bytes in %.3fs (%.0f frames/s, %.1f MB/s), received %d frames%n",
+				framesSent, bytesSent, sec, framesSent / sec, bytesSent / sec * 1e-6, framesReceived.get());
+	}
+
+	@Override
+	protected boolean processCommand(ChannelContext context, String cmd, ByteBuffer buffer, boolean eof) {
+		framesReceived.incrementAndGet();
+
+		return true;
+	}
+
+	@Override
+	public void close() {
+		apiStats.close();
+	}
+
+	private static final class CountingBackend implements DiscordBackend {
+		@Override
+		public CompletableFuture<Long> sendMessage(long channelId, String content) {
+			messages.increment();
+
+			return CompletableFuture.completedFuture(nextId.incrementAndGet());
+		}
+
+		@Override
+		public CompletableFuture<Long> sendWebhookMessage(long channelId, String content, String user, URL avatarUrl) {
+			webhookMessages.increment();
+
+			return CompletableFuture.completedFuture(nextId.incrementAndGet());
+		}
+
+		@Override
+		public CompletableFuture<Long> sendFile(long channelId, String content, Path file, String fileName) {
+			try {
+				fileBytes.add(Files.size(file));
+			} catch (IOException e) {
+				return CompletableFuture.failedFuture(e);
+			}
+
+			files.increment();
+
+			return CompletableFuture.completedFuture(nextId.incrementAndGet());
+		}
+
+		@Override
+		public CompletableFuture<Void> addReaction(long channelId, long messageId, String reaction) {
+			reactions.increment();
+
+			return CompletableFuture.completedFuture(null);
+		}
+
+		final AtomicLong nextId = new AtomicLong();
+		final LongAdder messages = new LongAdder();
+		final LongAdder webhookMessages = new LongAdder();
+		final LongAdder files = new LongAdder();
+		final LongAdder fileBytes = new LongAdder();
+		final LongAdder reactions = new LongAdder();
+	}
+
+	private static final String LOCAL_PASSWORD = "replay";
+	private static final int MAX_PENDING = 256 * 1024;
+
+	private final double speed; // 0 for max speed
+	private final int connection; // -1 for all
+	private final AtomicLong framesReceived = new AtomicLong();
+	private long framesSent;
+	private long bytesSent;
+}
@@ -0,0 +1,928 @@
+// generated by src-gen/fcdiscord/gen/CodecGenerator.java from schema/api.schema, don't edit
+
+package fcdiscord;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/*
+ * Encoders and decoders for all api commands. The encoders return the unflipped frame as expected by
+ * ApiCommon.frame and ChannelContext.frameAndWrite, the dispatch methods decode a frame's fields and pass them to
+ * the matching handler method.
+ */
+public final class ApiCodec {
+	public static final String COMMAND_C2S_LOGIN = "login";
+	public static final String COMMAND_C2S_SHM_CONNECT = "shmConnect";
+	public static final String COMMAND_C2S_SEND_MESSAGE = "sendChannel";
+	public static final String COMMAND_C2S_SEND_WEBHOOK_MESSAGE = "sendChannelWebhook";
+	public static final String COMMAND_C2S_SEND_WEBHOOK_MESSAGE_REF = "sendChannelWebhookRef";
+	public static final String COMMAND_C2S_DEFINE_WEBHOOK_IDENTITY = "defineWebhookIdentity";
+	public static final String COMMAND_C2S_EVICT_WEBHOOK_IDENTITY = "evictWebhookIdentity";
+	public static final String COMMAND_C2S_ADD_REACTION = "addReaction";
+	public static final String COMMAND_C2S_ADD_REACTIONS = "addReactions";
+	public static final String COMMAND_C2S_SUBSCRIBE_CHANNEL = "subscribeChannel";
+	public static final String COMMAND_C2S_UNSUBSCRIBE_CHANNEL = "unsubscribeChannel";
+	public static final String COMMAND_C2S_SET_RELAY_ECHO = "setRelayEcho";
+	public static final String COMMAND_C2S_SET_RELAY_MODE = "setRelayMode";
+	public static final String COMMAND_C2S_UPLOAD_BEGIN = "uploadBegin";
+	public static final String COMMAND_C2S_UPLOAD_CHUNK = "uploadChunk";
+	public static final String COMMAND_C2S_UPLOAD_END = "uploadEnd";
+	public static final String COMMAND_C2S_FETCH_ATTACHMENT = "fetchAttachment";
+	public static final String COMMAND_C2S_FETCH_HISTORY = "fetchHistory";
+	public static final String COMMAND_S2C_ON_MESSAGE = "onMessage";
+	public static final String COMMAND_S2C_ON_MESSAGE_REF = "onMessageRef";
+	public static final String COMMAND_S2C_ON_MESSAGE_ATTACHMENTS = "onMessageAttachments";
+	public static final String COMMAND_S2C_DEFINE_AUTHOR = "defineAuthor";
+	public static final String COMMAND_S2C_EVICT_AUTHOR = "evictAuthor";
+	public static final String COMMAND_S2C_UPLOAD_RESULT = "uploadResult";
+	public static final String COMMAND_S2C_ATTACHMENT_CHUNK = "attachmentChunk";
+	public static final String COMMAND_S2C_ATTACHMENT_END = "attachmentEnd";
+	public static final String COMMAND_S2C_HISTORY_MESSAGE = "historyMessage";
+	public static final String COMMAND_S2C_HISTORY_END = "historyEnd";
+	public static final String COMMAND_S2C_RELAY_ORIGIN = "relayOrigin";
+
+	public record Attachment(long id, String fileName, long size, String contentType) { }
+	public record Reaction(long channelId, long messageId, String reaction) { }
+
+	public interface C2SHandler<C> {
+		boolean handleLogin(C context, int version, String password);
+		boolean handleShmConnect(C context, int version, String c2sName, String s2cName);
+		boolean handleSendMessage(C context, long channelId, String content);
+		boolean handleSendWebhookMessage(C context, long channelId, String content, String user, String avatarUrl);
+		boolean handleSendWebhookMessageRef(C context, long channelId, int identityRef, String content);
+		boolean handleDefineWebhookIdentity(C context, int ref, String user, String avatarUrl);
+		boolean handleEvictWebhookIdentity(C context, int ref);
+		boolean handleAddReaction(C context, long channelId, long messageId, String reaction);
+		boolean handleAddReactions(C context, List<Reaction> reactions);
+		boolean handleSubscribeChannel(C context, List<Long> channelIds);
+		boolean handleUnsubscribeChannel(C context, List<Long> channelIds);
+		boolean handleSetRelayEcho(C context, boolean enabled);
+		boolean handleSetRelayMode(C context, boolean enabled);
+		boolean handleUploadBegin(C context, int uploadId, long channelId, long size, String fileName, String content);
+		boolean handleUploadChunk(C context, int uploadId, ByteBuffer data); // data is only valid during the call
+		boolean handleUploadEnd(C context, int uploadId, boolean abort);
+		boolean handleFetchAttachment(C context, int requestId, long attachmentId);
+		boolean handleFetchHistory(C context, int requestId, long channelId, long beforeId, int limit);
+		boolean handleUnknown(C context, String cmd);
+	}
+
+	public interface S2CHandler<C> {
+		boolean handleOnMessage(C context, long id, long channelId, long authorId, String authorName, boolean fromBot, List<Long> roleIds, Integer roleColor, String content);
+		boolean handleOnMessageRef(C context, long id, long channelId, int authorRef, String content);
+		boolean handleOnMessageAttachments(C context, long id, long channelId, int authorRef, String content, List<Attachment> attachments);
+		boolean handleDefineAuthor(C context, int ref, long authorId, String name, boolean fromBot, List<Long> roleIds, Integer roleColor);
+		boolean handleEvictAuthor(C context, int ref);
+		boolean handleUploadResult(C context, int uploadId, long messageId, String error);
+		boolean handleAttachmentChunk(C context, int requestId, ByteBuffer data); // data is only valid during the call
+		boolean handleAttachmentEnd(C context, int requestId, long size, String error);
+		boolean handleHistoryMessage(C context, int requestId, ByteBuffer message); // data is only valid during the call
+		boolean handleHistoryEnd(C context, int requestId, int count, String error);
+		boolean handleRelayOrigin(C context, long messageId, boolean own);
+		boolean handleUnknown(C context, String cmd);
+	}
+
+	public static <C> boolean dispatchC2S(C context, String cmd, ByteBuffer buffer, C2SHandler<C> handler) {
+		switch (cmd) {
+		case COMMAND_C2S_LOGIN -> {
+			int version = buffer.getInt();
+			String password = getString(buffer);
+
+			return handler.handleLogin(context, version, password);
+		}
+		case COMMAND_C2S_SHM_CONNECT -> {
+			int version = buffer.getInt();
+			String c2sName = getString(buffer);
+			String s2cName = getString(buffer);
+
+			return handler.handleShmConnect(context, version, c2sName, s2cName);
+		}
+		case COMMAND_C2S_SEND_MESSAGE -> {
+			long channelId = buffer.getLong();
+			String content = getString(buffer);
+
+			return handler.handleSendMessage(context, channelId, content);
+		}
+		case COMMAND_C2S_SEND_WEBHOOK_MESSAGE -> {
+			long channelId = buffer.getLong();
+			String content = getString(buffer);
+			String user = getString(buffer);
+			String avatarUrl = getString(buffer);
+
+			return handler.handleSendWebhookMessage(context, channelId, content, user, avatarUrl);
+		}
+		case COMMAND_C2S_SEND_WEBHOOK_MESSAGE_REF -> {
+			long channelId = buffer.getLong();
+			int identityRef = buffer.getInt();
+			String content = getString(buffer);
+
+			return handler.handleSendWebhookMessageRef(context, channelId, identityRef, content);
+		}
+		case COMMAND_C2S_DEFINE_WEBHOOK_IDENTITY -> {
+			int ref = buffer.getInt();
+			String user = getString(buffer);
+			String avatarUrl = getString(buffer);
+
+			return handler.handleDefineWebhookIdentity(context, ref, user, avatarUrl);
+		}
+		case COMMAND_C2S_EVICT_WEBHOOK_IDENTITY -> {
+			int ref = buffer.getInt();
+
+			return handler.handleEvictWebhookIdentity(context, ref);
+		}
+		case COMMAND_C2S_ADD_REACTION -> {
+			long channelId = buffer.getLong();
+			long messageId = buffer.getLong();
+			String reaction = getString(buffer);
+
+			return handler.handleAddReaction(context, channelId, messageId, reaction);
+		}
+		case COMMAND_C2S_ADD_REACTIONS -> {
+			List<Reaction> reactions = getReactionList(buffer);
+
+			return handler.handleAddReactions(context, reactions);
+		}
+		case COMMAND_C2S_SUBSCRIBE_CHANNEL -> {
+			List<Long> channelIds = getLongs(buffer);
+
+			return handler.handleSubscribeChannel(context, channelIds);
+		}
+		case COMMAND_C2S_UNSUBSCRIBE_CHANNEL -> {
+			List<Long> channelIds = getLongs(buffer);
+
+			return handler.handleUnsubscribeChannel(context, channelIds);
+		}
+		case COMMAND_C2S_SET_RELAY_ECHO -> {
+			boolean enabled = buffer.get() != 0;
+
+			return handler.handleSetRelayEcho(context, enabled);
+		}
+		case COMMAND_C2S_SET_RELAY_MODE -> {
+			boolean enabled = buffer.get() != 0;
+
+			return handler.handleSetRelayMode(context, enabled);
+		}
+		case COMMAND_C2S_UPLOAD_BEGIN -> {
+			int uploadId = buffer.getInt();
+			long channelId = buffer.getLong();
+			long size = buffer.getLong();
+			String fileName = getString(buffer);
+			String content = getString(buffer);
+
+			return handler.handleUploadBegin(context, uploadId, channelId, size, fileName, content);
+		}
+		case COMMAND_C2S_UPLOAD_CHUNK -> {
+			int uploadId = buffer.getInt();
+			ByteBuffer data = buffer;
+
+			return handler.handleUploadChunk(context, uploadId, data);
+		}
+		case COMMAND_C2S_UPLOAD_END -> {
+			int uploadId = buffer.getInt();
+			boolean abort = buffer.get() != 0;
+
+			return handler.handleUploadEnd(context, uploadId, abort);
+		}
+		case COMMAND_C2S_FETCH_ATTACHMENT -> {
+			int requestId = buffer.getInt();
+			long attachmentId = buffer.getLong();
+
+			return handler.handleFetchAttachment(context, requestId, attachmentId);
+		}
+		case COMMAND_C2S_FETCH_HISTORY -> {
+			int requestId = buffer.getInt();
+			long channelId = buffer.getLong();
+			long beforeId = buffer.getLong();
+			int limit = buffer.getInt();
+
+			return handler.handleFetchHistory(context, requestId, channelId, beforeId, limit);
+		}
+		default -> {
+			return handler.handleUnknown(context, cmd);
+		}
+		}
+	}
+
+	public static <C> boolean dispatchS2C(C context, String cmd, ByteBuffer buffer, S2CHandler<C> handler) {
+		switch (cmd) {
+		case COMMAND_S2C_ON_MESSAGE -> {
+			long id = buffer.getLong();
+			long channelId = buffer.getLong();
+			long authorId = buffer.getLong();
+			String authorName = getString(buffer);
+			boolean fromBot = buffer.get() != 0;
+			List<Long> roleIds = getLongs(buffer);
+			Integer roleColor = getOptInt(buffer);
+			String content = getString(buffer);
+
+			return handler.handleOnMessage(context, id, channelId, authorId, authorName, fromBot, roleIds, roleColor, content);
+		}
+		case COMMAND_S2C_ON_MESSAGE_REF -> {
+			long id = buffer.getLong();
+			long channelId = buffer.getLong();
+			int authorRef = buffer.getInt();
+			String content = getString(buffer);
+
+			return handler.handleOnMessageRef(context, id, channelId, authorRef, content);
+		}
+		case COMMAND_S2C_ON_MESSAGE_ATTACHMENTS -> {
+			long id = buffer.getLong();
+			long channelId = buffer.getLong();
+			int authorRef = buffer.getInt();
+			String content = getString(buffer);
+			List<Attachment> attachments = getAttachmentList(buffer);
+
+			return handler.handleOnMessageAttachments(context, id, channelId, authorRef, content, attachments);
+		}
+		case COMMAND_S2C_DEFINE_AUTHOR -> {
+			int ref = buffer.getInt();
+			long authorId = buffer.getLong();
+			String name = getString(buffer);
+			boolean fromBot = buffer.get() != 0;
+			List<Long> roleIds = getLongs(buffer);
+			Integer roleColor = getOptInt(buffer);
+
+			return handler.handleDefineAuthor(context, ref, authorId, name, fromBot, roleIds, roleColor);
+		}
+		case COMMAND_S2C_EVICT_AUTHOR -> {
+			int ref = buffer.getInt();
+
+			return handler.handleEvictAuthor(context, ref);
+		}
+		case COMMAND_S2C_UPLOAD_RESULT -> {
+			int uploadId = buffer.getInt();
+			long messageId = buffer.getLong();
+			String error = getString(buffer);
+
+			return handler.handleUploadResult(context, uploadId, messageId, error);
+		}
+		case COMMAND_S2C_ATTACHMENT_CHUNK -> {
+			int requestId = buffer.getInt();
+			ByteBuffer data = buffer;
+
+			return handler.handleAttachmentChunk(context, requestId, data);
+		}
+		case COMMAND_S2C_ATTACHMENT_END -> {
+			int requestId = buffer.getInt();
+			long size = buffer.getLong();
+			String error = getString(buffer);
+
+			return handler.handleAttachmentEnd(context, requestId, size, error);
+		}
+		case COMMAND_S2C_HISTORY_MESSAGE -> {
+			int requestId = buffer.getInt();
+			ByteBuffer message = buffer;
+
+			return handler.handleHistoryMessage(context, requestId, message);
+		}
+		case COMMAND_S2C_HISTORY_END -> {
+			int requestId = buffer.getInt();
+			int count = buffer.getInt();
+			String error = getString(buffer);
+
+			return handler.handleHistoryEnd(context, requestId, count, error);
+		}
+		case COMMAND_S2C_RELAY_ORIGIN -> {
+			long messageId = buffer.getLong();
+			boolean own = buffer.get() != 0;
+
+			return handler.handleRelayOrigin(context, messageId, own);
+		}
+		default -> {
+			return handler.handleUnknown(context, cmd);
+		}
+		}
+	}
+
+	// reads a command name, known commands return their constant instead of allocating a new string
+	public static String readCommand(ByteBuffer buffer) {
+		int pos = buffer.position();
+		int len = 2 + (buffer.getShort(pos) & 0xffff);
+
+		if (len <= buffer.remaining()) {
+			for (int i = 0; i < COMMANDS.length; i++) {
+				if (matches(buffer, pos, COMMANDS_BYTES[i], len)) {
+					buffer.position(pos + len);
+
+					return COMMANDS[i];
+				}
+			}
+		}
+
+		return getString(buffer);
+	}
+
+	private static boolean matches(ByteBuffer buffer, int pos, byte[] data, int len) {
+		if (data.length != len) return false;
+
+		for (int i = 2; i < len; i++) {
+			if (buffer.get(pos + i) != data[i]) return false;
+		}
+
+		return true;
+	}
+
+	public static ByteBuffer encodeLogin(int version, String password) {
+		byte[] passwordBytes = encodeString(password);
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_C2S_LOGIN_BYTES.length + 10 + passwordBytes.length);
+		ret.putInt(0);
+		ret.put(COMMAND_C2S_LOGIN_BYTES);
+		ret.putInt(version);
+		putString(ret, passwordBytes);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeShmConnect(int version, String c2sName, String s2cName) {
+		byte[] c2sNameBytes = encodeString(c2sName);
+		byte[] s2cNameBytes = encodeString(s2cName);
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_C2S_SHM_CONNECT_BYTES.length + 12 + c2sNameBytes.length + s2cNameBytes.length);
+		ret.putInt(0);
+		ret.put(COMMAND_C2S_SHM_CONNECT_BYTES);
+		ret.putInt(version);
+		putString(ret, c2sNameBytes);
+		putString(ret, s2cNameBytes);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeSendMessage(long channelId, String content) {
+		byte[] contentBytes = encodeString(content);
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_C2S_SEND_MESSAGE_BYTES.length + 14 + contentBytes.length);
+		ret.putInt(0);
+		ret.put(COMMAND_C2S_SEND_MESSAGE_BYTES);
+		ret.putLong(channelId);
+		putString(ret, contentBytes);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeSendWebhookMessage(long channelId, String content, String user, String avatarUrl) {
+		byte[] contentBytes = encodeString(content);
+		byte[] userBytes = encodeString(user);
+		byte[] avatarUrlBytes = encodeString(avatarUrl);
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_C2S_SEND_WEBHOOK_MESSAGE_BYTES.length + 18 + contentBytes.length + userBytes.length + avatarUrlBytes.length);
+		ret.putInt(0);
+		ret.put(COMMAND_C2S_SEND_WEBHOOK_MESSAGE_BYTES);
+		ret.putLong(channelId);
+		putString(ret, contentBytes);
+		putString(ret, userBytes);
+		putString(ret, avatarUrlBytes);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeSendWebhookMessageRef(long channelId, int identityRef, String content) {
+		byte[] contentBytes = encodeString(content);
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_C2S_SEND_WEBHOOK_MESSAGE_REF_BYTES.length + 18 + contentBytes.length);
+		ret.putInt(0);
+		ret.put(COMMAND_C2S_SEND_WEBHOOK_MESSAGE_REF_BYTES);
+		ret.putLong(channelId);
+		ret.putInt(identityRef);
+		putString(ret, contentBytes);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeDefineWebhookIdentity(int ref, String user, String avatarUrl) {
+		byte[] userBytes = encodeString(user);
+		byte[] avatarUrlBytes = encodeString(avatarUrl);
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_C2S_DEFINE_WEBHOOK_IDENTITY_BYTES.length + 12 + userBytes.length + avatarUrlBytes.length);
+		ret.putInt(0);
+		ret.put(COMMAND_C2S_DEFINE_WEBHOOK_IDENTITY_BYTES);
+		ret.putInt(ref);
+		putString(ret, userBytes);
+		putString(ret, avatarUrlBytes);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeEvictWebhookIdentity(int ref) {
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_C2S_EVICT_WEBHOOK_IDENTITY_BYTES.length + 8);
+		ret.putInt(0);
+		ret.put(COMMAND_C2S_EVICT_WEBHOOK_IDENTITY_BYTES);
+		ret.putInt(ref);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeAddReaction(long channelId, long messageId, String reaction) {
+		byte[] reactionBytes = encodeString(reaction);
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_C2S_ADD_REACTION_BYTES.length + 22 + reactionBytes.length);
+		ret.putInt(0);
+		ret.put(COMMAND_C2S_ADD_REACTION_BYTES);
+		ret.putLong(channelId);
+		ret.putLong(messageId);
+		putString(ret, reactionBytes);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeAddReactions(Collection<Reaction> reactions) {
+		if (reactions.size() > 0xffff) throw new IllegalArgumentException("oversized collection");
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_C2S_ADD_REACTIONS_BYTES.length + 4 + sizeOfReactionList(reactions));
+		ret.putInt(0);
+		ret.put(COMMAND_C2S_ADD_REACTIONS_BYTES);
+		putReactionList(ret, reactions);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeSubscribeChannel(Collection<Long> channelIds) {
+		if (channelIds.size() > 0xffff) throw new IllegalArgumentException("oversized collection");
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_C2S_SUBSCRIBE_CHANNEL_BYTES.length + 6 + channelIds.size() * Long.BYTES);
+		ret.putInt(0);
+		ret.put(COMMAND_C2S_SUBSCRIBE_CHANNEL_BYTES);
+		putLongs(ret, channelIds);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeUnsubscribeChannel(Collection<Long> channelIds) {
+		if (channelIds.size() > 0xffff) throw new IllegalArgumentException("oversized collection");
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_C2S_UNSUBSCRIBE_CHANNEL_BYTES.length + 6 + channelIds.size() * Long.BYTES);
+		ret.putInt(0);
+		ret.put(COMMAND_C2S_UNSUBSCRIBE_CHANNEL_BYTES);
+		putLongs(ret, channelIds);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeSetRelayEcho(boolean enabled) {
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_C2S_SET_RELAY_ECHO_BYTES.length + 5);
+		ret.putInt(0);
+		ret.put(COMMAND_C2S_SET_RELAY_ECHO_BYTES);
+		ret.put((byte) (enabled ? 1 : 0));
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeSetRelayMode(boolean enabled) {
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_C2S_SET_RELAY_MODE_BYTES.length + 5);
+		ret.putInt(0);
+		ret.put(COMMAND_C2S_SET_RELAY_MODE_BYTES);
+		ret.put((byte) (enabled ? 1 : 0));
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeUploadBegin(int uploadId, long channelId, long size, String fileName, String content) {
+		byte[] fileNameBytes = encodeString(fileName);
+		byte[] contentBytes = encodeString(content);
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_C2S_UPLOAD_BEGIN_BYTES.length + 28 + fileNameBytes.length + contentBytes.length);
+		ret.putInt(0);
+		ret.put(COMMAND_C2S_UPLOAD_BEGIN_BYTES);
+		ret.putInt(uploadId);
+		ret.putLong(channelId);
+		ret.putLong(size);
+		putString(ret, fileNameBytes);
+		putString(ret, contentBytes);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeUploadChunk(int uploadId, ByteBuffer data) {
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_C2S_UPLOAD_CHUNK_BYTES.length + 8 + data.remaining());
+		ret.putInt(0);
+		ret.put(COMMAND_C2S_UPLOAD_CHUNK_BYTES);
+		ret.putInt(uploadId);
+		putRest(ret, data);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeUploadEnd(int uploadId, boolean abort) {
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_C2S_UPLOAD_END_BYTES.length + 9);
+		ret.putInt(0);
+		ret.put(COMMAND_C2S_UPLOAD_END_BYTES);
+		ret.putInt(uploadId);
+		ret.put((byte) (abort ? 1 : 0));
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeFetchAttachment(int requestId, long attachmentId) {
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_C2S_FETCH_ATTACHMENT_BYTES.length + 16);
+		ret.putInt(0);
+		ret.put(COMMAND_C2S_FETCH_ATTACHMENT_BYTES);
+		ret.putInt(requestId);
+		ret.putLong(attachmentId);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeFetchHistory(int requestId, long channelId, long beforeId, int limit) {
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_C2S_FETCH_HISTORY_BYTES.length + 28);
+		ret.putInt(0);
+		ret.put(COMMAND_C2S_FETCH_HISTORY_BYTES);
+		ret.putInt(requestId);
+		ret.putLong(channelId);
+		ret.putLong(beforeId);
+		ret.putInt(limit);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeOnMessage(long id, long channelId, long authorId, String authorName, boolean fromBot, Collection<Long> roleIds, Integer roleColor, String content) {
+		byte[] authorNameBytes = encodeString(authorName);
+		if (roleIds.size() > 0xffff) throw new IllegalArgumentException("oversized collection");
+		byte[] contentBytes = encodeString(content);
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_S2C_ON_MESSAGE_BYTES.length + 36 + authorNameBytes.length + roleIds.size() * Long.BYTES + (roleColor != null ? Integer.BYTES : 0) + contentBytes.length);
+		ret.putInt(0);
+		ret.put(COMMAND_S2C_ON_MESSAGE_BYTES);
+		ret.putLong(id);
+		ret.putLong(channelId);
+		ret.putLong(authorId);
+		putString(ret, authorNameBytes);
+		ret.put((byte) (fromBot ? 1 : 0));
+		putLongs(ret, roleIds);
+		putOptInt(ret, roleColor);
+		putString(ret, contentBytes);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeOnMessageRef(long id, long channelId, int authorRef, String content) {
+		byte[] contentBytes = encodeString(content);
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_S2C_ON_MESSAGE_REF_BYTES.length + 26 + contentBytes.length);
+		ret.putInt(0);
+		ret.put(COMMAND_S2C_ON_MESSAGE_REF_BYTES);
+		ret.putLong(id);
+		ret.putLong(channelId);
+		ret.putInt(authorRef);
+		putString(ret, contentBytes);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeOnMessageAttachments(long id, long channelId, int authorRef, String content, Collection<Attachment> attachments) {
+		byte[] contentBytes = encodeString(content);
+		if (attachments.size() > 0xffff) throw new IllegalArgumentException("oversized collection");
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_S2C_ON_MESSAGE_ATTACHMENTS_BYTES.length + 26 + contentBytes.length + sizeOfAttachmentList(attachments));
+		ret.putInt(0);
+		ret.put(COMMAND_S2C_ON_MESSAGE_ATTACHMENTS_BYTES);
+		ret.putLong(id);
+		ret.putLong(channelId);
+		ret.putInt(authorRef);
+		putString(ret, contentBytes);
+		putAttachmentList(ret, attachments);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeDefineAuthor(int ref, long authorId, String name, boolean fromBot, Collection<Long> roleIds, Integer roleColor) {
+		byte[] nameBytes = encodeString(name);
+		if (roleIds.size() > 0xffff) throw new IllegalArgumentException("oversized collection");
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_S2C_DEFINE_AUTHOR_BYTES.length + 22 + nameBytes.length + roleIds.size() * Long.BYTES + (roleColor != null ? Integer.BYTES : 0));
+		ret.putInt(0);
+		ret.put(COMMAND_S2C_DEFINE_AUTHOR_BYTES);
+		ret.putInt(ref);
+		ret.putLong(authorId);
+		putString(ret, nameBytes);
+		ret.put((byte) (fromBot ? 1 : 0));
+		putLongs(ret, roleIds);
+		putOptInt(ret, roleColor);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeEvictAuthor(int ref) {
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_S2C_EVICT_AUTHOR_BYTES.length + 8);
+		ret.putInt(0);
+		ret.put(COMMAND_S2C_EVICT_AUTHOR_BYTES);
+		ret.putInt(ref);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeUploadResult(int uploadId, long messageId, String error) {
+		byte[] errorBytes = encodeString(error);
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_S2C_UPLOAD_RESULT_BYTES.length + 18 + errorBytes.length);
+		ret.putInt(0);
+		ret.put(COMMAND_S2C_UPLOAD_RESULT_BYTES);
+		ret.putInt(uploadId);
+		ret.putLong(messageId);
+		putString(ret, errorBytes);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeAttachmentChunk(int requestId, ByteBuffer data) {
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_S2C_ATTACHMENT_CHUNK_BYTES.length + 8 + data.remaining());
+		ret.putInt(0);
+		ret.put(COMMAND_S2C_ATTACHMENT_CHUNK_BYTES);
+		ret.putInt(requestId);
+		putRest(ret, data);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeAttachmentEnd(int requestId, long size, String error) {
+		byte[] errorBytes = encodeString(error);
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_S2C_ATTACHMENT_END_BYTES.length + 18 + errorBytes.length);
+		ret.putInt(0);
+		ret.put(COMMAND_S2C_ATTACHMENT_END_BYTES);
+		ret.putInt(requestId);
+		ret.putLong(size);
+		putString(ret, errorBytes);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeHistoryMessage(int requestId, ByteBuffer message) {
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_S2C_HISTORY_MESSAGE_BYTES.length + 8 + message.remaining());
+		ret.putInt(0);
+		ret.put(COMMAND_S2C_HISTORY_MESSAGE_BYTES);
+		ret.putInt(requestId);
+		putRest(ret, message);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeHistoryEnd(int requestId, int count, String error) {
+		byte[] errorBytes = encodeString(error);
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_S2C_HISTORY_END_BYTES.length + 14 + errorBytes.length);
+		ret.putInt(0);
+		ret.put(COMMAND_S2C_HISTORY_END_BYTES);
+		ret.putInt(requestId);
+		ret.putInt(count);
+		putString(ret, errorBytes);
+
+		return ret;
+	}
+
+	public static ByteBuffer encodeRelayOrigin(long messageId, boolean own) {
+		ByteBuffer ret = ByteBuffer.allocate(COMMAND_S2C_RELAY_ORIGIN_BYTES.length + 13);
+		ret.putInt(0);
+		ret.put(COMMAND_S2C_RELAY_ORIGIN_BYTES);
+		ret.putLong(messageId);
+		ret.put((byte) (own ? 1 : 0));
+
+		return ret;
+	}
+
+	private static byte[] encodeString(String str) {
+		byte[] ret = str.getBytes(StandardCharsets.UTF_8);
+		if (ret.length > 0xffff) throw new IllegalArgumentException("oversized string");
+
+		return ret;
+	}
+
+	private static void putString(ByteBuffer buffer, byte[] data) {
+		buffer.putShort((short) data.length);
+		buffer.put(data);
+	}
+
+	private static void putLongs(ByteBuffer buffer, Collection<Long> values) {
+		buffer.putShort((short) values.size());
+
+		for (long value : values) {
+			buffer.putLong(value);
+		}
+	}
+
+	private static void putOptInt(ByteBuffer buffer, Integer value) {
+		buffer.put((byte) (value != null ? 1 : 0));
+		if (value != null) buffer.putInt(value);
+	}
+
+	private static void putRest(ByteBuffer buffer, ByteBuffer data) { // leaves data's position unchanged
+		int len = data.remaining();
+		buffer.put(buffer.position(), data, data.position(), len);
+		buffer.position(buffer.position() + len);
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		int len = buffer.getShort() & 0xffff;
+		if (len > buffer.remaining()) throw new BufferUnderflowException();
+
+		String ret;
+
+		if (buffer.hasArray()) { // decode in place
+			ret = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), len, StandardCharsets.UTF_8);
+		} else {
+			byte[] data = new byte[len];
+			buffer.get(buffer.position(), data);
+			ret = new String(data, StandardCharsets.UTF_8);
+		}
+
+		buffer.position(buffer.position() + len);
+
+		return ret;
+	}
+
+	private static List<Long> getLongs(ByteBuffer buffer) {
+		int count = buffer.getShort() & 0xffff;
+		if (count * Long.BYTES > buffer.remaining()) throw new BufferUnderflowException();
+
+		List<Long> ret = new ArrayList<>(count);
+
+		for (int i = 0; i < count; i++) {
+			ret.add(buffer.getLong());
+		}
+
+		return ret;
+	}
+
+	private static Integer getOptInt(ByteBuffer buffer) {
+		return buffer.get() != 0 ? buffer.getInt() : null;
+	}
+
+	private static byte[] commandBytes(String command) {
+		byte[] data = command.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer ret = ByteBuffer.allocate(2 + data.length);
+		putString(ret, data);
+
+		return ret.array();
+	}
+
+	private static int sizeOfAttachmentList(Collection<Attachment> values) {
+		int ret = 2 + values.size() * 20;
+
+		for (Attachment value : values) {
+			ret += utf8Length(value.fileName()) + utf8Length(value.contentType());
+		}
+
+		return ret;
+	}
+
+	private static void putAttachmentList(ByteBuffer buffer, Collection<Attachment> values) {
+		buffer.putShort((short) values.size());
+
+		for (Attachment value : values) {
+			buffer.putLong(value.id());
+			putString(buffer, encodeString(value.fileName()));
+			buffer.putLong(value.size());
+			putString(buffer, encodeString(value.contentType()));
+		}
+	}
+
+	private static List<Attachment> getAttachmentList(ByteBuffer buffer) {
+		int count = buffer.getShort() & 0xffff;
+		List<Attachment> ret = new ArrayList<>(count);
+
+		for (int i = 0; i < count; i++) {
+			long id = buffer.getLong();
+			String fileName = getString(buffer);
+			long size = buffer.getLong();
+			String contentType = getString(buffer);
+			ret.add(new Attachment(id, fileName, size, contentType));
+		}
+
+		return ret;
+	}
+
+	private static int sizeOfReactionList(Collection<Reaction> values) {
+		int ret = 2 + values.size() * 18;
+
+		for (Reaction value : values) {
+			ret += utf8Length(value.reaction());
+		}
+
+		return ret;
+	}
+
+	private static void putReactionList(ByteBuffer buffer, Collection<Reaction> values) {
+		buffer.putShort((short) values.size());
+
+		for (Reaction value : values) {
+			buffer.putLong(value.channelId());
+			buffer.putLong(value.messageId());
+			putString(buffer, encodeString(value.reaction()));
+		}
+	}
+
+	private static List<Reaction> getReactionList(ByteBuffer buffer) {
+		int count = buffer.getShort() & 0xffff;
+		List<Reaction> ret = new ArrayList<>(count);
+
+		for (int i = 0; i < count; i++) {
+			long channelId = buffer.getLong();
+			long messageId = buffer.getLong();
+			String reaction = getString(buffer);
+			ret.add(new Reaction(channelId, messageId, reaction));
+		}
+
+		return ret;
+	}
+
+	private static int utf8Length(String str) { // matches the length of str.getBytes(UTF_8)
+		int len = str.length();
+		int ret = 0;
+
+		for (int i = 0; i < len; i++) {
+			char c = str.charAt(i);
+
+			if (c < 0x80) {
+				ret++;
+			} else if (c < 0x800) {
+				ret += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+				ret += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) { // unpaired, encoded as '?'
+				ret++;
+			} else {
+				ret += 3;
+			}
+		}
+
+		return ret;
+	}
+
+	private static final byte[] COMMAND_C2S_LOGIN_BYTES = commandBytes(COMMAND_C2S_LOGIN);
+	private static final byte[] COMMAND_C2S_SHM_CONNECT_BYTES = commandBytes(COMMAND_C2S_SHM_CONNECT);
+	private static final byte[] COMMAND_C2S_SEND_MESSAGE_BYTES = commandBytes(COMMAND_C2S_SEND_MESSAGE);
+	private static final byte[] COMMAND_C2S_SEND_WEBHOOK_MESSAGE_BYTES = commandBytes(COMMAND_C2S_SEND_WEBHOOK_MESSAGE);
+	private static final byte[] COMMAND_C2S_SEND_WEBHOOK_MESSAGE_REF_BYTES = commandBytes(COMMAND_C2S_SEND_WEBHOOK_MESSAGE_REF);
+	private static final byte[] COMMAND_C2S_DEFINE_WEBHOOK_IDENTITY_BYTES = commandBytes(COMMAND_C2S_DEFINE_WEBHOOK_IDENTITY);
+	private static final byte[] COMMAND_C2S_EVICT_WEBHOOK_IDENTITY_BYTES = commandBytes(COMMAND_C2S_EVICT_WEBHOOK_IDENTITY);
+	private static final byte[] COMMAND_C2S_ADD_REACTION_BYTES = commandBytes(COMMAND_C2S_ADD_REACTION);
+	private static final byte[] COMMAND_C2S_ADD_REACTIONS_BYTES = commandBytes(COMMAND_C2S_ADD_REACTIONS);
+	private static final byte[] COMMAND_C2S_SUBSCRIBE_CHANNEL_BYTES = commandBytes(COMMAND_C2S_SUBSCRIBE_CHANNEL);
+	private static final byte[] COMMAND_C2S_UNSUBSCRIBE_CHANNEL_BYTES = commandBytes(COMMAND_C2S_UNSUBSCRIBE_CHANNEL);
+	private static final byte[] COMMAND_C2S_SET_RELAY_ECHO_BYTES = commandBytes(COMMAND_C2S_SET_RELAY_ECHO);
+	private static final byte[] COMMAND_C2S_SET_RELAY_MODE_BYTES = commandBytes(COMMAND_C2S_SET_RELAY_MODE);
+	private static final byte[] COMMAND_C2S_UPLOAD_BEGIN_BYTES = commandBytes(COMMAND_C2S_UPLOAD_BEGIN);
+	private static final byte[] COMMAND_C2S_UPLOAD_CHUNK_BYTES = commandBytes(COMMAND_C2S_UPLOAD_CHUNK);
+	private static final byte[] COMMAND_C2S_UPLOAD_END_BYTES = commandBytes(COMMAND_C2S_UPLOAD_END);
+	private static final byte[] COMMAND_C2S_FETCH_ATTACHMENT_BYTES = commandBytes(COMMAND_C2S_FETCH_ATTACHMENT);
+	private static final byte[] COMMAND_C2S_FETCH_HISTORY_BYTES = commandBytes(COMMAND_C2S_FETCH_HISTORY);
+	private static final byte[] COMMAND_S2C_ON_MESSAGE_BYTES = commandBytes(COMMAND_S2C_ON_MESSAGE);
+	private static final byte[] COMMAND_S2C_ON_MESSAGE_REF_BYTES = commandBytes(COMMAND_S2C_ON_MESSAGE_REF);
+	private static final byte[] COMMAND_S2C_ON_MESSAGE_ATTACHMENTS_BYTES = commandBytes(COMMAND_S2C_ON_MESSAGE_ATTACHMENTS);
+	private static final byte[] COMMAND_S2C_DEFINE_AUTHOR_BYTES = commandBytes(COMMAND_S2C_DEFINE_AUTHOR);
+	private static final byte[] COMMAND_S2C_EVICT_AUTHOR_BYTES = commandBytes(COMMAND_S2C_EVICT_AUTHOR);
+	private static final byte[] COMMAND_S2C_UPLOAD_RESULT_BYTES = commandBytes(COMMAND_S2C_UPLOAD_RESULT);
+	private static final byte[] COMMAND_S2C_ATTACHMENT_CHUNK_BYTES = commandBytes(COMMAND_S2C_ATTACHMENT_CHUNK);
+	private static final byte[] COMMAND_S2C_ATTACHMENT_END_BYTES = commandBytes(COMMAND_S2C_ATTACHMENT_END);
+	private static final byte[] COMMAND_S2C_HISTORY_MESSAGE_BYTES = commandBytes(COMMAND_S2C_HISTORY_MESSAGE);
+	private static final byte[] COMMAND_S2C_HISTORY_END_BYTES = commandBytes(COMMAND_S2C_HISTORY_END);
+	private static final byte[] COMMAND_S2C_RELAY_ORIGIN_BYTES = commandBytes(COMMAND_S2C_RELAY_ORIGIN);
+
+	private static final String[] COMMANDS = {
+			COMMAND_C2S_LOGIN,
+			COMMAND_C2S_SHM_CONNECT,
+			COMMAND_C2S_SEND_MESSAGE,
+			COMMAND_C2S_SEND_WEBHOOK_MESSAGE,
+			COMMAND_C2S_SEND_WEBHOOK_MESSAGE_REF,
+			COMMAND_C2S_DEFINE_WEBHOOK_IDENTITY,
+			COMMAND_C2S_EVICT_WEBHOOK_IDENTITY,
+			COMMAND_C2S_ADD_REACTION,
+			COMMAND_C2S_ADD_REACTIONS,
+			COMMAND_C2S_SUBSCRIBE_CHANNEL,
+			COMMAND_C2S_UNSUBSCRIBE_CHANNEL,
+			COMMAND_C2S_SET_RELAY_ECHO,
+			COMMAND_C2S_SET_RELAY_MODE,
+			COMMAND_C2S_UPLOAD_BEGIN,
+			COMMAND_C2S_UPLOAD_CHUNK,
+			COMMAND_C2S_UPLOAD_END,
+			COMMAND_C2S_FETCH_ATTACHMENT,
+			COMMAND_C2S_FETCH_HISTORY,
+			COMMAND_S2C_ON_MESSAGE,
+			COMMAND_S2C_ON_MESSAGE_REF,
+			COMMAND_S2C_ON_MESSAGE_ATTACHMENTS,
+			COMMAND_S2C_DEFINE_AUTHOR,
+			COMMAND_S2C_EVICT_AUTHOR,
+			COMMAND_S2C_UPLOAD_RESULT,
+			COMMAND_S2C_ATTACHMENT_CHUNK,
+			COMMAND_S2C_ATTACHMENT_END,
+			COMMAND_S2C_HISTORY_MESSAGE,
+			COMMAND_S2C_HISTORY_END,
+			COMMAND_S2C_RELAY_ORIGIN,
+	};
+	private static final byte[][] COMMANDS_BYTES = {
+			COMMAND_C2S_LOGIN_BYTES,
+			COMMAND_C2S_SHM_CONNECT_BYTES,
+			COMMAND_C2S_SEND_MESSAGE_BYTES,
+			COMMAND_C2S_SEND_WEBHOOK_MESSAGE_BYTES,
+			COMMAND_C2S_SEND_WEBHOOK_MESSAGE_REF_BYTES,
+			COMMAND_C2S_DEFINE_WEBHOOK_IDENTITY_BYTES,
+			COMMAND_C2S_EVICT_WEBHOOK_IDENTITY_BYTES,
+			COMMAND_C2S_ADD_REACTION_BYTES,
+			COMMAND_C2S_ADD_REACTIONS_BYTES,
+			COMMAND_C2S_SUBSCRIBE_CHANNEL_BYTES,
+			COMMAND_C2S_UNSUBSCRIBE_CHANNEL_BYTES,
+			COMMAND_C2S_SET_RELAY_ECHO_BYTES,
+			COMMAND_C2S_SET_RELAY_MODE_BYTES,
+			COMMAND_C2S_UPLOAD_BEGIN_BYTES,
+			COMMAND_C2S_UPLOAD_CHUNK_BYTES,
+			COMMAND_C2S_UPLOAD_END_BYTES,
+			COMMAND_C2S_FETCH_ATTACHMENT_BYTES,
+			COMMAND_C2S_FETCH_HISTORY_BYTES,
+			COMMAND_S2C_ON_MESSAGE_BYTES,
+			COMMAND_S2C_ON_MESSAGE_REF_BYTES,
+			COMMAND_S2C_ON_MESSAGE_ATTACHMENTS_BYTES,
+			COMMAND_S2C_DEFINE_AUTHOR_BYTES,
+			COMMAND_S2C_EVICT_AUTHOR_BYTES,
+			COMMAND_S2C_UPLOAD_RESULT_BYTES,
+			COMMAND_S2C_ATTACHMENT_CHUNK_BYTES,
+			COMMAND_S2C_ATTACHMENT_END_BYTES,
+			COMMAND_S2C_HISTORY_MESSAGE_BYTES,
+			COMMAND_S2C_HISTORY_END_BYTES,
+			COMMAND_S2C_RELAY_ORIGIN_BYTES,
+	};
+}
@@ -2,15 +2,44 @@ package fcdiscord;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class ApiCommon implements Closeable {
+	protected ApiCommon(String side) {
+		this.apiStats = new ApiStats(side);
+	}
+
+	public ApiStats getApiStats() {
+		return apiStats;
+	}
+
+	public void setRecorder(TrafficRecorder recorder) { // the recorder will be closed with this api instance
+		this.recorder = recorder;
+	}
+
+	protected void closeRecorder() {
+		TrafficRecorder recorder = this.recorder;
+		if (recorder == null) return;
+
+		this.recorder = null;
+
+		try {
+			recorder.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	protected static ByteBuffer commandBuffer(String command, int minSize) {
 		ByteBuffer ret = ByteBuffer.allocate(Math.max(100, command.length() + minSize));
 		ret.putInt(0);
@@ -73,7 +102,16 @@ public abstract class ApiCommon implements Closeable {
 		return ret;
 	}
 
-	private ByteBuffer processBuffer(ChannelContext context, ByteBuffer buffer, boolean eof) {
+	protected static ByteBuffer frame(ByteBuffer buffer) {
+		if (buffer.position() == 0) throw new IllegalStateException("empty buffer");
+
+		buffer.flip();
+		buffer.putInt(0, buffer.remaining());
+
+		return buffer;
+	}
+
+	ByteBuffer processBuffer(ChannelContext context, ByteBuffer buffer, boolean eof) {
 		buffer.flip();
 
 		while (buffer.remaining() >= 4) {
@@ -95,19 +133,31 @@ public abstract class ApiCommon implements Closeable {
 				break;
 			}
 
+			int frameEnd = buffer.position() + len;
 			buffer.position(buffer.position() + 4); // skip len
 			int oldLimit = buffer.limit();
-			buffer.limit(buffer.position() + len - 4);
+			buffer.limit(frameEnd);
 			String cmd = null;
 
 			try {
-				cmd = readString(buffer);
+				cmd = ApiCodec.readCommand(buffer);
+				context.connectionStats.recordIn(cmd, len);
+
+				TrafficRecorder recorder = this.recorder;
+
+				if (recorder != null && !cmd.equals(ApiCodec.COMMAND_C2S_LOGIN) && !cmd.equals(ApiCodec.COMMAND_C2S_SHM_CONNECT)) {
+					recorder.recordIncoming(context.id, buffer, frameEnd - len, len);
+				}
 
 				if (cmd.equals(COMMAND_EXIT)) {
 					return null;
 				}
 
-				if (!processCommand(context, cmd, buffer, eof && buffer.limit() == oldLimit)) {
+				long startTime = System.nanoTime();
+				boolean res = processCommand(context, cmd, buffer, eof && buffer.limit() == oldLimit);
+				context.connectionStats.recordProcessCommand(System.nanoTime() - startTime);
+
+				if (!res) {
 					return null;
 				}
 			} catch (Throwable t) {
@@ -118,6 +168,7 @@ public abstract class ApiCommon implements Closeable {
 			}
 
 			buffer.limit(oldLimit);
+			buffer.position(frameEnd); // skip any unread command data
 		}
 
 		buffer.compact();
@@ -132,7 +183,7 @@ public abstract class ApiCommon implements Closeable {
 	}
 
 	protected final class ReadThread extends Thread {
-		public ReadThread(SocketChannel channel, ChannelContext context) {
+		public ReadThread(ByteChannel channel, ChannelContext context) {
 			super("[DCAPI] read "+context.getRemoteAddress());
 
 			this.channel = channel;
@@ -163,12 +214,12 @@ public abstract class ApiCommon implements Closeable {
 			}
 		}
 
-		private final SocketChannel channel;
+		private final ByteChannel channel;
 		private final ChannelContext context;
 	}
 
 	protected final class WriteThread extends Thread {
-		public WriteThread(SocketChannel channel, ChannelContext context) {
+		public WriteThread(ByteChannel channel, ChannelContext context) {
 			super("[DCAPI] write "+context.getRemoteAddress());
 
 			this.channel = channel;
@@ -201,65 +252,148 @@ public abstract class ApiCommon implements Closeable {
 			}
 		}
 
+		/*
+		 * Moves pending frames to out, high priority frames first. The lanes are only switched at frame boundaries, a
+		 * frame that didn't fit into out entirely is continued in the next call before anything else.
+		 */
 		private synchronized boolean bufferData(ByteBuffer out) throws InterruptedException {
-			while (pendingBuffer.position() == 0 && channel.isOpen()) {
+			while (highBuffer.position() == 0 && pendingBuffer.position() == 0 && isRunning()) {
 				wait();
 			}
 
-			if (!channel.isOpen()) return false;;
+			if (!isRunning()) return false;
 
+			highBuffer.flip();
 			pendingBuffer.flip();
 
-			int oldLimit = pendingBuffer.limit();
+			while (out.hasRemaining()) {
+				if (frameRemaining == 0) { // frame boundary
+					if (highBuffer.hasRemaining()) {
+						frameHigh = true;
+					} else if (pendingBuffer.hasRemaining()) {
+						frameHigh = false;
+					} else {
+						break;
+					}
 
-			if (pendingBuffer.remaining() > out.remaining()) {
-				pendingBuffer.limit(pendingBuffer.position() + out.remaining());
-			}
+					ByteBuffer lane = frameHigh ? highBuffer : pendingBuffer;
+					frameRemaining = lane.getInt(lane.position()); // includes the length field
+				}
+
+				ByteBuffer lane = frameHigh ? highBuffer : pendingBuffer;
+				int len = Math.min(frameRemaining, out.remaining());
 
-			out.put(pendingBuffer);
+				out.put(out.position(), lane, lane.position(), len);
+				out.position(out.position() + len);
+				lane.position(lane.position() + len);
+				frameRemaining -= len;
+			}
 
-			pendingBuffer.limit(oldLimit);
+			highBuffer.compact();
 			pendingBuffer.compact();
 			out.flip();
 
+			if (drainWaiters > 0 && highBuffer.position() + pendingBuffer.position() <= drainMark) notifyAll();
+
 			return true;
 		}
 
-		public synchronized boolean write(ByteBuffer buffer) {
-			if (!channel.isOpen()) return false;
+		// blocks until at most maxPending bytes are queued, returns false if the channel got closed
+		synchronized boolean awaitPendingBytes(int maxPending) throws InterruptedException {
+			while (highBuffer.position() + pendingBuffer.position() > maxPending && isRunning()) {
+				drainMark = drainWaiters == 0 ? maxPending : Math.max(drainMark, maxPending);
+				drainWaiters++;
+
+				try {
+					wait();
+				} finally {
+					drainWaiters--;
+				}
+			}
+
+			return isRunning();
+		}
 
-			if (pendingBuffer.remaining() < buffer.remaining()) {
-				if (pendingBuffer.capacity() > 1_000_000) return false;
+		// buffer has to contain whole frames from frame()
+		public synchronized boolean write(ByteBuffer buffer, Priority priority) {
+			if (!isRunning()) return false;
 
-				ByteBuffer newBuffer = ByteBuffer.allocate(pendingBuffer.position() + buffer.remaining());
-				pendingBuffer.flip();
-				newBuffer.put(pendingBuffer);
-				pendingBuffer = newBuffer;
+			boolean high = priority == Priority.HIGH;
+			ByteBuffer lane = high ? highBuffer : pendingBuffer;
+
+			if (lane.remaining() < buffer.remaining()) {
+				if (lane.capacity() > 1_000_000) return false;
+
+				ByteBuffer newBuffer = ByteBuffer.allocate(lane.position() + buffer.remaining());
+				lane.flip();
+				newBuffer.put(lane);
+				lane = newBuffer;
+
+				if (high) {
+					highBuffer = lane;
+				} else {
+					pendingBuffer = lane;
+				}
 			}
 
-			pendingBuffer.put(buffer);
+			lane.put(buffer);
+			context.connectionStats.recordPending(highBuffer.position() + pendingBuffer.position());
 			notifyAll();
 
 			return true;
 		}
 
-		private final SocketChannel channel;
+		synchronized void shutdown() { // also stops the thread if the channel stays open
+			stopped = true;
+			notifyAll();
+		}
+
+		private boolean isRunning() { // caller must hold the lock
+			return !stopped && channel.isOpen();
+		}
+
+		synchronized int getPendingBytes() {
+			return highBuffer.position() + pendingBuffer.position();
+		}
+
+		private final ByteChannel channel;
 		private final ChannelContext context;
 		private ByteBuffer pendingBuffer = ByteBuffer.allocate(4000);
+		private ByteBuffer highBuffer = ByteBuffer.allocate(256);
+		private int frameRemaining; // bytes of the frame being written that haven't been moved to the channel buffer yet
+		private boolean frameHigh; // whether that frame is from highBuffer
+		private int drainWaiters; // threads in awaitPendingBytes
+		private int drainMark; // pending bytes at or below which the waiting threads are woken
+		private boolean stopped;
+	}
+
+	/*
+	 * Write priority of a frame. HIGH frames overtake queued NORMAL frames, so control replies aren't delayed by a
+	 * backlog of messages. Only use it for frames whose relative order to NORMAL frames doesn't matter, e.g. not for
+	 * frames that complete or reference earlier NORMAL ones.
+	 */
+	public enum Priority {
+		HIGH, NORMAL
 	}
 
 	public class ChannelContext {
-		public synchronized void init(SocketChannel channel) {
+		public synchronized void init(ByteChannel channel) {
 			if (this.channel != null) throw new IllegalStateException("already initialized");
 
 			this.channel = channel;
 			this.writeThread = new WriteThread(channel, this);
 			this.readThread = new ReadThread(channel, this);
+
+			apiStats.onOpened();
+			connectionStats.register(apiStats.getConnectionName(id));
+
+			TrafficRecorder recorder = ApiCommon.this.recorder;
+			if (recorder != null) recorder.recordOpen(id);
 		}
 
 		public boolean clear() {
 			Thread readThread;
-			Thread writeThread;
+			WriteThread writeThread;
 
 			synchronized (this) {
 				if (channel == null) return false;
@@ -271,14 +405,19 @@ public abstract class ApiCommon implements Closeable {
 				this.writeThread = null;
 
 				try {
-					if (channel.isOpen()) channel.close();
+					if (channel.isOpen() && !detached) channel.close();
 				} catch (IOException e) { }
 
 				this.channel = null;
+				this.detached = false;
 
-				synchronized (writeThread) {
-					writeThread.notifyAll();
-				}
+				writeThread.shutdown();
+
+				apiStats.onClosed();
+				connectionStats.unregister();
+
+				TrafficRecorder recorder = ApiCommon.this.recorder;
+				if (recorder != null) recorder.recordClose(id);
 			}
 
 			try {
@@ -291,47 +430,126 @@ public abstract class ApiCommon implements Closeable {
 
 		public synchronized void closeChannel() {
 			try {
-				if (channel != null && channel.isOpen()) channel.close();
+				if (channel != null && channel.isOpen() && !detached) channel.close();
 			} catch (IOException e) { }
 		}
 
+		/*
+		 * Hands the channel over to the caller, closing the context leaves it open. Only for command handlers ending the
+		 * connection, the read thread doesn't read anymore once they return false.
+		 */
+		public synchronized ByteChannel detachChannel() {
+			if (channel == null) throw new IllegalStateException("not initialized");
+
+			detached = true;
+
+			return channel;
+		}
+
 		public String getRemoteAddress() {
+			ByteChannel channel = this.channel;
+			if (!(channel instanceof SocketChannel socketChannel)) return String.valueOf(channel);
+
 			try {
-				return channel.getRemoteAddress().toString();
+				SocketAddress address = socketChannel.getRemoteAddress();
+
+				if (address instanceof UnixDomainSocketAddress unixAddress && unixAddress.getPath().toString().isEmpty()) { // unnamed peer, use the socket path instead
+					address = socketChannel.getLocalAddress();
+				}
+
+				return address.toString();
 			} catch (IOException e) {
 				return "(unknown)";
 			}
 		}
 
 		public final boolean frameAndWrite(ByteBuffer buffer) {
-			if (buffer.position() == 0) throw new IllegalStateException("empty buffer");
+			return frameAndWrite(buffer, Priority.NORMAL);
+		}
+
+		public final boolean frameAndWrite(ByteBuffer buffer, Priority priority) {
+			return writeFrame0(frame(buffer), priority);
+		}
+
+		public final boolean writeFrame(ByteBuffer frame) { // writes a frame from frame() without consuming it, so it can be shared
+			return writeFrame(frame, Priority.NORMAL);
+		}
 
-			buffer.flip();
-			buffer.putInt(0, buffer.remaining());
+		public final boolean writeFrame(ByteBuffer frame, Priority priority) {
+			return writeFrame0(frame.duplicate(), priority);
+		}
+
+		private boolean writeFrame0(ByteBuffer frame, Priority priority) {
+			int len = frame.remaining();
+			String cmd = ConnectionStats.peekCommand(frame);
+
+			TrafficRecorder recorder = ApiCommon.this.recorder;
+			if (recorder != null) recorder.recordOutgoing(id, frame);
+
+			if (write(frame, priority)) {
+				connectionStats.recordOut(cmd, len);
+				return true;
+			} else {
+				connectionStats.recordDropped();
+				return false;
+			}
+		}
 
-			return write(buffer);
+		public final boolean write(ByteBuffer buffer) {
+			return write(buffer, Priority.NORMAL);
 		}
 
-		public synchronized final boolean write(ByteBuffer buffer) {
+		public synchronized final boolean write(ByteBuffer buffer, Priority priority) { // buffer has to contain whole frames
 			if (channel == null) return false;
 
-			return writeThread.write(buffer);
+			return writeThread.write(buffer, priority);
+		}
+
+		public synchronized boolean isOpen() {
+			return channel != null && channel.isOpen();
+		}
+
+		public synchronized int getPendingWriteBytes() {
+			return writeThread != null ? writeThread.getPendingBytes() : 0;
+		}
+
+		/*
+		 * Blocks until at most maxPending bytes are queued for writing, woken by the write thread as it drains the queue.
+		 * Returns false if the connection is closed. For flow control of bulk transfers sharing the connection.
+		 */
+		public boolean awaitPendingWriteBytes(int maxPending) throws InterruptedException {
+			WriteThread writeThread;
+
+			synchronized (this) {
+				writeThread = this.writeThread;
+				if (writeThread == null) return false;
+			}
+
+			return writeThread.awaitPendingBytes(maxPending);
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public ConnectionStats getStats() {
+			return connectionStats;
 		}
 
-		private SocketChannel channel;
+		private final int id = nextContextId.incrementAndGet();
+		private final ConnectionStats connectionStats = new ConnectionStats(this);
+		private ByteChannel channel;
+		private boolean detached; // channel handed over by detachChannel
 		private ReadThread readThread;
 		private WriteThread writeThread;
 	}
 
-	protected static final int API_VERSION = 1;
+	protected final ApiStats apiStats;
+	private volatile TrafficRecorder recorder;
+	private final AtomicInteger nextContextId = new AtomicInteger();
 
-	protected static final String COMMAND_EXIT = "exit";
+	protected static final int API_VERSION = 6; // v3 adds attachments, v4 fetchHistory, v5 addReactions, v6 setRelayMode
+	protected static final int MIN_API_VERSION = 1; // oldest client version the server still accepts, v1 lacks the interning dictionaries
 
-	protected static final String COMMAND_C2S_LOGIN = "login";
-	protected static final String COMMAND_C2S_SEND_MESSAGE = "sendChannel";
-	protected static final String COMMAND_C2S_SEND_WEBHOOK_MESSAGE = "sendChannelWebhook";
-	protected static final String COMMAND_C2S_ADD_REACTION = "addReaction";
-	protected static final String COMMAND_C2S_SUBSCRIBE_CHANNEL = "subscribeChannel";
-	protected static final String COMMAND_C2S_UNSUBSCRIBE_CHANNEL = "unsubscribeChannel";
-	protected static final String COMMAND_S2C_ON_MESSAGE = "onMessage";
+	protected static final String COMMAND_EXIT = "exit"; // all other commands are declared in schema/api.schema, see ApiCodec
 }
@@ -0,0 +1,156 @@
+package fcdiscord;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public final class ApiStats implements ApiStatsMXBean {
+	ApiStats(String side) {
+		this.name = "fcdiscord:type=Api,side=%s,instance=%d".formatted(side, nextInstance.incrementAndGet());
+		this.objectName = register(this, name);
+	}
+
+	public void onAccepted() {
+		acceptedConnections.increment();
+	}
+
+	public void onFailedLogin() {
+		failedLogins.increment();
+	}
+
+	public void onConnectFailed() {
+		connectFailures.increment();
+	}
+
+	public void onAttachmentFetch(boolean cached) { // cached includes joining a download already in progress
+		(cached ? attachmentCacheHits : attachmentCacheMisses).increment();
+	}
+
+	public void onTenantCommand(String tenant, boolean throttled, boolean dropped) { // throttled: had to wait for its quota or fair share
+		TenantCounter counter = tenantCounters.get(tenant);
+		if (counter == null) counter = tenantCounters.computeIfAbsent(tenant, ignore -> new TenantCounter());
+
+		counter.commands.increment();
+		if (throttled) counter.throttled.increment();
+		if (dropped) counter.dropped.increment();
+	}
+
+	void onOpened() {
+		activeConnections.increment();
+	}
+
+	void onClosed() {
+		activeConnections.decrement();
+	}
+
+	String getConnectionName(int id) {
+		return "%s,connection=%d".formatted(name.replace("type=Api", "type=ApiConnection"), id);
+	}
+
+	@Override
+	public long getAcceptedConnections() {
+		return acceptedConnections.sum();
+	}
+
+	@Override
+	public long getActiveConnections() {
+		return activeConnections.sum();
+	}
+
+	@Override
+	public long getFailedLogins() {
+		return failedLogins.sum();
+	}
+
+	@Override
+	public long getConnectFailures() {
+		return connectFailures.sum();
+	}
+
+	@Override
+	public long getAttachmentCacheHits() {
+		return attachmentCacheHits.sum();
+	}
+
+	@Override
+	public long getAttachmentCacheMisses() {
+		return attachmentCacheMisses.sum();
+	}
+
+	@Override
+	public Map<String, Long> getCommandsByTenant() {
+		return snapshot(counter -> counter.commands);
+	}
+
+	@Override
+	public Map<String, Long> getThrottledCommandsByTenant() {
+		return snapshot(counter -> counter.throttled);
+	}
+
+	@Override
+	public Map<String, Long> getDroppedCommandsByTenant() {
+		return snapshot(counter -> counter.dropped);
+	}
+
+	private Map<String, Long> snapshot(Function<TenantCounter, LongAdder> field) {
+		Map<String, Long> ret = new TreeMap<>();
+
+		for (Map.Entry<String, TenantCounter> entry : tenantCounters.entrySet()) {
+			ret.put(entry.getKey(), field.apply(entry.getValue()).sum());
+		}
+
+		return ret;
+	}
+
+	public void close() {
+		unregister(objectName);
+	}
+
+	static ObjectName register(Object bean, String name) {
+		try {
+			ObjectName ret = new ObjectName(name);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(bean, ret);
+
+			return ret;
+		} catch (JMException e) {
+			System.err.printf("[DCAPI] mbean registration for %s failed: %s%n", name, e.toString());
+			return null;
+		}
+	}
+
+	static void unregister(ObjectName name) {
+		if (name == null) return;
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			// ignore
+		}
+	}
+
+	private static final class TenantCounter {
+		final LongAdder commands = new LongAdder();
+		final LongAdder throttled = new LongAdder();
+		final LongAdder dropped = new LongAdder();
+	}
+
+	private static final AtomicInteger nextInstance = new AtomicInteger();
+
+	private final String name;
+	private final ObjectName objectName;
+	private final LongAdder acceptedConnections = new LongAdder();
+	private final LongAdder activeConnections = new LongAdder();
+	private final LongAdder failedLogins = new LongAdder();
+	private final LongAdder connectFailures = new LongAdder();
+	private final LongAdder attachmentCacheHits = new LongAdder();
+	private final LongAdder attachmentCacheMisses = new LongAdder();
+	private final ConcurrentMap<String, TenantCounter> tenantCounters = new ConcurrentHashMap<>(); // Discord-bound commands by tenant
+}
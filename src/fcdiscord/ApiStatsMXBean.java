@@ -0,0 +1,15 @@
+package fcdiscord;
+
+import java.util.Map;
+
+public interface ApiStatsMXBean {
+	long getAcceptedConnections();
+	long getActiveConnections();
+	long getFailedLogins();
+	long getConnectFailures();
+	long getAttachmentCacheHits();
+	long getAttachmentCacheMisses();
+	Map<String, Long> getCommandsByTenant();
+	Map<String, Long> getThrottledCommandsByTenant();
+	Map<String, Long> getDroppedCommandsByTenant();
+}
@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
 import java.nio.channels.AlreadyBoundException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.file.Files;
@@ -15,10 +17,11 @@ import java.util.List;
 import java.util.Properties;
 import java.util.Random;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
 
 public final class Config {
 	public static Config createForFile(Path file, boolean clientOnly, boolean alwaysStoreClientChannelId) throws IOException {
-		Config ret = new Config("", 0, "", "", 0, clientOnly ? null : new ArrayList<>(), 0, clientOnly);
+		Config ret = new Config("", 0, null, null, null, "", "", new ArrayList<>(), 1, clientOnly ? null : new ArrayList<>(), 0, clientOnly);
 		boolean save = false;
 		Properties properties;
 
@@ -49,6 +52,86 @@ public final class Config {
 			save = true;
 		}
 
+		if (properties != null && (value = properties.getProperty("apiSocketPath")) != null && !value.isEmpty()) {
+			ret.apiSocketPath = Paths.get(value);
+		}
+
+		if (properties != null && (value = properties.getProperty("apiShmDir")) != null && !value.isEmpty()) {
+			ret.apiShmDir = Paths.get(value);
+		}
+
+		if (properties != null && (value = properties.getProperty("apiCaptureFile")) != null && !value.isEmpty()) {
+			ret.apiCaptureFile = Paths.get(value);
+		}
+
+		if (properties != null && (value = properties.getProperty("apiAttachmentCacheDir")) != null && !value.isEmpty()) {
+			ret.apiAttachmentCacheDir = Paths.get(value);
+		}
+
+		if (properties != null && (value = properties.getProperty("apiAttachmentCacheSize")) != null && !value.isEmpty()) {
+			ret.apiAttachmentCacheSize = Integer.parseInt(value);
+			if (ret.apiAttachmentCacheSize <= 0) throw new IOException("invalid attachment cache size: "+value);
+		}
+
+		if (properties != null && (value = properties.getProperty("apiOutboundQueueFile")) != null && !value.isEmpty()) {
+			ret.apiOutboundQueueFile = Paths.get(value);
+		}
+
+		if (properties != null && (value = properties.getProperty("apiJournalDir")) != null && !value.isEmpty()) {
+			ret.apiJournalDir = Paths.get(value);
+		}
+
+		if (properties != null && (value = properties.getProperty("apiJournalSize")) != null && !value.isEmpty()) {
+			ret.apiJournalSize = Integer.parseInt(value);
+			if (ret.apiJournalSize <= 0) throw new IOException("invalid journal size: "+value);
+		}
+
+		if (properties != null && (value = properties.getProperty("apiDiscordRate")) != null && !value.isEmpty()) {
+			ret.apiDiscordRate = Double.parseDouble(value);
+			if (!(ret.apiDiscordRate > 0)) throw new IOException("invalid discord rate: "+value);
+		}
+
+		if (properties != null && (value = properties.getProperty("apiUpstreamHost")) != null && !value.isEmpty()) {
+			ret.apiUpstreamHost = value;
+		}
+
+		if (properties != null && (value = properties.getProperty("apiUpstreamPort")) != null && !value.isEmpty() && !value.equals("0")) {
+			ret.apiUpstreamPort = Integer.parseInt(value);
+		}
+
+		if (properties != null && (value = properties.getProperty("apiUpstreamPassword")) != null && !value.isEmpty()) {
+			ret.apiUpstreamPassword = value;
+		}
+
+		if (properties != null) {
+			for (int idx = 0; idx < 10000; idx++) {
+				value = properties.getProperty("tenant"+idx);
+				if (value == null) break;
+
+				String password = properties.getProperty("tenantPassword"+idx);
+				if (password == null || password.isEmpty()) throw new IOException("missing tenantPassword"+idx+" config entry");
+
+				Tenant tenant = new Tenant(value, password);
+
+				if ((value = properties.getProperty("tenantRate"+idx)) != null && !value.isEmpty()) {
+					tenant.rate = Double.parseDouble(value);
+					if (!(tenant.rate > 0)) throw new IOException("invalid tenant rate "+idx+": "+value);
+				}
+
+				if ((value = properties.getProperty("tenantBurst"+idx)) != null && !value.isEmpty()) {
+					tenant.burst = Integer.parseInt(value);
+					if (tenant.burst <= 0) throw new IOException("invalid tenant burst "+idx+": "+value);
+				}
+
+				if ((value = properties.getProperty("tenantWeight"+idx)) != null && !value.isEmpty()) {
+					tenant.weight = Integer.parseInt(value);
+					if (tenant.weight <= 0) throw new IOException("invalid tenant weight "+idx+": "+value);
+				}
+
+				ret.tenants.add(tenant);
+			}
+		}
+
 		if (properties != null && (value = properties.getProperty("apiPassword")) != null && !value.isEmpty()) {
 			ret.apiPassword = value;
 		} else {
@@ -64,12 +147,26 @@ public final class Config {
 		}
 
 		if (properties != null && (value = properties.getProperty("guildId")) != null && !value.isEmpty() && !value.equals("0")) {
-			ret.guildId = Long.parseUnsignedLong(value);
+			for (String id : value.split(",")) {
+				id = id.trim();
+				if (!id.isEmpty()) ret.guildIds.add(Long.parseUnsignedLong(id));
+			}
+
 			clientOnly = false;
 		} else if (!clientOnly) {
 			save = true;
 		}
 
+		if (properties != null && (value = properties.getProperty("shards")) != null && !value.isEmpty()) {
+			ret.shards = Integer.parseInt(value);
+			if (ret.shards < 0) throw new IOException("invalid shard count: "+value);
+		}
+
+		if (properties != null && (value = properties.getProperty("modScanThreads")) != null && !value.isEmpty()) {
+			ret.modScanThreads = Integer.parseInt(value);
+			if (ret.modScanThreads < 0) throw new IOException("invalid mod scan thread count: "+value);
+		}
+
 		if (properties != null) {
 			for (int idx = 0; idx < 10000; idx++) {
 				value = properties.getProperty("channel"+idx);
@@ -98,12 +195,35 @@ public final class Config {
 			properties = new Properties();
 
 			properties.setProperty("apiHost", ret.apiHost);
-			properties.setProperty("apiPort", ret.apiPort > 0 ? Integer.toString(ret.apiPort) : "");
+			properties.setProperty("apiPort", ret.apiPort != 0 ? Integer.toString(ret.apiPort) : "");
+			if (ret.apiSocketPath != null) properties.setProperty("apiSocketPath", ret.apiSocketPath.toString());
+			if (ret.apiShmDir != null) properties.setProperty("apiShmDir", ret.apiShmDir.toString());
+			if (ret.apiCaptureFile != null) properties.setProperty("apiCaptureFile", ret.apiCaptureFile.toString());
+			if (ret.apiAttachmentCacheDir != null) properties.setProperty("apiAttachmentCacheDir", ret.apiAttachmentCacheDir.toString());
+			if (ret.apiAttachmentCacheSize != DEFAULT_ATTACHMENT_CACHE_SIZE) properties.setProperty("apiAttachmentCacheSize", Integer.toString(ret.apiAttachmentCacheSize));
+			if (ret.apiOutboundQueueFile != null) properties.setProperty("apiOutboundQueueFile", ret.apiOutboundQueueFile.toString());
+			if (ret.apiJournalDir != null) properties.setProperty("apiJournalDir", ret.apiJournalDir.toString());
+			if (ret.apiJournalSize != DEFAULT_JOURNAL_SIZE) properties.setProperty("apiJournalSize", Integer.toString(ret.apiJournalSize));
+			if (ret.apiDiscordRate != DEFAULT_DISCORD_RATE) properties.setProperty("apiDiscordRate", Double.toString(ret.apiDiscordRate));
 			properties.setProperty("apiPassword", ret.apiPassword);
+			if (ret.apiUpstreamHost != null) properties.setProperty("apiUpstreamHost", ret.apiUpstreamHost);
+			if (ret.apiUpstreamPort != 0) properties.setProperty("apiUpstreamPort", Integer.toString(ret.apiUpstreamPort));
+			if (ret.apiUpstreamPassword != null) properties.setProperty("apiUpstreamPassword", ret.apiUpstreamPassword);
+
+			for (int idx = 0; idx < ret.tenants.size(); idx++) {
+				Tenant tenant = ret.tenants.get(idx);
+				properties.setProperty("tenant"+idx, tenant.name);
+				properties.setProperty("tenantPassword"+idx, tenant.password);
+				if (tenant.rate != DEFAULT_TENANT_RATE) properties.setProperty("tenantRate"+idx, Double.toString(tenant.rate));
+				if (tenant.burst != DEFAULT_TENANT_BURST) properties.setProperty("tenantBurst"+idx, Integer.toString(tenant.burst));
+				if (tenant.weight != 1) properties.setProperty("tenantWeight"+idx, Integer.toString(tenant.weight));
+			}
 
 			if (!clientOnly) {
 				properties.setProperty("token", ret.token);
-				properties.setProperty("guildId", ret.guildId != 0 ? Long.toUnsignedString(ret.guildId) : "");
+				properties.setProperty("guildId", ret.guildIds.stream().map(Long::toUnsignedString).collect(Collectors.joining(",")));
+				if (ret.shards != 1) properties.setProperty("shards", Integer.toString(ret.shards));
+				if (ret.modScanThreads != 1) properties.setProperty("modScanThreads", Integer.toString(ret.modScanThreads));
 
 				for (int idx = 0; idx < ret.instances.size(); idx++) {
 					Instance instance = ret.instances.get(idx);
@@ -173,16 +293,20 @@ public final class Config {
 		return ret.toString();
 	}
 
-	private Config(String apiHost, int apiPort, String apiPassword,
-			String token, long guildId, List<Instance> instances,
+	private Config(String apiHost, int apiPort, Path apiSocketPath, Path apiShmDir, Path apiCaptureFile, String apiPassword,
+			String token, List<Long> guildIds, int shards, List<Instance> instances,
 			long channelId,
 			boolean clientOnly) {
 		this.apiHost = apiHost;
 		this.apiPort = apiPort;
+		this.apiSocketPath = apiSocketPath;
+		this.apiShmDir = apiShmDir;
+		this.apiCaptureFile = apiCaptureFile;
 		this.apiPassword = apiPassword;
 
 		this.token = token;
-		this.guildId = guildId;
+		this.guildIds = guildIds;
+		this.shards = shards;
 		this.instances = instances;
 
 		this.channelId = channelId;
@@ -198,6 +322,54 @@ public final class Config {
 		return apiPort;
 	}
 
+	public Path getApiSocketPath() {
+		return apiSocketPath;
+	}
+
+	public Path getApiShmDir() {
+		return apiShmDir;
+	}
+
+	public Path getApiCaptureFile() {
+		return apiCaptureFile;
+	}
+
+	public Path getApiAttachmentCacheDir() {
+		return apiAttachmentCacheDir;
+	}
+
+	public long getApiAttachmentCacheSize() {
+		return apiAttachmentCacheSize * 1024L * 1024;
+	}
+
+	public Path getApiOutboundQueueFile() {
+		return apiOutboundQueueFile;
+	}
+
+	public double getApiDiscordRate() {
+		return apiDiscordRate;
+	}
+
+	public List<Tenant> getTenants() {
+		return tenants;
+	}
+
+	public Path getApiJournalDir() {
+		return apiJournalDir;
+	}
+
+	public long getApiJournalSize() {
+		return apiJournalSize * 1024L * 1024;
+	}
+
+	public InetSocketAddress getApiUpstreamAddress() {
+		return new InetSocketAddress(apiUpstreamHost, apiUpstreamPort);
+	}
+
+	public String getApiUpstreamPassword() {
+		return apiUpstreamPassword;
+	}
+
 	public InetSocketAddress getServerApiAddress() {
 		if (apiHost.isEmpty()) {
 			return new InetSocketAddress(apiPort);
@@ -206,8 +378,18 @@ public final class Config {
 		}
 	}
 
-	public InetSocketAddress getClientApiAddress() {
-		if (apiHost.isEmpty()) {
+	public List<SocketAddress> getServerApiAddresses() {
+		List<SocketAddress> ret = new ArrayList<>(2);
+		if (apiPort > 0) ret.add(getServerApiAddress());
+		if (apiSocketPath != null) ret.add(UnixDomainSocketAddress.of(apiSocketPath));
+
+		return ret;
+	}
+
+	public SocketAddress getClientApiAddress() {
+		if (apiSocketPath != null) {
+			return UnixDomainSocketAddress.of(apiSocketPath);
+		} else if (apiHost.isEmpty()) {
 			return new InetSocketAddress("localhost", apiPort);
 		} else {
 			return new InetSocketAddress(apiHost, apiPort);
@@ -224,10 +406,22 @@ public final class Config {
 		return token;
 	}
 
-	public long getGuildId() {
+	public List<Long> getGuildIds() {
 		if (clientOnly) throw new IllegalStateException();
 
-		return guildId;
+		return guildIds;
+	}
+
+	public int getShards() {
+		if (clientOnly) throw new IllegalStateException();
+
+		return shards;
+	}
+
+	public int getModScanThreads() {
+		if (clientOnly) throw new IllegalStateException();
+
+		return modScanThreads;
 	}
 
 	public List<Instance> getInstances() {
@@ -241,11 +435,15 @@ public final class Config {
 	}
 
 	public boolean isValidForApiServer() {
-		return isValidForDiscord() && apiPort > 0 && !apiPassword.isEmpty();
+		return isValidForDiscord() && (apiPort > 0 || apiSocketPath != null) && !apiPassword.isEmpty();
+	}
+
+	public boolean isValidForRelay() { // api server forwarding to another api server instead of using Discord directly
+		return apiUpstreamHost != null && apiUpstreamPort > 0 && apiUpstreamPassword != null && (apiPort > 0 || apiSocketPath != null) && !apiPassword.isEmpty();
 	}
 
 	public boolean isValidForApiClient() {
-		return !apiHost.isEmpty() && apiPort > 0 && !apiPassword.isEmpty();
+		return (!apiHost.isEmpty() && apiPort > 0 || apiSocketPath != null) && !apiPassword.isEmpty();
 	}
 
 	public boolean isValidForUpdateHandler() {
@@ -253,7 +451,7 @@ public final class Config {
 	}
 
 	public boolean isValidForDiscord() {
-		return !clientOnly && !token.isEmpty() && guildId != 0;
+		return !clientOnly && !token.isEmpty() && !guildIds.isEmpty();
 	}
 
 	public static class Instance {
@@ -274,17 +472,74 @@ public final class Config {
 		Path baseDir;
 	}
 
+	/*
+	 * Api client with its own password and quota for Discord-bound commands, clients using apiPassword share the
+	 * default tenant without a quota of its own.
+	 */
+	public static class Tenant {
+		Tenant(String name, String password) {
+			this.name = name;
+			this.password = password;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getPassword() {
+			return password;
+		}
+
+		public double getRate() {
+			return rate;
+		}
+
+		public int getBurst() {
+			return burst;
+		}
+
+		public int getWeight() {
+			return weight;
+		}
+
+		String name;
+		String password;
+		double rate = DEFAULT_TENANT_RATE; // commands/s
+		int burst = DEFAULT_TENANT_BURST;
+		int weight = 1; // share of the discord rate while several tenants are waiting
+	}
+
 	private static final int minPort = 1024;
 	private static final int maxPort = 0x10000;
 	private static final int[] reservedPorts = { 8080, 25565, 25575, 46819 }; // default http-proxy, mc, mc-rcon, sampler-rcon ports
 	private static final int extraReservedPortRange = 3;
+	private static final int DEFAULT_ATTACHMENT_CACHE_SIZE = 256;
+	private static final int DEFAULT_JOURNAL_SIZE = 256;
+	private static final double DEFAULT_DISCORD_RATE = 40; // below Discord's global limit of 50 requests/s
+	private static final double DEFAULT_TENANT_RATE = 5;
+	private static final int DEFAULT_TENANT_BURST = 20;
 
 	String apiHost;
-	int apiPort;
+	int apiPort; // < 0 to disable tcp
+	Path apiSocketPath; // unix domain socket, optional
+	Path apiShmDir; // shared memory ring files for same-host clients, optional
+	Path apiCaptureFile; // traffic capture for replay, optional
+	Path apiAttachmentCacheDir; // attachment fetch cache, optional, fetching is disabled without
+	int apiAttachmentCacheSize = DEFAULT_ATTACHMENT_CACHE_SIZE; // MiB
+	Path apiOutboundQueueFile; // durable log of pending text sends, optional
+	Path apiJournalDir; // message history journal, optional, fetchHistory is disabled without
+	int apiJournalSize = DEFAULT_JOURNAL_SIZE; // MiB
+	double apiDiscordRate = DEFAULT_DISCORD_RATE; // Discord-bound commands/s shared by the tenants, only enforced with tenants configured
+	final List<Tenant> tenants = new ArrayList<>(); // tenant<n>, tenantPassword<n>, tenantRate<n>, tenantBurst<n>, tenantWeight<n>
 	String apiPassword;
+	String apiUpstreamHost; // relay mode, optional
+	int apiUpstreamPort;
+	String apiUpstreamPassword;
 
 	String token;
-	long guildId;
+	List<Long> guildIds; // comma separated in the config file
+	int shards; // gateway shard count, 0 for Discord's recommendation
+	int modScanThreads = 1; // threads parsing mod jars, 0 for one per cpu
 	List<Instance> instances;
 
 	long channelId; // used for external client (mod)
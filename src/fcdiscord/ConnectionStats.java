@@ -0,0 +1,257 @@
+package fcdiscord;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import fcdiscord.ApiCommon.ChannelContext;
+
+public final class ConnectionStats implements ConnectionStatsMXBean {
+	ConnectionStats(ChannelContext context) {
+		this.context = context;
+	}
+
+	void register(String name) {
+		if (objectName == null) objectName = ApiStats.register(this, name);
+	}
+
+	void unregister() {
+		ApiStats.unregister(objectName);
+		objectName = null;
+	}
+
+	void recordIn(String cmd, int len) {
+		framesIn.increment();
+		bytesIn.add(len);
+		getCounter(commandsIn, cmd).add(len);
+	}
+
+	void recordOut(String cmd, int len) {
+		framesOut.increment();
+		bytesOut.add(len);
+		getCounter(commandsOut, cmd).add(len);
+	}
+
+	void recordDropped() {
+		droppedFrames.increment();
+	}
+
+	void recordPending(int bytes) {
+		if (bytes > pendingHighWaterMark.get()) pendingHighWaterMark.accumulateAndGet(bytes, Math::max);
+	}
+
+	void recordProcessCommand(long nanos) {
+		processedCommands.increment();
+		processNanos.add(nanos);
+		if (nanos > processMaxNanos.get()) processMaxNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	public void recordCommandLatency(long nanos, boolean failed) {
+		if (failed) {
+			failedCommands.increment();
+		} else {
+			completedCommands.increment();
+		}
+
+		latencyNanos.add(nanos);
+		if (nanos > latencyMaxNanos.get()) latencyMaxNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	@Override
+	public String getRemoteAddress() {
+		return context.getRemoteAddress();
+	}
+
+	@Override
+	public long getFramesIn() {
+		return framesIn.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getFramesOut() {
+		return framesOut.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public Map<String, Long> getFramesInByCommand() {
+		return snapshot(commandsIn, false);
+	}
+
+	@Override
+	public Map<String, Long> getBytesInByCommand() {
+		return snapshot(commandsIn, true);
+	}
+
+	@Override
+	public Map<String, Long> getFramesOutByCommand() {
+		return snapshot(commandsOut, false);
+	}
+
+	@Override
+	public Map<String, Long> getBytesOutByCommand() {
+		return snapshot(commandsOut, true);
+	}
+
+	@Override
+	public long getPendingWriteBytes() {
+		return context.getPendingWriteBytes();
+	}
+
+	@Override
+	public long getPendingWriteHighWaterMark() {
+		return pendingHighWaterMark.get();
+	}
+
+	@Override
+	public long getDroppedFrames() {
+		return droppedFrames.sum();
+	}
+
+	@Override
+	public long getProcessedCommands() {
+		return processedCommands.sum();
+	}
+
+	@Override
+	public double getProcessCommandAvgMicros() {
+		long count = processedCommands.sum();
+
+		return count > 0 ? processNanos.sum() * 1e-3 / count : 0;
+	}
+
+	@Override
+	public double getProcessCommandMaxMicros() {
+		return processMaxNanos.get() * 1e-3;
+	}
+
+	@Override
+	public long getCompletedCommands() {
+		return completedCommands.sum();
+	}
+
+	@Override
+	public long getFailedCommands() {
+		return failedCommands.sum();
+	}
+
+	@Override
+	public double getCommandLatencyAvgMillis() {
+		long count = completedCommands.sum() + failedCommands.sum();
+
+		return count > 0 ? latencyNanos.sum() * 1e-6 / count : 0;
+	}
+
+	@Override
+	public double getCommandLatencyMaxMillis() {
+		return latencyMaxNanos.get() * 1e-6;
+	}
+
+	@Override
+	public void resetMaxima() {
+		pendingHighWaterMark.set(0);
+		processMaxNanos.set(0);
+		latencyMaxNanos.set(0);
+	}
+
+	private static CommandCounter getCounter(ConcurrentMap<String, CommandCounter> map, String cmd) {
+		CommandCounter ret = map.get(cmd);
+		if (ret == null) ret = map.computeIfAbsent(cmd, ignore -> new CommandCounter());
+
+		return ret;
+	}
+
+	private static Map<String, Long> snapshot(Map<String, CommandCounter> map, boolean bytes) {
+		Map<String, Long> ret = new TreeMap<>();
+
+		for (Map.Entry<String, CommandCounter> entry : map.entrySet()) {
+			CommandCounter counter = entry.getValue();
+			ret.put(entry.getKey(), (bytes ? counter.bytes : counter.frames).sum());
+		}
+
+		return ret;
+	}
+
+	static String peekCommand(ByteBuffer frame) { // frame flipped with the length prefix at its position
+		int pos = frame.position() + 4;
+		int len = frame.getShort(pos) & 0xffff;
+		pos += 2;
+		int hash = len;
+
+		for (int i = 0; i < len; i++) {
+			hash = hash * 31 + frame.get(pos + i);
+		}
+
+		String ret = commandNames.get(hash);
+
+		if (ret != null && ret.length() == len) { // command names are ascii, verify to rule out hash collisions
+			boolean matches = true;
+
+			for (int i = 0; i < len; i++) {
+				if (ret.charAt(i) != frame.get(pos + i)) {
+					matches = false;
+					break;
+				}
+			}
+
+			if (matches) return ret;
+		}
+
+		byte[] data = new byte[len];
+		frame.get(pos, data);
+		ret = new String(data, StandardCharsets.UTF_8);
+		if (commandNames.size() < 1000) commandNames.put(hash, ret);
+
+		return ret;
+	}
+
+	private static final class CommandCounter {
+		void add(int len) {
+			frames.increment();
+			bytes.add(len);
+		}
+
+		final LongAdder frames = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+	}
+
+	private static final Map<Integer, String> commandNames = new ConcurrentHashMap<>();
+
+	private final ChannelContext context;
+	private ObjectName objectName;
+
+	private final LongAdder framesIn = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder framesOut = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final ConcurrentMap<String, CommandCounter> commandsIn = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, CommandCounter> commandsOut = new ConcurrentHashMap<>();
+
+	private final AtomicLong pendingHighWaterMark = new AtomicLong();
+	private final LongAdder droppedFrames = new LongAdder();
+
+	private final LongAdder processedCommands = new LongAdder();
+	private final LongAdder processNanos = new LongAdder();
+	private final AtomicLong processMaxNanos = new AtomicLong();
+
+	private final LongAdder completedCommands = new LongAdder();
+	private final LongAdder failedCommands = new LongAdder();
+	private final LongAdder latencyNanos = new LongAdder();
+	private final AtomicLong latencyMaxNanos = new AtomicLong();
+}
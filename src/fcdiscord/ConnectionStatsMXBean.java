@@ -0,0 +1,31 @@
+package fcdiscord;
+
+import java.util.Map;
+
+public interface ConnectionStatsMXBean {
+	String getRemoteAddress();
+
+	long getFramesIn();
+	long getBytesIn();
+	long getFramesOut();
+	long getBytesOut();
+	Map<String, Long> getFramesInByCommand();
+	Map<String, Long> getBytesInByCommand();
+	Map<String, Long> getFramesOutByCommand();
+	Map<String, Long> getBytesOutByCommand();
+
+	long getPendingWriteBytes();
+	long getPendingWriteHighWaterMark();
+	long getDroppedFrames();
+
+	long getProcessedCommands();
+	double getProcessCommandAvgMicros();
+	double getProcessCommandMaxMicros();
+
+	long getCompletedCommands();
+	long getFailedCommands();
+	double getCommandLatencyAvgMillis();
+	double getCommandLatencyMaxMillis();
+
+	void resetMaxima();
+}
@@ -0,0 +1,374 @@
+package fcdiscord;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BooleanSupplier;
+
+/*
+ * Byte stream over two memory mapped single-producer/single-consumer ring files, one per direction. Transfers don't
+ * involve syscalls, an idle side spins briefly, then announces the wait in the ring header and sleeps until the peer
+ * rings the doorbell, a socket between the two processes, after making progress. Liveness is tracked through the
+ * doorbell connection and a heartbeat each consumer publishes in its ring's header.
+ */
+public final class RingChannel implements ByteChannel {
+	// creates new ring files, the peer is expected to open them with swapped in/out files. doorbell is closed with the ring, also on failure
+	public static RingChannel create(Path inFile, Path outFile, ByteChannel doorbell) throws IOException {
+		MappedByteBuffer in = null;
+
+		try {
+			in = map(inFile, true);
+
+			return new RingChannel(in, map(outFile, true), doorbell, inFile.getFileName().toString());
+		} catch (Throwable t) {
+			if (in != null) closeRing(in);
+			closeDoorbell(doorbell);
+			throw t;
+		}
+	}
+
+	public static RingChannel open(Path inFile, Path outFile, ByteChannel doorbell) throws IOException {
+		RingChannel ret;
+
+		try {
+			ret = new RingChannel(map(inFile, false), map(outFile, false), doorbell, inFile.getFileName().toString());
+		} catch (Throwable t) {
+			closeDoorbell(doorbell);
+			throw t;
+		}
+
+		Mapping mapping = ret.mapping;
+		STATE.getAndBitwiseOr(mapping.in, STATE_OFFSET, STATE_ATTACHED);
+		STATE.getAndBitwiseOr(mapping.out, STATE_OFFSET, STATE_ATTACHED);
+		ret.ringDoorbell(); // wakes the creator's awaitAttached
+
+		return ret;
+	}
+
+	private static MappedByteBuffer map(Path file, boolean create) throws IOException {
+		try (FileChannel fc = create
+				? FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+						: FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			if (!create && fc.size() != HEADER_SIZE + CAPACITY) throw new IOException("invalid ring file size: "+file);
+
+			MappedByteBuffer ret = fc.map(MapMode.READ_WRITE, 0, HEADER_SIZE + CAPACITY);
+			ret.order(ByteOrder.nativeOrder());
+
+			if (create) {
+				ret.putInt(CAPACITY_OFFSET, CAPACITY);
+				POS.setRelease(ret, HEARTBEAT_OFFSET, System.currentTimeMillis());
+				STATE.setRelease(ret, MAGIC_OFFSET, MAGIC);
+			} else if ((int) STATE.getAcquire(ret, MAGIC_OFFSET) != MAGIC || ret.getInt(CAPACITY_OFFSET) != CAPACITY) {
+				throw new IOException("invalid ring file: "+file);
+			}
+
+			return ret;
+		}
+	}
+
+	private RingChannel(MappedByteBuffer in, MappedByteBuffer out, ByteChannel doorbell, String name) throws IOException {
+		this.mapping = new Mapping(in, out, in.slice(HEADER_SIZE, CAPACITY), out.slice(HEADER_SIZE, CAPACITY));
+		this.doorbell = doorbell;
+		this.name = name;
+		this.readPos = (long) POS.getAcquire(in, TAIL_OFFSET);
+		this.writePos = (long) POS.getAcquire(out, HEAD_OFFSET);
+
+		if (doorbell instanceof SocketChannel socketChannel && socketChannel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+			socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true); // single byte writes
+		}
+
+		Thread thread = new Thread(this::runDoorbell, "[DCAPI] doorbell shm:"+name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public boolean isAttached() {
+		Mapping mapping = this.mapping;
+
+		return mapping != null
+				&& ((int) STATE.getAcquire(mapping.in, STATE_OFFSET) & STATE_ATTACHED) != 0
+				&& ((int) STATE.getAcquire(mapping.out, STATE_OFFSET) & STATE_ATTACHED) != 0;
+	}
+
+	// waits for the peer to open the rings, returns false on timeout
+	public boolean awaitAttached(long timeoutMs) throws IOException {
+		long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+
+		synchronized (lock) {
+			while (!isAttached()) {
+				if (!open) throw new ClosedChannelException();
+				if (peerGone) throw new IOException("peer closed the connection");
+
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) return false;
+
+				waitLock(Math.max(1, remaining / 1_000_000L));
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		Mapping mapping = getMapping();
+		if (!dst.hasRemaining()) return 0;
+
+		MappedByteBuffer in = mapping.in;
+		long head;
+		int idle = 0;
+
+		while ((head = (long) POS.getAcquire(in, HEAD_OFFSET)) == readPos) {
+			if (((int) STATE.getAcquire(in, STATE_OFFSET) & STATE_CLOSED) != 0 || peerGone) return -1;
+			if (!open) throw new ClosedChannelException();
+
+			if (idle < SPIN_ITERATIONS + YIELD_ITERATIONS) {
+				idle = idle(idle);
+				if ((idle & 0xff) != 0) continue;
+			} else {
+				await(in, WAITING_CONSUMER, () -> (long) POS.getVolatile(in, HEAD_OFFSET) != readPos);
+			}
+
+			if (heartbeat(mapping) - (long) POS.getAcquire(mapping.out, HEARTBEAT_OFFSET) > PEER_TIMEOUT_MS) {
+				System.err.printf("[DCAPI] shared memory peer %s timed out%n", name);
+				return -1;
+			}
+		}
+
+		heartbeat(mapping);
+
+		int len = (int) Math.min(head - readPos, dst.remaining());
+		int offset = (int) (readPos & (CAPACITY - 1));
+		int first = Math.min(len, CAPACITY - offset);
+
+		dst.put(dst.position(), mapping.inData, offset, first);
+		if (first < len) dst.put(dst.position() + first, mapping.inData, 0, len - first);
+		dst.position(dst.position() + len);
+
+		readPos += len;
+		POS.setVolatile(in, TAIL_OFFSET, readPos); // ordered before reading the waiting flags
+		ringIfWaiting(in, WAITING_PRODUCER);
+
+		return len;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		Mapping mapping = getMapping();
+		if (!src.hasRemaining()) return 0;
+
+		MappedByteBuffer out = mapping.out;
+		long free;
+		int idle = 0;
+
+		while ((free = CAPACITY - (writePos - (long) POS.getAcquire(out, TAIL_OFFSET))) == 0) {
+			if (!open || ((int) STATE.getAcquire(out, STATE_OFFSET) & STATE_CLOSED) != 0) throw new ClosedChannelException();
+			if (peerGone) throw new IOException("shared memory peer "+name+" closed the connection");
+
+			if (idle < SPIN_ITERATIONS + YIELD_ITERATIONS) {
+				idle = idle(idle);
+				if ((idle & 0xff) != 0) continue;
+			} else {
+				await(out, WAITING_PRODUCER, () -> (long) POS.getVolatile(out, TAIL_OFFSET) != writePos - CAPACITY);
+			}
+
+			if (System.currentTimeMillis() - (long) POS.getAcquire(out, HEARTBEAT_OFFSET) > PEER_TIMEOUT_MS) { // consumer stopped reading
+				System.err.printf("[DCAPI] shared memory peer %s timed out%n", name);
+				throw new IOException("shared memory peer "+name+" timed out");
+			}
+		}
+
+		int len = (int) Math.min(free, src.remaining());
+		int offset = (int) (writePos & (CAPACITY - 1));
+		int first = Math.min(len, CAPACITY - offset);
+
+		mapping.outData.put(offset, src, src.position(), first);
+		if (first < len) mapping.outData.put(0, src, src.position() + first, len - first);
+		src.position(src.position() + len);
+
+		writePos += len;
+		POS.setVolatile(out, HEAD_OFFSET, writePos); // ordered before reading the waiting flags
+		ringIfWaiting(out, WAITING_CONSUMER);
+
+		return len;
+	}
+
+	private Mapping getMapping() throws ClosedChannelException {
+		Mapping ret = mapping;
+		if (ret == null || !open) throw new ClosedChannelException();
+
+		return ret;
+	}
+
+	private long heartbeat(Mapping mapping) {
+		long time = System.currentTimeMillis();
+
+		if (time - lastHeartbeat >= HEARTBEAT_INTERVAL_MS) {
+			POS.setRelease(mapping.in, HEARTBEAT_OFFSET, time);
+			lastHeartbeat = time;
+		}
+
+		return time;
+	}
+
+	private static int idle(int iteration) {
+		if (iteration < SPIN_ITERATIONS) {
+			Thread.onSpinWait();
+		} else {
+			Thread.yield();
+		}
+
+		return iteration + 1;
+	}
+
+	/*
+	 * Announces waiting on ring through flag and sleeps until the doorbell rings or the heartbeat interval passes. ready
+	 * is checked after announcing, the peer may have made progress before seeing the flag. The flag is cleared by the
+	 * peer when ringing, a stale one only causes a spurious ring.
+	 */
+	private void await(MappedByteBuffer ring, int flag, BooleanSupplier ready) throws IOException {
+		synchronized (lock) { // held until waiting, so the doorbell thread can't notify in between
+			STATE.getAndBitwiseOr(ring, WAITING_OFFSET, flag);
+			if (ready.getAsBoolean() || peerGone || !open) return;
+
+			waitLock(HEARTBEAT_INTERVAL_MS);
+		}
+	}
+
+	private void waitLock(long timeoutMs) throws InterruptedIOException { // caller must hold the lock
+		try {
+			lock.wait(timeoutMs);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	private void ringIfWaiting(MappedByteBuffer ring, int flag) {
+		if (((int) STATE.getVolatile(ring, WAITING_OFFSET) & flag) != 0 // check before the atomic update, the flag is rarely set
+				&& ((int) STATE.getAndBitwiseAnd(ring, WAITING_OFFSET, ~flag) & flag) != 0) {
+			ringDoorbell();
+		}
+	}
+
+	private void ringDoorbell() {
+		try {
+			doorbell.write(ByteBuffer.wrap(DOORBELL_DATA));
+		} catch (IOException e) {
+			// peer gone, noticed by the doorbell thread
+		}
+	}
+
+	private void runDoorbell() {
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+
+		try {
+			while (doorbell.read(buffer.clear()) >= 0) {
+				wake();
+			}
+		} catch (IOException e) {
+			// closed
+		}
+
+		peerGone = true;
+		wake();
+	}
+
+	private void wake() {
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		Mapping mapping;
+
+		synchronized (lock) {
+			if (!open) return;
+			open = false;
+			mapping = this.mapping;
+			this.mapping = null; // unmapped by the gc once running reads and writes return, there is no safe explicit unmap
+
+			lock.notifyAll();
+		}
+
+		closeRing(mapping.in);
+		closeRing(mapping.out);
+		closeDoorbell(doorbell); // wakes the peer's waiters through its doorbell thread
+	}
+
+	private static void closeRing(MappedByteBuffer ring) {
+		STATE.getAndBitwiseOr(ring, STATE_OFFSET, STATE_CLOSED);
+	}
+
+	private static void closeDoorbell(ByteChannel doorbell) {
+		try {
+			doorbell.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "shm:"+name;
+	}
+
+	private record Mapping(MappedByteBuffer in, MappedByteBuffer out, ByteBuffer inData, ByteBuffer outData) { }
+
+	public static final int CAPACITY = 1 << 20; // must be a power of 2
+
+	private static final int MAGIC = 0x46435242; // FCRB
+	private static final int MAGIC_OFFSET = 0;
+	private static final int CAPACITY_OFFSET = 4;
+	private static final int STATE_OFFSET = 8;
+	private static final int WAITING_OFFSET = 12; // flags of sides sleeping until the doorbell rings
+	private static final int HEARTBEAT_OFFSET = 16; // consumer liveness, ms
+	private static final int HEAD_OFFSET = 64; // producer owned, separate cache lines
+	private static final int TAIL_OFFSET = 128; // consumer owned
+	private static final int HEADER_SIZE = 192;
+
+	private static final int STATE_ATTACHED = 1;
+	private static final int STATE_CLOSED = 2;
+
+	private static final int WAITING_CONSUMER = 1; // for data
+	private static final int WAITING_PRODUCER = 2; // for space
+
+	private static final int SPIN_ITERATIONS = 2000;
+	private static final int YIELD_ITERATIONS = 50;
+	private static final long HEARTBEAT_INTERVAL_MS = 1000;
+	private static final long PEER_TIMEOUT_MS = 15_000;
+
+	private static final VarHandle POS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	private static final VarHandle STATE = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+	private static final byte[] DOORBELL_DATA = { 1 };
+
+	private volatile Mapping mapping; // null once closed
+	private final ByteChannel doorbell;
+	private final String name;
+	private final Object lock = new Object(); // for waiting on the doorbell
+	private long readPos;
+	private long writePos;
+	private long lastHeartbeat;
+	private volatile boolean open = true;
+	private volatile boolean peerGone; // doorbell connection ended
+}
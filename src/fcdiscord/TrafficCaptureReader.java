@@ -0,0 +1,112 @@
+package fcdiscord;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// sequential reader for TrafficRecorder captures, the returned frame buffer is only valid until the next call to next()
+public final class TrafficCaptureReader implements Closeable {
+	public TrafficCaptureReader(Path file) throws IOException {
+		this.channel = FileChannel.open(file, StandardOpenOption.READ);
+
+		buffer.flip();
+		fill(8);
+		if (buffer.getLong() != TrafficRecorder.MAGIC) throw new IOException("not a capture file: "+file);
+	}
+
+	public boolean next() throws IOException {
+		if (!fill(1)) return false;
+		fill(MAX_HEADER); // may be less at the end of the file
+
+		type = buffer.get();
+		connectionId = (int) TrafficRecorder.getVarLong(buffer);
+		time += TrafficRecorder.getVarLong(buffer);
+
+		switch (type) {
+		case TrafficRecorder.TYPE_SESSION -> {
+			if (!fill(9)) throw new EOFException();
+			side = buffer.get();
+			sessionEpochMs = buffer.getLong();
+			frame = null;
+		}
+		case TrafficRecorder.TYPE_OPEN, TrafficRecorder.TYPE_CLOSE -> frame = null;
+		case TrafficRecorder.TYPE_C2S, TrafficRecorder.TYPE_S2C -> {
+			if (!fill(4)) throw new EOFException();
+			int len = buffer.getInt(buffer.position());
+			if (len < 4 || len > MAX_FRAME_SIZE) throw new IOException("invalid frame size "+len);
+			if (!fill(len)) throw new EOFException();
+
+			frame = buffer.slice(buffer.position(), len);
+			buffer.position(buffer.position() + len);
+		}
+		default -> throw new IOException("invalid record type "+type);
+		}
+
+		return true;
+	}
+
+	private boolean fill(int min) throws IOException {
+		if (buffer.remaining() >= min) return true;
+
+		if (buffer.capacity() < min) {
+			ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(min, buffer.capacity() * 2));
+			newBuffer.put(buffer);
+			buffer = newBuffer;
+		} else {
+			buffer.compact();
+		}
+
+		while (buffer.position() < min) {
+			if (channel.read(buffer) < 0) break;
+		}
+
+		buffer.flip();
+
+		return buffer.remaining() >= min;
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public int getConnectionId() {
+		return connectionId;
+	}
+
+	public long getTime() { // ns since the start of the capture
+		return time;
+	}
+
+	public byte getSide() {
+		return side;
+	}
+
+	public long getSessionEpochMs() {
+		return sessionEpochMs;
+	}
+
+	public ByteBuffer getFrame() {
+		return frame;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private static final int MAX_HEADER = 1 + 5 + 10;
+	private static final int MAX_FRAME_SIZE = 1_000_000;
+
+	private final FileChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+	private byte type;
+	private int connectionId;
+	private long time;
+	private byte side;
+	private long sessionEpochMs;
+	private ByteBuffer frame;
+}
@@ -0,0 +1,183 @@
+package fcdiscord;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Append-only capture of all frames passing through the ChannelContexts of an ApiServer or ApiClient.
+ *
+ * file: magic, then records: type (byte), connection id (varint), ns since the previous record (varint), payload
+ * payload: session: side (byte), epoch ms (long); frame: the frame as sent, starting with its length; open/close: none
+ *
+ * login frames are never recorded to keep the password out of captures.
+ */
+public final class TrafficRecorder implements Closeable {
+	public static TrafficRecorder open(Path file, boolean serverSide) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+		try {
+			return new TrafficRecorder(channel, serverSide);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private TrafficRecorder(FileChannel channel, boolean serverSide) throws IOException {
+		this.channel = channel;
+		this.serverSide = serverSide;
+
+		if (channel.size() == 0) buffer.putLong(MAGIC);
+
+		lastTime = System.nanoTime();
+		putHeader(TYPE_SESSION, 0);
+		buffer.put(serverSide ? SIDE_SERVER : SIDE_CLIENT);
+		buffer.putLong(System.currentTimeMillis());
+		flush();
+
+		flushThread = new Thread("[DCAPI] capture flush") {
+			@Override
+			public void run() {
+				while (!interrupted()) {
+					try {
+						sleep(FLUSH_INTERVAL_MS);
+						flush();
+					} catch (InterruptedException e) {
+						break;
+					} catch (IOException e) {
+						System.err.printf("[DCAPI] capture write failed: %s%n", e.toString());
+						break;
+					}
+				}
+			}
+		};
+
+		flushThread.setDaemon(true);
+		flushThread.start();
+	}
+
+	void recordOpen(int connectionId) {
+		record(TYPE_OPEN, connectionId, null, 0, 0);
+	}
+
+	void recordClose(int connectionId) {
+		record(TYPE_CLOSE, connectionId, null, 0, 0);
+	}
+
+	void recordIncoming(int connectionId, ByteBuffer data, int offset, int len) {
+		record(serverSide ? TYPE_C2S : TYPE_S2C, connectionId, data, offset, len);
+	}
+
+	void recordOutgoing(int connectionId, ByteBuffer frame) {
+		record(serverSide ? TYPE_S2C : TYPE_C2S, connectionId, frame, frame.position(), frame.remaining());
+	}
+
+	private synchronized void record(byte type, int connectionId, ByteBuffer data, int offset, int len) {
+		if (closed) return;
+
+		try {
+			if (buffer.remaining() < MAX_HEADER_SIZE + len) {
+				flush();
+			}
+
+			putHeader(type, connectionId);
+
+			if (len <= buffer.remaining()) {
+				if (len > 0) {
+					buffer.put(buffer.position(), data, offset, len);
+					buffer.position(buffer.position() + len);
+				}
+			} else { // oversized frame, write directly
+				flush();
+				ByteBuffer slice = data.slice(offset, len);
+
+				while (slice.hasRemaining()) {
+					channel.write(slice);
+				}
+			}
+		} catch (IOException e) {
+			System.err.printf("[DCAPI] capture write failed, stopping: %s%n", e.toString());
+			closed = true;
+		}
+	}
+
+	private void putHeader(byte type, int connectionId) {
+		long time = System.nanoTime();
+
+		buffer.put(type);
+		putVarLong(buffer, connectionId);
+		putVarLong(buffer, Math.max(0, time - lastTime));
+
+		lastTime = time;
+	}
+
+	public synchronized void flush() throws IOException {
+		buffer.flip();
+
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+
+		buffer.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flushThread.interrupt();
+
+		synchronized (this) {
+			if (!closed) flush();
+			closed = true;
+			channel.close();
+		}
+	}
+
+	static void putVarLong(ByteBuffer buffer, long value) {
+		while ((value & ~0x7fL) != 0) {
+			buffer.put((byte) (value & 0x7f | 0x80));
+			value >>>= 7;
+		}
+
+		buffer.put((byte) value);
+	}
+
+	static long getVarLong(ByteBuffer buffer) {
+		long ret = 0;
+		int shift = 0;
+		byte b;
+
+		do {
+			b = buffer.get();
+			ret |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+
+		return ret;
+	}
+
+	static final long MAGIC = 0x4643444341503031L; // FCDCAP01
+
+	public static final byte TYPE_SESSION = 0;
+	public static final byte TYPE_OPEN = 1;
+	public static final byte TYPE_CLOSE = 2;
+	public static final byte TYPE_C2S = 3;
+	public static final byte TYPE_S2C = 4;
+
+	public static final byte SIDE_SERVER = 0;
+	public static final byte SIDE_CLIENT = 1;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int MAX_HEADER_SIZE = 1 + 5 + 10 + 9;
+	private static final long FLUSH_INTERVAL_MS = 1000;
+
+	private final FileChannel channel;
+	private final boolean serverSide;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final Thread flushThread;
+	private long lastTime;
+	private boolean closed;
+}